@@ -24,6 +24,9 @@ public class AppInitializer {
         // Configure the environment
         AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext("com.sidneysimmons");
 
+        // Make sure forwarding is torn down even when the application isn't closed through the window
+        context.registerShutdownHook();
+
         // Run the application
         AppRunner appRunner = (AppRunner) context.getBean("appRunner");
         SwingUtilities.invokeLater(appRunner::run);
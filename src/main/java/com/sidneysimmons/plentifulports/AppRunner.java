@@ -1,5 +1,6 @@
 package com.sidneysimmons.plentifulports;
 
+import com.sidneysimmons.plentifulports.forwarding.ForwardingService;
 import com.sidneysimmons.plentifulports.settings.SettingsService;
 import com.sidneysimmons.plentifulports.settings.domain.Settings;
 import com.sidneysimmons.plentifulports.settings.exception.SettingsException;
@@ -24,6 +25,9 @@ public class AppRunner {
     @Resource(name = "settingsService")
     private SettingsService settingsService;
 
+    @Resource(name = "forwardingService")
+    private ForwardingService forwardingService;
+
     /**
      * Run startup sequence and forward to the dashboard scene.
      */
@@ -47,6 +51,9 @@ public class AppRunner {
             return;
         }
 
+        // Pick up the forwards a crashed run left behind - they are adopted once the services are loaded
+        forwardingService.collectOrphans();
+
         // Send the user to the dashboard
         frameManager.activateScene(DashboardScene.class);
     }
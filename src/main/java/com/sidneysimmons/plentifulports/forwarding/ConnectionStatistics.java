@@ -0,0 +1,76 @@
+package com.sidneysimmons.plentifulports.forwarding;
+
+import com.sidneysimmons.plentifulports.forwarding.domain.ConnectionCounter;
+import com.sidneysimmons.plentifulports.settings.domain.ServiceConfiguration;
+import com.sidneysimmons.plentifulports.thread.ThreadService;
+import com.sidneysimmons.plentifulports.ui.component.PortsMonitor;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps the connection counters of the loaded services. The forwarders count their connections straight into the counters, so no
+ * connection is lost to a busy event bus. Instead of a log line per connection the ports monitor shows a single summary line per service
+ * which is refreshed every second while there are connections.
+ * 
+ * @author Sidney Simmons
+ */
+@Component("connectionStatistics")
+public class ConnectionStatistics {
+
+    private static final long SUMMARY_INTERVAL_SECONDS = 1;
+
+    @Resource(name = "threadService")
+    private ThreadService threadService;
+
+    @Resource(name = "portsMonitor")
+    private PortsMonitor portsMonitor;
+
+    private Map<ServiceConfiguration, ConnectionCounter> counters = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void initialize() {
+        threadService.scheduleAtFixedRate(this::publishSummaries, SUMMARY_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Read the connection counter of a given service. The counter is kept across restarts of the forwarding and handed to every forwarder
+     * of the service.
+     * 
+     * @param serviceConfiguration the service
+     * @return the counter, null if the service isn't loaded
+     */
+    public ConnectionCounter readCounter(ServiceConfiguration serviceConfiguration) {
+        return counters.get(serviceConfiguration);
+    }
+
+    /**
+     * Drop the counters of all services and start counting for a given set of services. Connections of any other service - the relaying
+     * kubectl of a lazy forward for example - aren't counted.
+     * 
+     * @param serviceConfigurations the loaded services
+     */
+    public void reset(List<ServiceConfiguration> serviceConfigurations) {
+        counters.clear();
+        for (ServiceConfiguration serviceConfiguration : serviceConfigurations) {
+            counters.put(serviceConfiguration, new ConnectionCounter(serviceConfiguration));
+        }
+    }
+
+    /**
+     * Hand the summaries of the services with new connections to the ports monitor.
+     */
+    private void publishSummaries() {
+        for (ConnectionCounter counter : counters.values()) {
+            String summary = counter.summarize();
+            if (summary != null) {
+                portsMonitor.setSummary(counter.getServiceConfiguration().toString(), summary);
+            }
+        }
+    }
+
+}
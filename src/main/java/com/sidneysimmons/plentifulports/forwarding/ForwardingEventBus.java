@@ -0,0 +1,54 @@
+package com.sidneysimmons.plentifulports.forwarding;
+
+import com.sidneysimmons.plentifulports.forwarding.domain.EventSubscription;
+import com.sidneysimmons.plentifulports.forwarding.domain.ForwardingEvent;
+import com.sidneysimmons.plentifulports.forwarding.domain.ForwardingEventSubscriber;
+import com.sidneysimmons.plentifulports.thread.ThreadService;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Resource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Event bus between the forwarders and whoever wants to know what they're doing - the UI, statistics and so on. Publishing only queues
+ * the event with each subscriber, so the forwarding path never waits on a subscriber. Subscribers get their events in batches on a worker
+ * thread.
+ * 
+ * @author Sidney Simmons
+ */
+@Component("forwardingEventBus")
+public class ForwardingEventBus {
+
+    private static final int SUBSCRIPTION_CAPACITY = 16384;
+    private static final int MAX_BATCH_SIZE = 1024;
+
+    @Resource(name = "threadService")
+    private ThreadService threadService;
+
+    private List<EventSubscription> subscriptions = new CopyOnWriteArrayList<>();
+    private AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Subscribe to all events published from now on.
+     * 
+     * @param name the name of the subscriber, for the log
+     * @param subscriber the subscriber
+     */
+    public void subscribe(String name, ForwardingEventSubscriber subscriber) {
+        subscriptions.add(new EventSubscription(name, subscriber, threadService::execute, SUBSCRIPTION_CAPACITY, MAX_BATCH_SIZE));
+    }
+
+    /**
+     * Publish an event to all subscribers. Safe to call from any thread and never blocks.
+     * 
+     * @param event the event
+     */
+    public void publish(ForwardingEvent event) {
+        event.setSequence(sequence.incrementAndGet());
+        for (EventSubscription subscription : subscriptions) {
+            subscription.offer(event);
+        }
+    }
+
+}
@@ -1,19 +1,57 @@
 package com.sidneysimmons.plentifulports.forwarding;
 
+import com.sidneysimmons.plentifulports.forwarding.domain.AdoptedForwardingRunnable;
+import com.sidneysimmons.plentifulports.forwarding.domain.ConnectionCounter;
+import com.sidneysimmons.plentifulports.forwarding.domain.Forwarder;
 import com.sidneysimmons.plentifulports.forwarding.domain.ForwardingRunnable;
+import com.sidneysimmons.plentifulports.forwarding.domain.ForwardingSlot;
+import com.sidneysimmons.plentifulports.forwarding.domain.ForwardingState;
+import com.sidneysimmons.plentifulports.forwarding.domain.ForwardingSupervisor;
+import com.sidneysimmons.plentifulports.forwarding.domain.LazyForwardingRunnable;
+import com.sidneysimmons.plentifulports.forwarding.domain.NativeForwardingRunnable;
+import com.sidneysimmons.plentifulports.forwarding.domain.PortConflict;
+import com.sidneysimmons.plentifulports.forwarding.domain.ProcessTree;
+import com.sidneysimmons.plentifulports.forwarding.domain.RunStateEntry;
+import com.sidneysimmons.plentifulports.forwarding.domain.ServiceStatus;
+import com.sidneysimmons.plentifulports.forwarding.domain.StartThrottle;
+import com.sidneysimmons.plentifulports.kubernetes.KubernetesApiClient;
 import com.sidneysimmons.plentifulports.kubernetes.KubernetesGateway;
+import com.sidneysimmons.plentifulports.kubernetes.ServiceIndex;
+import com.sidneysimmons.plentifulports.kubernetes.exception.KubernetesException;
+import com.sidneysimmons.plentifulports.settings.domain.ForwardingConfiguration;
+import com.sidneysimmons.plentifulports.settings.domain.ForwardingEngine;
+import com.sidneysimmons.plentifulports.settings.domain.PortConfiguration;
 import com.sidneysimmons.plentifulports.settings.domain.ServiceConfiguration;
+import com.sidneysimmons.plentifulports.thread.ThreadService;
 import com.sidneysimmons.plentifulports.ui.component.PortsMonitor;
 import com.sidneysimmons.plentifulports.ui.component.PortsTable;
-import java.awt.event.ItemEvent;
-import java.util.HashMap;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import javax.swing.SwingUtilities;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.ObjectUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.springframework.stereotype.Component;
 
 /**
@@ -25,6 +63,12 @@ import org.springframework.stereotype.Component;
 @Component("forwardingService")
 public final class ForwardingService {
 
+    private static final long START_TIMEOUT_SECONDS = 60;
+    private static final long PROBE_DELAY_MILLIS = 2000;
+    private static final long PROBE_INTERVAL_MILLIS = 1000;
+    private static final int PROBE_CONNECT_TIMEOUT_MILLIS = 250;
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 3000;
+
     @Resource(name = "portsTable")
     private PortsTable portsTable;
 
@@ -34,7 +78,42 @@ public final class ForwardingService {
     @Resource(name = "kubernetesGateway")
     private KubernetesGateway kubernetesGateway;
 
-    private Map<ServiceConfiguration, ForwardingRunnable> runnables = new HashMap<>();
+    @Resource(name = "kubernetesApiClient")
+    private KubernetesApiClient kubernetesApiClient;
+
+    @Resource(name = "nativeForwardingEngine")
+    private NativeForwardingEngine nativeForwardingEngine;
+
+    @Resource(name = "threadService")
+    private ThreadService threadService;
+
+    @Resource(name = "portPreflight")
+    private PortPreflight portPreflight;
+
+    @Resource(name = "runStateService")
+    private RunStateService runStateService;
+
+    @Resource(name = "serviceIndex")
+    private ServiceIndex serviceIndex;
+
+    @Resource(name = "connectionStatistics")
+    private ConnectionStatistics connectionStatistics;
+
+    @Resource(name = "forwardingEventBus")
+    private ForwardingEventBus forwardingEventBus;
+
+    private volatile ForwardingConfiguration forwardingConfiguration = new ForwardingConfiguration();
+    private Map<ServiceConfiguration, ForwardingSlot> slots = new ConcurrentHashMap<>();
+    private ReentrantLock loadLock = new ReentrantLock();
+    private volatile StartThrottle startThrottle = new StartThrottle(8, 5);
+    private List<RunStateEntry> orphans = new ArrayList<>();
+    private Set<ServiceConfiguration> missingServices = new HashSet<>();
+    private Function<ServiceConfiguration, Forwarder> forwarderFactory = this::buildForwarder;
+
+    @PostConstruct
+    public void initialize() {
+        serviceIndex.addListener(this::markMissingServices);
+    }
 
     @PreDestroy
     public void destroy() {
@@ -43,38 +122,238 @@ public final class ForwardingService {
     }
 
     /**
-     * Stop all services.
+     * Stop all services. The services are torn down in parallel and this waits until all of their processes are gone. Processes that
+     * don't stop within the shutdown timeout are killed forcibly.
      */
-    public synchronized void stopServices() {
+    public void stopServices() {
         log.info("Stopping all services.");
-        for (Entry<ServiceConfiguration, ForwardingRunnable> entry : runnables.entrySet()) {
-            disableForwarding(entry.getKey());
-            entry.setValue(null);
+        long started = System.nanoTime();
+        List<CompletableFuture<Boolean>> stops = new ArrayList<>();
+        for (ServiceConfiguration serviceConfiguration : slots.keySet()) {
+            stops.add(threadService.supplyAsync(() -> {
+                Boolean stopped = disableForwarding(serviceConfiguration, SHUTDOWN_TIMEOUT_MILLIS);
+                if (stopped) {
+                    SwingUtilities.invokeLater(() -> portsTable.setToggle(serviceConfiguration, false));
+                }
+                return stopped;
+            }));
+        }
+        CompletableFuture.allOf(stops.toArray(new CompletableFuture<?>[0])).join();
+
+        long stopped = stops.stream().filter(CompletableFuture::join).count();
+        if (stopped > 0) {
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+            logMessage("Stopped " + stopped + " services in " + elapsedMillis + " ms.");
+        }
+    }
+
+    /**
+     * Read how long the current start of a given service took to become ready.
+     * 
+     * @param serviceConfiguration the service
+     * @return the time to ready in milliseconds, null if the service isn't ready
+     */
+    public Long readTimeToReady(ServiceConfiguration serviceConfiguration) {
+        ForwardingSlot slot = slots.get(serviceConfiguration);
+        return slot != null ? slot.getTimeToReadyMillis() : null;
+    }
+
+    /**
+     * Sample the live status of a given service. Only reads counters the forwarding keeps up to date anyway, so it's cheap enough to be
+     * called for every visible row a few times a second.
+     * 
+     * @param serviceConfiguration the service
+     * @return the status
+     */
+    public ServiceStatus readStatus(ServiceConfiguration serviceConfiguration) {
+        ServiceStatus status = new ServiceStatus();
+        ForwardingSlot slot = slots.get(serviceConfiguration);
+        if (slot != null) {
+            status.setState(slot.getState());
+            status.setUptimeMillis(slot.readUptimeMillis());
+            status.setTimeToReadyMillis(slot.getTimeToReadyMillis());
+            Forwarder forwarder = slot.getForwarder();
+            if (forwarder != null) {
+                status.setRestartCount(forwarder.getRestartCount());
+                status.setBytesIn(forwarder.readBytesIn());
+                status.setBytesOut(forwarder.readBytesOut());
+            }
+        }
+        ConnectionCounter connectionCounter = connectionStatistics.readCounter(serviceConfiguration);
+        if (connectionCounter != null) {
+            status.setConnectionTotal(connectionCounter.readTotal());
+        }
+        return status;
+    }
+
+    /**
+     * Wait until a given service is ready. Returns early once the service is stopped or failed.
+     * 
+     * @param serviceConfiguration the service
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return true if the service is ready, false otherwise
+     * @throws InterruptedException thrown if interrupted while waiting
+     */
+    public Boolean awaitReady(ServiceConfiguration serviceConfiguration, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            ForwardingSlot slot = slots.get(serviceConfiguration);
+            if (slot == null || !slot.getState().isActive()) {
+                return false;
+            } else if (slot.getState() == ForwardingState.READY) {
+                return true;
+            }
+
+            // Wait for the current start to settle - a restart in the meantime means another round
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            try {
+                slot.getSettled().get(remaining, TimeUnit.NANOSECONDS);
+            } catch (ExecutionException | TimeoutException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Start all loaded services. Returns right away - the starts are throttled in the background and the total time until all of them
+     * settled is reported to the ports monitor.
+     */
+    public void startServices() {
+        startServices(new ArrayList<>(slots.keySet()), "all services");
+    }
+
+    /**
+     * Start all loaded services of a given group. Returns right away just like {@link #startServices()}.
+     * 
+     * @param group the group
+     */
+    public void startGroup(String group) {
+        List<ServiceConfiguration> services = new ArrayList<>();
+        for (ServiceConfiguration serviceConfiguration : slots.keySet()) {
+            if (group.equals(serviceConfiguration.getGroup())) {
+                services.add(serviceConfiguration);
+            }
+        }
+        startServices(services, "group " + group);
+    }
+
+    /**
+     * Read the groups of the loaded services.
+     * 
+     * @return the sorted groups
+     */
+    public List<String> readGroups() {
+        Set<String> groups = new TreeSet<>();
+        for (ServiceConfiguration serviceConfiguration : slots.keySet()) {
+            if (StringUtils.isNotBlank(serviceConfiguration.getGroup())) {
+                groups.add(serviceConfiguration.getGroup());
+            }
+        }
+        return new ArrayList<>(groups);
+    }
+
+    /**
+     * Load the services of the given forwarding configuration. This does not start any forwarding.
+     * 
+     * @param forwardingConfiguration the forwarding configuration
+     */
+    public void loadServices(ForwardingConfiguration forwardingConfiguration) {
+        // A lock instead of a monitor since stopping the old services waits for them, which would pin a virtual thread's carrier
+        loadLock.lock();
+        try {
+            loadServicesLocked(forwardingConfiguration);
+        } finally {
+            loadLock.unlock();
         }
     }
 
     /**
-     * Load the given services. This does not start any forwarding.
+     * Load the services of the given forwarding configuration while holding the load lock.
      * 
-     * @param serviceConfigurations the services
+     * @param forwardingConfiguration the forwarding configuration
      */
-    public synchronized void loadServices(List<ServiceConfiguration> serviceConfigurations) {
+    private void loadServicesLocked(ForwardingConfiguration forwardingConfiguration) {
         // Clear the UI table
         log.info("Loading services.");
         SwingUtilities.invokeLater(portsTable::clearTable);
 
         // Disable any existing forwarding
-        for (Entry<ServiceConfiguration, ForwardingRunnable> entry : runnables.entrySet()) {
-            disableForwarding(entry.getKey());
-            entry.setValue(null);
+        stopServices();
+
+        // Clear the slots and add the new services
+        slots.clear();
+        connectionStatistics.reset(forwardingConfiguration.getServices());
+        this.forwardingConfiguration = forwardingConfiguration;
+        this.startThrottle = new StartThrottle(ObjectUtils.defaultIfNull(forwardingConfiguration.getMaxConcurrentStarts(), 8),
+                ObjectUtils.defaultIfNull(forwardingConfiguration.getStartsPerSecond(), 5));
+        portsMonitor.setMaximumLineCount(
+                ObjectUtils.defaultIfNull(forwardingConfiguration.getMonitorScrollback(), PortsMonitor.DEFAULT_MAXIMUM_LINE_COUNT));
+        List<ServiceConfiguration> loaded = new ArrayList<>(forwardingConfiguration.getServices());
+        for (ServiceConfiguration serviceConfiguration : loaded) {
+            slots.put(serviceConfiguration, ForwardingSlot.STOPPED);
+        }
+        SwingUtilities.invokeLater(() -> portsTable.setServices(loaded, this::handleToggle, this::readStatus));
+
+        // Point out configured services the cluster doesn't have - whatever the engine, the index also answers service discovery
+        synchronized (missingServices) {
+            missingServices.clear();
+        }
+        serviceIndex.start();
+        markMissingServices();
+
+        // Take over what a previous run left behind before looking for taken ports
+        List<ServiceConfiguration> adopted = adoptOrphans();
+
+        // Point out taken ports right away instead of on the first start
+        List<ServiceConfiguration> services = new ArrayList<>(forwardingConfiguration.getServices());
+        services.removeAll(adopted);
+        threadService.execute(() -> {
+            for (PortConflict conflict : portPreflight.findConflicts(services)) {
+                logMessage(conflict.describe());
+            }
+        });
+    }
+
+    /**
+     * Mark the loaded services the cluster doesn't have in the UI table. Does nothing until the service index is synced. The index only
+     * covers one context so services of other contexts are never marked. Only services whose mark changed are posted to the table.
+     */
+    private void markMissingServices() {
+        if (!serviceIndex.isSynced()) {
+            return;
+        }
+        String indexedContext = serviceIndex.getContext();
+        if (indexedContext == null) {
+            return;
         }
+        synchronized (missingServices) {
+            for (ServiceConfiguration serviceConfiguration : forwardingConfiguration.getServices()) {
+                String context = ObjectUtils.defaultIfNull(serviceConfiguration.getContext(), indexedContext);
+                Boolean missing = context.equals(indexedContext)
+                        && !serviceIndex.contains(serviceConfiguration.getServiceNamespace(), serviceConfiguration.getServiceName());
+                if (missing ? missingServices.add(serviceConfiguration) : missingServices.remove(serviceConfiguration)) {
+                    SwingUtilities.invokeLater(() -> portsTable.setServiceMissing(serviceConfiguration, missing));
+                }
+            }
+        }
+    }
 
-        // Clear the runnable map and add the new services
-        runnables.clear();
-        for (ServiceConfiguration serviceConfiguration : serviceConfigurations) {
-            SwingUtilities.invokeLater(() -> portsTable.addServiceToTable(serviceConfiguration,
-                    event -> handleToggle(serviceConfiguration, event.getStateChange() == ItemEvent.SELECTED)));
-            runnables.put(serviceConfiguration, null);
+    /**
+     * Collect the kubectl processes a previous run left behind. They are adopted or stopped once the services are loaded.
+     */
+    public void collectOrphans() {
+        loadLock.lock();
+        try {
+            orphans = runStateService.readOrphans();
+            if (!orphans.isEmpty()) {
+                logMessage("Found " + orphans.size() + " kubectl processes left behind by the previous run.");
+            }
+        } finally {
+            loadLock.unlock();
         }
     }
 
@@ -83,8 +362,197 @@ public final class ForwardingService {
      * 
      * @return true if services are loaded, false otherwise
      */
-    public synchronized Boolean areServicesLoaded() {
-        return !runnables.isEmpty();
+    public Boolean areServicesLoaded() {
+        return !slots.isEmpty();
+    }
+
+    /**
+     * Read the lifecycle state of a given service.
+     * 
+     * @param serviceConfiguration the service
+     * @return the state, stopped if the service isn't loaded
+     */
+    public ForwardingState readState(ServiceConfiguration serviceConfiguration) {
+        ForwardingSlot slot = slots.get(serviceConfiguration);
+        return slot != null ? slot.getState() : ForwardingState.STOPPED;
+    }
+
+    /**
+     * Adopt the collected orphans as running forwards of the loaded services. Orphans whose service isn't loaded anymore (or whose ports
+     * changed) are stopped instead.
+     * 
+     * @return the services that adopted an orphan
+     */
+    private List<ServiceConfiguration> adoptOrphans() {
+        List<ServiceConfiguration> adopted = new ArrayList<>();
+        for (RunStateEntry orphan : orphans) {
+            Optional<ProcessHandle> process = ProcessHandle.of(orphan.getPid());
+            if (process.isEmpty() || !process.get().isAlive()) {
+                runStateService.forgetProcess(orphan.getPid());
+                continue;
+            }
+
+            ServiceConfiguration serviceConfiguration = findOrphanService(orphan);
+            if (serviceConfiguration != null && adoptForwarding(serviceConfiguration, orphan, process.get())) {
+                adopted.add(serviceConfiguration);
+            } else if (Boolean.TRUE.equals(orphan.getProxy())) {
+                logMessage("Stopping kubernetes API proxy process " + orphan.getPid() + " left behind by the previous run.");
+                ProcessTree.destroy(process.get());
+                process.get().onExit().thenAccept(exited -> runStateService.forgetProcess(exited.pid()));
+            } else {
+                logMessage("Stopping kubectl process " + orphan.getPid() + " of " + orphan.getServiceName() + " ("
+                        + orphan.getServiceNamespace() + ") left behind by the previous run.");
+                ProcessTree.destroy(process.get());
+                process.get().onExit().thenAccept(exited -> runStateService.forgetProcess(exited.pid()));
+            }
+        }
+        orphans = new ArrayList<>();
+        return adopted;
+    }
+
+    /**
+     * Find the loaded service an orphan is forwarding for.
+     * 
+     * @param orphan the orphan
+     * @return the service, null if no loaded service forwards the same ports
+     */
+    private ServiceConfiguration findOrphanService(RunStateEntry orphan) {
+        for (ServiceConfiguration serviceConfiguration : slots.keySet()) {
+            if (serviceConfiguration.getServiceName().equals(orphan.getServiceName())
+                    && serviceConfiguration.getServiceNamespace().equals(orphan.getServiceNamespace())
+                    && Objects.equals(serviceConfiguration.getContext(), orphan.getContext())
+                    && serviceConfiguration.getPorts().equals(orphan.getPorts())) {
+                return serviceConfiguration;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adopt an orphan as the running forward of a given service. Does nothing unless the service is stopped.
+     * 
+     * @param serviceConfiguration the service
+     * @param orphan the orphan
+     * @param process the process of the orphan
+     * @return true if the orphan was adopted, false otherwise
+     */
+    private Boolean adoptForwarding(ServiceConfiguration serviceConfiguration, RunStateEntry orphan, ProcessHandle process) {
+        AdoptedForwardingRunnable forwarder = new AdoptedForwardingRunnable(serviceConfiguration, forwardingEventBus, runStateService,
+                orphan, process);
+        forwarder.setConnectionCounter(connectionStatistics.readCounter(serviceConfiguration));
+        forwarder.setStateConsumer(state -> handleStateChange(serviceConfiguration, forwarder, state));
+        if (!slots.replace(serviceConfiguration, ForwardingSlot.STOPPED, ForwardingSlot.starting(forwarder))) {
+            return false;
+        }
+        threadService.execute(forwarder);
+        SwingUtilities.invokeLater(() -> portsTable.setToggle(serviceConfiguration, true));
+        return true;
+    }
+
+    /**
+     * Start a given list of services through the start throttle.
+     * 
+     * @param services the services
+     * @param description description of the services for the user
+     */
+    private void startServices(List<ServiceConfiguration> services, String description) {
+        logMessage("Starting " + description + ".");
+        StartThrottle throttle = startThrottle;
+        long started = System.nanoTime();
+        List<CompletableFuture<ForwardingState>> starts = new ArrayList<>();
+        for (ServiceConfiguration serviceConfiguration : services) {
+            starts.add(threadService.supplyAsync(() -> startThrottled(serviceConfiguration, throttle)));
+        }
+
+        // Report once every start has settled
+        CompletableFuture.allOf(starts.toArray(new CompletableFuture<?>[0])).thenRun(() -> {
+            long ready = starts.stream().filter(start -> start.join() == ForwardingState.READY).count();
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+            logMessage("Started " + description + " in " + elapsedMillis + " ms (" + ready + " of " + starts.size() + " ready).");
+        });
+    }
+
+    /**
+     * Start a single service once the start throttle lets it through and wait until the start settled.
+     * 
+     * @param serviceConfiguration the service
+     * @param throttle the start throttle
+     * @return the state the start settled in
+     */
+    private ForwardingState startThrottled(ServiceConfiguration serviceConfiguration, StartThrottle throttle) {
+        try {
+            throttle.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return readState(serviceConfiguration);
+        }
+        try {
+            ForwardingSlot slot = slots.get(serviceConfiguration);
+            if (slot == null) {
+                return ForwardingState.STOPPED;
+            }
+            if (enableForwarding(serviceConfiguration)) {
+                SwingUtilities.invokeLater(() -> portsTable.setToggle(serviceConfiguration, true));
+                slot = slots.get(serviceConfiguration);
+            }
+            return slot.getSettled().get(START_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return readState(serviceConfiguration);
+        } catch (ExecutionException | TimeoutException e) {
+            return readState(serviceConfiguration);
+        } finally {
+            throttle.release();
+        }
+    }
+
+    /**
+     * Replace the factory the forwarders are built with. Meant for tests that drive the slot state machine without kubectl.
+     * 
+     * @param forwarderFactory factory building the forwarder of a service
+     */
+    void setForwarderFactory(Function<ServiceConfiguration, Forwarder> forwarderFactory) {
+        this.forwarderFactory = forwarderFactory;
+    }
+
+    /**
+     * Replace the collaborators the slot state machine needs. Meant for tests that drive the slot state machine without an application
+     * context - the UI components only need to exist, they're never shown.
+     * 
+     * @param threadService the thread service
+     * @param portPreflight the port preflight
+     * @param portsTable the ports table
+     * @param portsMonitor the ports monitor
+     */
+    void setCollaborators(ThreadService threadService, PortPreflight portPreflight, PortsTable portsTable, PortsMonitor portsMonitor) {
+        this.threadService = threadService;
+        this.portPreflight = portPreflight;
+        this.portsTable = portsTable;
+        this.portsMonitor = portsMonitor;
+    }
+
+    /**
+     * Load the services of a given forwarding configuration as stopped slots and nothing else - no UI, orphans, statistics or service
+     * index. Meant for tests that drive the slot state machine.
+     * 
+     * @param forwardingConfiguration the forwarding configuration
+     */
+    void loadSlots(ForwardingConfiguration forwardingConfiguration) {
+        this.forwardingConfiguration = forwardingConfiguration;
+        slots.clear();
+        for (ServiceConfiguration serviceConfiguration : forwardingConfiguration.getServices()) {
+            slots.put(serviceConfiguration, ForwardingSlot.STOPPED);
+        }
+    }
+
+    /**
+     * Read the current slot of a given service. Meant for tests that check the slot state machine.
+     * 
+     * @param serviceConfiguration the service
+     * @return the slot, null if the service isn't loaded
+     */
+    ForwardingSlot readSlot(ServiceConfiguration serviceConfiguration) {
+        return slots.get(serviceConfiguration);
     }
 
     /**
@@ -93,7 +561,7 @@ public final class ForwardingService {
      * @param serviceConfiguration the service that was toggled
      * @param checked whether or not the checkbox is checked
      */
-    private synchronized void handleToggle(ServiceConfiguration serviceConfiguration, Boolean checked) {
+    private void handleToggle(ServiceConfiguration serviceConfiguration, Boolean checked) {
         if (checked) {
             enableForwarding(serviceConfiguration);
         } else {
@@ -102,32 +570,222 @@ public final class ForwardingService {
     }
 
     /**
-     * Enable the forwarding for a given service.
+     * Enable the forwarding for a given service. Does nothing unless the service is stopped or failed.
+     * 
+     * @param serviceConfiguration the service
+     * @return true if the forwarding was enabled, false if there was nothing to do
+     */
+    Boolean enableForwarding(ServiceConfiguration serviceConfiguration) {
+        Forwarder forwarder = null;
+        while (true) {
+            ForwardingSlot current = slots.get(serviceConfiguration);
+
+            // Starting again is also how a running forwarder reports a restart, so only the stopped states count here
+            if (current == null || current.getState().isActive() || !current.getState().canTransitionTo(ForwardingState.STARTING)) {
+                return false;
+            }
+            if (forwarder == null) {
+                Forwarder newForwarder = forwarderFactory.apply(serviceConfiguration);
+                newForwarder.setStateConsumer(state -> handleStateChange(serviceConfiguration, newForwarder, state));
+                forwarder = newForwarder;
+            }
+            if (slots.replace(serviceConfiguration, current, ForwardingSlot.starting(forwarder))) {
+                log.info("Enabling forwarding for " + serviceConfiguration + ".");
+                Forwarder startedForwarder = forwarder;
+                threadService.execute(() -> runForwarder(serviceConfiguration, startedForwarder));
+                startProbe(serviceConfiguration, startedForwarder);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Run a forwarder unless one of the local ports of its service is already taken. A taken port fails the service right away.
      * 
      * @param serviceConfiguration the service
+     * @param forwarder the forwarder
      */
-    private synchronized void enableForwarding(ServiceConfiguration serviceConfiguration) {
-        ForwardingRunnable runnable = runnables.get(serviceConfiguration);
-        if (runnable == null || !runnable.isAlive()) {
-            log.info("Enabling forwarding for " + serviceConfiguration + ".");
-            runnable = new ForwardingRunnable(serviceConfiguration, portsTable, portsMonitor, kubernetesGateway);
-            runnables.put(serviceConfiguration, runnable);
-            new Thread(runnable).start();
+    private void runForwarder(ServiceConfiguration serviceConfiguration, Forwarder forwarder) {
+        List<PortConflict> conflicts = portPreflight.findConflicts(Collections.singletonList(serviceConfiguration));
+        if (!conflicts.isEmpty()) {
+            for (PortConflict conflict : conflicts) {
+                logMessage(conflict.describe() + " Not starting port forwarding.");
+            }
+            handleStateChange(serviceConfiguration, forwarder, ForwardingState.FAILED);
+            return;
         }
+        forwarder.run();
     }
 
     /**
-     * Disable the forwarding for a given service.
+     * Disable the forwarding for a given service without waiting for it to be gone. Does nothing unless the service is starting or
+     * ready.
      * 
      * @param serviceConfiguration the service
+     * @return true if the forwarding was disabled, false if there was nothing to do
      */
-    private synchronized void disableForwarding(ServiceConfiguration serviceConfiguration) {
-        ForwardingRunnable runnable = runnables.get(serviceConfiguration);
-        if (runnable != null && runnable.isAlive()) {
-            log.info("Disabling forwarding for " + serviceConfiguration + ".");
-            runnable.kill();
-            runnables.put(serviceConfiguration, null);
+    Boolean disableForwarding(ServiceConfiguration serviceConfiguration) {
+        return disableForwarding(serviceConfiguration, 0);
+    }
+
+    /**
+     * Disable the forwarding for a given service. Does nothing unless the service is starting or ready.
+     * 
+     * @param serviceConfiguration the service
+     * @param shutdownTimeoutMillis how long to wait for the forwarding to be gone before killing it forcibly, 0 to not wait at all
+     * @return true if the forwarding was disabled, false if there was nothing to do
+     */
+    private Boolean disableForwarding(ServiceConfiguration serviceConfiguration, long shutdownTimeoutMillis) {
+        while (true) {
+            ForwardingSlot current = slots.get(serviceConfiguration);
+            if (current == null || !current.getState().isActive()) {
+                return false;
+            }
+            ForwardingSlot stopping = current.transitionTo(ForwardingState.STOPPING);
+            if (slots.replace(serviceConfiguration, current, stopping)) {
+                log.info("Disabling forwarding for " + serviceConfiguration + ".");
+                if (shutdownTimeoutMillis > 0) {
+                    stopping.getForwarder().shutdown(shutdownTimeoutMillis, TimeUnit.MILLISECONDS);
+                } else {
+                    stopping.getForwarder().kill();
+                }
+                slots.replace(serviceConfiguration, stopping, ForwardingSlot.STOPPED);
+                stopping.getSettled().complete(ForwardingState.STOPPED);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Handle a lifecycle change reported by a forwarder. Reports of forwarders that have since been replaced are ignored.
+     * 
+     * @param serviceConfiguration the service
+     * @param forwarder the forwarder reporting the change
+     * @param state the new state
+     */
+    private void handleStateChange(ServiceConfiguration serviceConfiguration, Forwarder forwarder, ForwardingState state) {
+        while (true) {
+            ForwardingSlot current = slots.get(serviceConfiguration);
+            if (current == null || current.getForwarder() != forwarder || !current.getState().canTransitionTo(state)) {
+                return;
+            }
+            ForwardingSlot next = current.transitionTo(state);
+            if (slots.replace(serviceConfiguration, current, next)) {
+                log.debug("Forwarding for " + serviceConfiguration + " is now " + state + ".");
+                if (state == ForwardingState.READY) {
+                    logMessage("Port forwarding ready for " + serviceConfiguration + " after " + next.getTimeToReadyMillis() + " ms.");
+                }
+                if (state != ForwardingState.STARTING) {
+                    current.getSettled().complete(state);
+                } else if (current.getState() == ForwardingState.READY) {
+                    // Restarting on its own - probe again until the new process reports its ports
+                    startProbe(serviceConfiguration, forwarder);
+                }
+
+                // Uncheck the box unless the stop came from the box in the first place - done here rather than on the exit event since
+                // only the slot knows whether this forwarder is still the current one
+                Boolean ended = state == ForwardingState.FAILED || state == ForwardingState.STOPPED;
+                if (ended && current.getState() != ForwardingState.STOPPING) {
+                    SwingUtilities.invokeLater(() -> portsTable.setToggle(serviceConfiguration, false));
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Start the fallback readiness check for a starting forwarder. Only kubectl forwards need it - the in-process ones know when they're
+     * ready.
+     * 
+     * @param serviceConfiguration the service
+     * @param forwarder the forwarder
+     */
+    private void startProbe(ServiceConfiguration serviceConfiguration, Forwarder forwarder) {
+        if (forwardingConfiguration.getEngine() != ForwardingEngine.NATIVE && !Boolean.TRUE.equals(forwardingConfiguration.getLazy())) {
+            threadService.execute(() -> probeReadiness(serviceConfiguration, forwarder));
+        }
+    }
+
+    /**
+     * Fallback readiness check for kubectl forwards. Once the forwarder has been starting for a while without reporting its ports, the
+     * local ports are probed and the forwarder is marked ready once all of them accept connections. Stops as soon as the forwarder is
+     * ready or gone - a restart starts a new check.
+     * 
+     * @param serviceConfiguration the service
+     * @param forwarder the forwarder
+     */
+    private void probeReadiness(ServiceConfiguration serviceConfiguration, Forwarder forwarder) {
+        try {
+            Thread.sleep(PROBE_DELAY_MILLIS);
+            while (true) {
+                ForwardingSlot slot = slots.get(serviceConfiguration);
+                if (slot == null || slot.getForwarder() != forwarder || slot.getState() != ForwardingState.STARTING) {
+                    return;
+                }
+                if (portsAcceptConnections(serviceConfiguration)) {
+                    log.debug("Local ports of " + serviceConfiguration + " accept connections.");
+                    handleStateChange(serviceConfiguration, forwarder, ForwardingState.READY);
+                    return;
+                }
+                Thread.sleep(PROBE_INTERVAL_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Check if all local ports of a given service accept connections.
+     * 
+     * @param serviceConfiguration the service
+     * @return true if all ports accept connections, false otherwise
+     */
+    private Boolean portsAcceptConnections(ServiceConfiguration serviceConfiguration) {
+        for (PortConfiguration port : serviceConfiguration.getPorts()) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(port.getLocal())),
+                        PROBE_CONNECT_TIMEOUT_MILLIS);
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Build a forwarder for a given service based on the loaded forwarding configuration.
+     * 
+     * @param serviceConfiguration the service
+     * @return the forwarder
+     */
+    private Forwarder buildForwarder(ServiceConfiguration serviceConfiguration) {
+        Forwarder forwarder = null;
+        if (forwardingConfiguration.getEngine() == ForwardingEngine.NATIVE) {
+            forwarder = new NativeForwardingRunnable(serviceConfiguration, forwardingEventBus, kubernetesApiClient, nativeForwardingEngine,
+                    threadService);
+        } else if (Boolean.TRUE.equals(forwardingConfiguration.getLazy())) {
+            Integer idleTimeoutSeconds = forwardingConfiguration.getIdleTimeoutSeconds() != null
+                    ? forwardingConfiguration.getIdleTimeoutSeconds()
+                    : 300;
+            forwarder = new LazyForwardingRunnable(serviceConfiguration, forwardingEventBus, kubernetesGateway, runStateService,
+                    nativeForwardingEngine, threadService, idleTimeoutSeconds);
+        } else if (!Boolean.FALSE.equals(forwardingConfiguration.getAutoRestart())) {
+            forwarder = new ForwardingSupervisor(serviceConfiguration, forwardingEventBus, kubernetesGateway, runStateService);
+        } else {
+            forwarder = new ForwardingRunnable(serviceConfiguration, forwardingEventBus, kubernetesGateway, runStateService);
         }
+        forwarder.setConnectionCounter(connectionStatistics.readCounter(serviceConfiguration));
+        return forwarder;
+    }
+
+    /**
+     * Log a message to the log and also the ports monitor.
+     * 
+     * @param message the message
+     */
+    private void logMessage(String message) {
+        log.info(message);
+        portsMonitor.addMessage(message);
     }
 
 }
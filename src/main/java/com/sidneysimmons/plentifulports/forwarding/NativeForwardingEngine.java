@@ -0,0 +1,199 @@
+package com.sidneysimmons.plentifulports.forwarding;
+
+import com.sidneysimmons.plentifulports.forwarding.domain.ForwardingListener;
+import com.sidneysimmons.plentifulports.forwarding.domain.SelectorHandler;
+import com.sidneysimmons.plentifulports.forwarding.domain.TunnelFactory;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+/**
+ * Engine for serving local ports in-process. Every local listener and every tunnel of every service is served by one shared selector
+ * thread. Used by native forwarding and by lazy kubectl forwarding.
+ * 
+ * @author Sidney Simmons
+ */
+@Slf4j
+@Component("nativeForwardingEngine")
+public class NativeForwardingEngine {
+
+    private static final long MIN_SELECT_BACKOFF_MILLIS = 10;
+    private static final long MAX_SELECT_BACKOFF_MILLIS = 1000;
+    private static final int MAX_SELECT_FAILURES = 20;
+
+    private Selector selector;
+    private Thread selectorThread;
+    private volatile boolean running = false;
+    private Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+
+    @PostConstruct
+    public void initialize() throws IOException {
+        log.info("Starting native forwarding engine.");
+        selector = Selector.open();
+        running = true;
+        selectorThread = new Thread(this::runSelector, "forwarding-selector");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    @PreDestroy
+    public void destroy() {
+        log.info("Shutting down native forwarding engine.");
+        running = false;
+        selector.wakeup();
+        try {
+            selectorThread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Bind a local port and start accepting connections on it. Binding happens on the calling thread so that conflicts surface right away.
+     * 
+     * @param localPort the local port
+     * @param tunnelFactory the factory for the tunnels of accepted connections
+     * @param messageConsumer consumer for messages meant for the user
+     * @return the listener
+     * @throws IOException thrown if the port can't be bound or the engine has shut down
+     */
+    public ForwardingListener openListener(Integer localPort, TunnelFactory tunnelFactory, Consumer<String> messageConsumer)
+            throws IOException {
+        // Nobody would ever accept on the port once the selector thread is gone
+        if (!running) {
+            throw new IOException("Native forwarding engine isn't running.");
+        }
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), localPort));
+            serverChannel.configureBlocking(false);
+        } catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+        ForwardingListener listener = new ForwardingListener(localPort, serverChannel, tunnelFactory, messageConsumer);
+        execute(() -> listener.register(selector));
+        return listener;
+    }
+
+    /**
+     * Close a given listener along with all of its tunnels.
+     * 
+     * @param listener the listener
+     */
+    public void closeListener(ForwardingListener listener) {
+        execute(listener::close);
+    }
+
+    /**
+     * Execute a given task on the selector thread.
+     * 
+     * @param task the task
+     */
+    public void execute(Runnable task) {
+        pendingTasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Run the selector loop until the engine is destroyed.
+     */
+    private void runSelector() {
+        int selectFailures = 0;
+        while (running) {
+            try {
+                selector.select();
+                selectFailures = 0;
+            } catch (IOException e) {
+                // Back off instead of spinning on a selector that keeps failing and give up once it's clearly broken
+                selectFailures++;
+                if (selectFailures >= MAX_SELECT_FAILURES) {
+                    log.error("Native forwarding selector failed " + selectFailures + " times in a row - shutting the engine down.", e);
+                    running = false;
+                    break;
+                }
+                long backoffMillis = Math.min(MIN_SELECT_BACKOFF_MILLIS << (selectFailures - 1), MAX_SELECT_BACKOFF_MILLIS);
+                log.error("Native forwarding selector failed - retrying in " + backoffMillis + "ms.", e);
+                try {
+                    TimeUnit.MILLISECONDS.sleep(backoffMillis);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    running = false;
+                    break;
+                }
+                continue;
+            }
+
+            runPendingTasks();
+
+            // Handle the ready keys
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                SelectorHandler handler = (SelectorHandler) key.attachment();
+                try {
+                    if (key.isValid()) {
+                        handler.handle(key);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // Only the failing handler is closed - a failing tunnel never takes its listener down with it
+                    log.debug("Native forwarding channel failed.", e);
+                    closeQuietly(handler);
+                }
+            }
+        }
+
+        // Close everything that's still registered, including listeners that were opened while the selector was failing
+        runPendingTasks();
+        for (SelectionKey key : new ArrayList<>(selector.keys())) {
+            closeQuietly((SelectorHandler) key.attachment());
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            log.debug("Can't close the native forwarding selector.", e);
+        }
+    }
+
+    /**
+     * Run the tasks handed to the selector thread.
+     */
+    private void runPendingTasks() {
+        Runnable task = null;
+        while ((task = pendingTasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.error("Native forwarding task failed.", e);
+            }
+        }
+    }
+
+    /**
+     * Close a given handler. Errors are only logged so they can't take the selector thread down.
+     * 
+     * @param handler the handler
+     */
+    private static void closeQuietly(SelectorHandler handler) {
+        try {
+            handler.close();
+        } catch (RuntimeException e) {
+            log.error("Can't close native forwarding channel.", e);
+        }
+    }
+
+}
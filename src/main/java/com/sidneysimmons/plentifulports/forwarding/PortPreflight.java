@@ -0,0 +1,237 @@
+package com.sidneysimmons.plentifulports.forwarding;
+
+import com.sidneysimmons.plentifulports.forwarding.domain.PortConflict;
+import com.sidneysimmons.plentifulports.settings.domain.PortConfiguration;
+import com.sidneysimmons.plentifulports.settings.domain.ServiceConfiguration;
+import com.sidneysimmons.plentifulports.thread.ThreadService;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.SystemUtils;
+import org.springframework.stereotype.Component;
+
+/**
+ * Pre-flight check of local ports. Finds out in-process whether the local ports of services are free before anything is spawned for
+ * them, and who holds them if they aren't.
+ * 
+ * @author Sidney Simmons
+ */
+@Slf4j
+@Component("portPreflight")
+public class PortPreflight {
+
+    private static final String LINUX_LISTEN_STATE = "0A";
+
+    @Resource(name = "threadService")
+    private ThreadService threadService;
+
+    /**
+     * Find the local ports of the given services that are already taken. The ports are probed in parallel.
+     * 
+     * @param services the services
+     * @return the conflicts, empty if all ports are free
+     */
+    public List<PortConflict> findConflicts(Collection<ServiceConfiguration> services) {
+        List<CompletableFuture<PortConflict>> checks = new ArrayList<>();
+        for (ServiceConfiguration serviceConfiguration : services) {
+            for (PortConfiguration port : serviceConfiguration.getPorts()) {
+                Integer localPort = Integer.valueOf(port.getLocal());
+                checks.add(threadService.supplyAsync(() -> checkPort(serviceConfiguration, localPort)));
+            }
+        }
+
+        List<PortConflict> conflicts = new ArrayList<>();
+        for (CompletableFuture<PortConflict> check : checks) {
+            PortConflict conflict = check.join();
+            if (conflict != null) {
+                conflicts.add(conflict);
+            }
+        }
+        return conflicts;
+    }
+
+    /**
+     * Check if a given local port is free by binding it the same way kubectl does.
+     * 
+     * @param localPort the local port
+     * @return true if the port is free, false otherwise
+     */
+    public Boolean isPortFree(Integer localPort) {
+        try (ServerSocket socket = new ServerSocket()) {
+            socket.setReuseAddress(true);
+            socket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), localPort), 1);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Check a single local port of a service.
+     * 
+     * @param serviceConfiguration the service
+     * @param localPort the local port
+     * @return the conflict, null if the port is free
+     */
+    private PortConflict checkPort(ServiceConfiguration serviceConfiguration, Integer localPort) {
+        if (isPortFree(localPort)) {
+            return null;
+        }
+        Long ownerPid = findOwnerPid(localPort);
+        String ownerName = ownerPid != null ? readProcessName(ownerPid) : null;
+        return new PortConflict(serviceConfiguration, localPort, ownerPid, ownerName);
+    }
+
+    /**
+     * Find the process listening on a given local port.
+     * 
+     * @param localPort the local port
+     * @return the process ID, null if it can't be found
+     */
+    private Long findOwnerPid(Integer localPort) {
+        try {
+            if (SystemUtils.IS_OS_LINUX) {
+                return findOwnerPidFromProc(localPort);
+            } else if (SystemUtils.IS_OS_WINDOWS) {
+                return findOwnerPidFromNetstat(localPort);
+            } else {
+                return findOwnerPidFromLsof(localPort);
+            }
+        } catch (Exception e) {
+            log.debug("Can't find the owner of port " + localPort + ".", e);
+            return null;
+        }
+    }
+
+    /**
+     * Find the process listening on a given local port through the proc filesystem. Processes of other users can't be seen.
+     * 
+     * @param localPort the local port
+     * @return the process ID, null if it can't be found
+     * @throws IOException thrown if the proc filesystem can't be read
+     */
+    private Long findOwnerPidFromProc(Integer localPort) throws IOException {
+        // Find the inodes of the listening sockets
+        Set<String> inodes = new HashSet<>();
+        for (String table : new String[] { "/proc/net/tcp", "/proc/net/tcp6" }) {
+            Path tablePath = Paths.get(table);
+            if (!Files.isReadable(tablePath)) {
+                continue;
+            }
+            List<String> lines = Files.readAllLines(tablePath);
+            for (String line : lines.subList(1, lines.size())) {
+                String[] columns = StringUtils.split(line);
+                if (columns.length > 9 && LINUX_LISTEN_STATE.equals(columns[3])
+                        && Integer.parseInt(StringUtils.substringAfterLast(columns[1], ":"), 16) == localPort) {
+                    inodes.add("socket:[" + columns[9] + "]");
+                }
+            }
+        }
+        if (inodes.isEmpty()) {
+            return null;
+        }
+
+        // Find the process holding one of them
+        try (DirectoryStream<Path> processes = Files.newDirectoryStream(Paths.get("/proc"),
+                path -> StringUtils.isNumeric(path.getFileName().toString()))) {
+            for (Path process : processes) {
+                try (DirectoryStream<Path> descriptors = Files.newDirectoryStream(process.resolve("fd"))) {
+                    for (Path descriptor : descriptors) {
+                        if (inodes.contains(Files.readSymbolicLink(descriptor).toString())) {
+                            return Long.valueOf(process.getFileName().toString());
+                        }
+                    }
+                } catch (IOException | SecurityException e) {
+                    // Not our process or it's gone already
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find the process listening on a given local port through lsof.
+     * 
+     * @param localPort the local port
+     * @return the process ID, null if it can't be found
+     * @throws IOException thrown if lsof can't be run
+     * @throws InterruptedException thrown if interrupted while waiting for lsof
+     */
+    private Long findOwnerPidFromLsof(Integer localPort) throws IOException, InterruptedException {
+        for (String line : readCommandOutput("lsof", "-nP", "-t", "-iTCP:" + localPort, "-sTCP:LISTEN")) {
+            if (StringUtils.isNumeric(line)) {
+                return Long.valueOf(line);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find the process listening on a given local port through netstat.
+     * 
+     * @param localPort the local port
+     * @return the process ID, null if it can't be found
+     * @throws IOException thrown if netstat can't be run
+     * @throws InterruptedException thrown if interrupted while waiting for netstat
+     */
+    private Long findOwnerPidFromNetstat(Integer localPort) throws IOException, InterruptedException {
+        for (String line : readCommandOutput("netstat", "-ano", "-p", "TCP")) {
+            String[] columns = StringUtils.split(line);
+            if (columns.length == 5 && "LISTENING".equals(columns[3]) && columns[1].endsWith(":" + localPort)
+                    && StringUtils.isNumeric(columns[4])) {
+                return Long.valueOf(columns[4]);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Read the name of a given process.
+     * 
+     * @param pid the process ID
+     * @return the name, null if it can't be read
+     */
+    private String readProcessName(Long pid) {
+        return ProcessHandle.of(pid).flatMap(handle -> handle.info().command()).map(FilenameUtils::getName).orElse(null);
+    }
+
+    /**
+     * Run a command and read its trimmed output lines.
+     * 
+     * @param command the command
+     * @return the output lines
+     * @throws IOException thrown if the command can't be run
+     * @throws InterruptedException thrown if interrupted while waiting for the command
+     */
+    private List<String> readCommandOutput(String... command) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader inputReader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line = null;
+            while ((line = inputReader.readLine()) != null) {
+                lines.add(line.trim());
+            }
+        }
+        process.waitFor(5, TimeUnit.SECONDS);
+        return lines;
+    }
+
+}
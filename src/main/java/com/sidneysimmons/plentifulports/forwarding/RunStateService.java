@@ -0,0 +1,225 @@
+package com.sidneysimmons.plentifulports.forwarding;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sidneysimmons.plentifulports.forwarding.domain.RunStateEntry;
+import com.sidneysimmons.plentifulports.settings.domain.PortConfiguration;
+import com.sidneysimmons.plentifulports.settings.domain.ServiceConfiguration;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import javax.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FilenameUtils;
+import org.springframework.stereotype.Component;
+
+/**
+ * Service for the run-state file. Every kubectl process the application spawns is recorded in the file until it exits, so the processes
+ * left behind by a crashed run can be found again on the next start.
+ * 
+ * @author Sidney Simmons
+ */
+@Slf4j
+@Component("runStateService")
+public class RunStateService {
+
+    private static final long START_INSTANT_TOLERANCE_MILLIS = 1000;
+
+    @Resource(name = "objectMapper")
+    private ObjectMapper objectMapper;
+
+    private Map<Long, RunStateEntry> entries = new LinkedHashMap<>();
+
+    /**
+     * Create a fresh output file for a kubectl process of a given service.
+     * 
+     * @param serviceConfiguration the service
+     * @return the output file
+     * @throws IOException thrown if the file can't be created
+     */
+    public Path createOutputFile(ServiceConfiguration serviceConfiguration) throws IOException {
+        Path outputDirectory = resolveOutputDirectory();
+        Files.createDirectories(outputDirectory);
+        return Files.createTempFile(outputDirectory,
+                serviceConfiguration.getServiceNamespace() + "." + serviceConfiguration.getServiceName() + "-", ".log");
+    }
+
+    /**
+     * Record a kubectl process that was just spawned.
+     * 
+     * @param serviceConfiguration the service the process is forwarding
+     * @param process the process
+     * @param outputFile the output file of the process
+     */
+    public synchronized void recordProcess(ServiceConfiguration serviceConfiguration, Process process, Path outputFile) {
+        RunStateEntry entry = createEntry(process);
+        entry.setServiceName(serviceConfiguration.getServiceName());
+        entry.setServiceNamespace(serviceConfiguration.getServiceNamespace());
+        entry.setContext(serviceConfiguration.getContext());
+        for (PortConfiguration port : serviceConfiguration.getPorts()) {
+            entry.getPorts().add(new PortConfiguration(port.getLocal(), port.getRemote()));
+        }
+        entry.setOutputFile(outputFile.toString());
+        entries.put(entry.getPid(), entry);
+        writeEntries();
+    }
+
+    /**
+     * Record a kubectl proxy process that was just spawned. A proxy left behind by a crashed run is never adopted, it's only recorded so
+     * the next run can stop it.
+     * 
+     * @param context the context the proxy is serving, null for the current context
+     * @param process the process
+     */
+    public synchronized void recordProxyProcess(String context, Process process) {
+        RunStateEntry entry = createEntry(process);
+        entry.setContext(context);
+        entry.setProxy(true);
+        entries.put(entry.getPid(), entry);
+        writeEntries();
+    }
+
+    /**
+     * Forget a kubectl process once it's gone. Its output file is deleted as well.
+     * 
+     * @param pid the process ID
+     */
+    public synchronized void forgetProcess(long pid) {
+        RunStateEntry entry = entries.remove(pid);
+        if (entry != null) {
+            deleteOutputFile(entry);
+            writeEntries();
+        }
+    }
+
+    /**
+     * Read the kubectl processes of a previous run that are still alive. A recorded process only counts if it's still the same
+     * process, i.e. its start time and command match - process IDs get reused. Entries of processes that are gone are dropped.
+     * 
+     * @return the orphaned processes
+     */
+    public synchronized List<RunStateEntry> readOrphans() {
+        File runStateFile = resolveRunStateFile();
+        if (!runStateFile.exists()) {
+            return new ArrayList<>();
+        }
+
+        List<RunStateEntry> recorded = null;
+        try {
+            recorded = objectMapper.readValue(runStateFile, new TypeReference<List<RunStateEntry>>() {});
+        } catch (IOException e) {
+            log.warn("Can't read the run-state file - ignoring it.", e);
+            recorded = new ArrayList<>();
+        }
+
+        List<RunStateEntry> orphans = new ArrayList<>();
+        for (RunStateEntry entry : recorded) {
+            if (entry.getPid() != null && isSameProcess(entry, ProcessHandle.of(entry.getPid()))) {
+                entries.put(entry.getPid(), entry);
+                orphans.add(entry);
+            } else {
+                deleteOutputFile(entry);
+            }
+        }
+        writeEntries();
+        return orphans;
+    }
+
+    /**
+     * Resolve the run-state file. The file is located next to the settings file and is replaced as a whole on every change.
+     * 
+     * @return the run-state file
+     */
+    public File resolveRunStateFile() {
+        return new File(System.getProperty("user.home") + "/.plentiful-ports/run-state.json");
+    }
+
+    /**
+     * Create an entry for a process that was just spawned.
+     * 
+     * @param process the process
+     * @return the entry
+     */
+    private static RunStateEntry createEntry(Process process) {
+        RunStateEntry entry = new RunStateEntry();
+        entry.setPid(process.pid());
+        entry.setStartInstant(process.info().startInstant().map(Instant::toEpochMilli).orElse(null));
+        return entry;
+    }
+
+    /**
+     * Check if a live process is still the one recorded in a given entry.
+     * 
+     * @param entry the entry
+     * @param handle the process, empty if there's no such process
+     * @return true if it's the same process, false otherwise
+     */
+    private static Boolean isSameProcess(RunStateEntry entry, Optional<ProcessHandle> handle) {
+        if (handle.isEmpty() || !handle.get().isAlive()) {
+            return false;
+        }
+        ProcessHandle.Info info = handle.get().info();
+        Optional<Instant> startInstant = info.startInstant();
+        Optional<String> command = info.command();
+        if (startInstant.isEmpty() && command.isEmpty()) {
+            // Nothing to tell a reused process ID apart with - better to leave it alone
+            return false;
+        }
+        if (startInstant.isPresent() && (entry.getStartInstant() == null
+                || Math.abs(startInstant.get().toEpochMilli() - entry.getStartInstant()) > START_INSTANT_TOLERANCE_MILLIS)) {
+            return false;
+        }
+        return command.isEmpty() || FilenameUtils.getBaseName(command.get()).equals("kubectl");
+    }
+
+    /**
+     * Write the recorded entries to the run-state file. The file is written next to the real one first and then moved over it so a
+     * crash never leaves a half written file behind.
+     */
+    private void writeEntries() {
+        Path runStateFile = resolveRunStateFile().toPath();
+        try {
+            Files.createDirectories(runStateFile.getParent());
+            Path temporaryFile = runStateFile.resolveSibling(runStateFile.getFileName() + ".tmp");
+            objectMapper.writerWithDefaultPrettyPrinter().writeValue(temporaryFile.toFile(), new ArrayList<>(entries.values()));
+            Files.move(temporaryFile, runStateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Can't write the run-state file.", e);
+        }
+    }
+
+    /**
+     * Delete the output file of a given entry and ignore any errors.
+     * 
+     * @param entry the entry
+     */
+    private static void deleteOutputFile(RunStateEntry entry) {
+        if (entry.getOutputFile() == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(Paths.get(entry.getOutputFile()));
+        } catch (IOException e) {
+            log.debug("Can't delete output file " + entry.getOutputFile() + ".", e);
+        }
+    }
+
+    /**
+     * Resolve the directory holding the output files of the kubectl processes.
+     * 
+     * @return the output directory
+     */
+    private static Path resolveOutputDirectory() {
+        return Paths.get(System.getProperty("user.home"), ".plentiful-ports", "output");
+    }
+
+}
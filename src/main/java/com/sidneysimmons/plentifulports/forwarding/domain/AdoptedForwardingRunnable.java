@@ -0,0 +1,162 @@
+package com.sidneysimmons.plentifulports.forwarding.domain;
+
+import com.sidneysimmons.plentifulports.forwarding.ForwardingEventBus;
+import com.sidneysimmons.plentifulports.forwarding.RunStateService;
+import com.sidneysimmons.plentifulports.settings.domain.ServiceConfiguration;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Runnable that takes over a kubectl process left behind by a previous run. The process is already forwarding so nothing is spawned -
+ * running it just follows the process output until the process exits.
+ * 
+ * @author Sidney Simmons
+ */
+@Slf4j
+public class AdoptedForwardingRunnable implements Forwarder {
+
+    private ServiceConfiguration serviceConfiguration;
+    private ForwardingEventBus eventBus;
+    private RunStateService runStateService;
+    private RunStateEntry runStateEntry;
+    private ProcessHandle process;
+
+    private volatile boolean isAlive = false;
+    private volatile boolean killed = false;
+    private Consumer<ForwardingState> stateConsumer;
+    private ConnectionCounter connectionCounter;
+
+    /**
+     * Constructor.
+     * 
+     * @param serviceConfiguration the service configuration
+     * @param eventBus the forwarding event bus
+     * @param runStateService the run-state service
+     * @param runStateEntry the run-state entry of the orphaned process
+     * @param process the orphaned process
+     */
+    public AdoptedForwardingRunnable(ServiceConfiguration serviceConfiguration, ForwardingEventBus eventBus,
+            RunStateService runStateService, RunStateEntry runStateEntry, ProcessHandle process) {
+        this.serviceConfiguration = serviceConfiguration;
+        this.eventBus = eventBus;
+        this.runStateService = runStateService;
+        this.runStateEntry = runStateEntry;
+        this.process = process;
+    }
+
+    @Override
+    public void run() {
+        // Set the alive flag to true unless we were killed before starting
+        synchronized (this) {
+            if (killed) {
+                notifyState(ForwardingState.STOPPED);
+                return;
+            }
+            isAlive = true;
+        }
+        logMessage(ForwardingEventType.STARTED,
+                "Adopted kubectl process " + process.pid() + " of the previous run for " + serviceConfiguration + ".");
+        notifyState(ForwardingState.READY);
+
+        try {
+            // Follow the output from where it is now - without it just wait for the exit
+            Path outputFile = runStateEntry.getOutputFile() != null ? Paths.get(runStateEntry.getOutputFile()) : null;
+            if (outputFile != null && Files.exists(outputFile)) {
+                try (OutputTail outputTail = new OutputTail(outputFile, process, true)) {
+                    while (outputTail.nextLine()) {
+                        int connectionPort =
+                                ForwardingLineParser.parseConnectionPort(outputTail.getLineBytes(), outputTail.getLineLength());
+                        if (connectionPort >= 0) {
+                            if (connectionCounter != null) {
+                                connectionCounter.record(connectionPort);
+                            }
+                            eventBus.publish(
+                                    new ForwardingEvent(ForwardingEventType.CONNECTION_HANDLED, serviceConfiguration, connectionPort));
+                            continue;
+                        }
+                        String line = outputTail.getLine();
+                        if (StringUtils.isNotBlank(line)) {
+                            eventBus.publish(new ForwardingEvent(ForwardingEventType.OUTPUT, serviceConfiguration, line.trim()));
+                        }
+                    }
+                }
+            } else {
+                process.onExit().join();
+            }
+        } catch (Exception e) {
+            log.error("Adopted forwarding did not shut down gracefully.", e);
+        }
+        process.onExit().thenAccept(exited -> runStateService.forgetProcess(exited.pid()));
+
+        // Set the alive flag to false
+        isAlive = false;
+        logMessage(ForwardingEventType.EXITED, "Port forwarding stopped for " + serviceConfiguration + ".");
+        notifyState(killed ? ForwardingState.STOPPED : ForwardingState.FAILED);
+    }
+
+    @Override
+    public synchronized void kill() {
+        killed = true;
+        if (isAlive) {
+            ProcessTree.destroy(process);
+        }
+    }
+
+    @Override
+    public void shutdown(long timeout, TimeUnit unit) {
+        List<ProcessHandle> processTree = null;
+        synchronized (this) {
+            killed = true;
+            processTree = ProcessTree.read(process);
+            processTree.forEach(ProcessHandle::destroy);
+        }
+        ProcessTree.awaitOrKill(processTree, timeout, unit, serviceConfiguration.toString());
+    }
+
+    @Override
+    public Boolean isAlive() {
+        return isAlive;
+    }
+
+    @Override
+    public void setStateConsumer(Consumer<ForwardingState> stateConsumer) {
+        this.stateConsumer = stateConsumer;
+    }
+
+    @Override
+    public void setConnectionCounter(ConnectionCounter connectionCounter) {
+        this.connectionCounter = connectionCounter;
+    }
+
+    /**
+     * Tell the state consumer about a lifecycle change.
+     * 
+     * @param state the new state
+     */
+    private void notifyState(ForwardingState state) {
+        if (state == ForwardingState.READY) {
+            eventBus.publish(new ForwardingEvent(ForwardingEventType.READY, serviceConfiguration, null));
+        }
+        if (stateConsumer != null) {
+            stateConsumer.accept(state);
+        }
+    }
+
+    /**
+     * Log a message to the log and also publish it as an event.
+     * 
+     * @param type the type of the event
+     * @param message the message
+     */
+    private void logMessage(ForwardingEventType type, String message) {
+        log.info(message);
+        eventBus.publish(new ForwardingEvent(type, serviceConfiguration, message));
+    }
+
+}
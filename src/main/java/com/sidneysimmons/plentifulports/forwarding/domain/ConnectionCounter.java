@@ -0,0 +1,124 @@
+package com.sidneysimmons.plentifulports.forwarding.domain;
+
+import com.sidneysimmons.plentifulports.settings.domain.PortConfiguration;
+import com.sidneysimmons.plentifulports.settings.domain.ServiceConfiguration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the connections of the local ports of a service. Recording a connection is a lookup in a small array and an atomic increment so
+ * it can run for every line kubectl prints. The counts are turned into a summary with the rate since the previous summary.
+ * 
+ * @author Sidney Simmons
+ */
+public class ConnectionCounter {
+
+    private ServiceConfiguration serviceConfiguration;
+    private int[] localPorts;
+    private AtomicLongArray totals;
+    private long[] summarizedTotals;
+    private long summarizedNanos;
+    private boolean idle = true;
+
+    /**
+     * Constructor.
+     * 
+     * @param serviceConfiguration the service configuration
+     */
+    public ConnectionCounter(ServiceConfiguration serviceConfiguration) {
+        this.serviceConfiguration = serviceConfiguration;
+        List<PortConfiguration> ports = serviceConfiguration.getPorts();
+        localPorts = new int[ports.size()];
+        for (int i = 0; i < localPorts.length; i++) {
+            localPorts[i] = Integer.parseInt(ports.get(i).getLocal());
+        }
+        totals = new AtomicLongArray(localPorts.length);
+        summarizedTotals = new long[localPorts.length];
+        summarizedNanos = System.nanoTime();
+    }
+
+    /**
+     * Record a connection to a given local port.
+     * 
+     * @param localPort the local port
+     * @return true if the port belongs to the service and the connection was counted, false otherwise
+     */
+    public Boolean record(int localPort) {
+        for (int i = 0; i < localPorts.length; i++) {
+            if (localPorts[i] == localPort) {
+                totals.incrementAndGet(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read the total number of connections to a given local port.
+     * 
+     * @param localPort the local port
+     * @return the total, zero if the port doesn't belong to the service
+     */
+    public long readTotal(int localPort) {
+        for (int i = 0; i < localPorts.length; i++) {
+            if (localPorts[i] == localPort) {
+                return totals.get(i);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Read the total number of connections to all local ports of the service.
+     * 
+     * @return the total
+     */
+    public long readTotal() {
+        long total = 0;
+        for (int i = 0; i < localPorts.length; i++) {
+            total += totals.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * Summarize the connections since the previous summary. Nothing is summarized while there are no connections - once they stop there's
+     * one last summary showing the rate dropped to zero.
+     * 
+     * @return the summary, null if there's nothing new to report
+     */
+    public synchronized String summarize() {
+        long now = System.nanoTime();
+        double elapsedSeconds = Math.max(1, now - summarizedNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+        boolean changed = false;
+        StringBuilder summary = new StringBuilder("Connections to ").append(serviceConfiguration).append(": ");
+        for (int i = 0; i < localPorts.length; i++) {
+            long total = totals.get(i);
+            long delta = total - summarizedTotals[i];
+            changed |= delta > 0;
+            summarizedTotals[i] = total;
+            if (i > 0) {
+                summary.append(", ");
+            }
+            summary.append(localPorts[i]).append(" - ").append(total).append(" total, ").append(Math.round(delta / elapsedSeconds))
+                    .append("/s");
+        }
+        summarizedNanos = now;
+        if (!changed && idle) {
+            return null;
+        }
+        idle = !changed;
+        return summary.toString();
+    }
+
+    /**
+     * Get the service configuration.
+     * 
+     * @return the service configuration
+     */
+    public ServiceConfiguration getServiceConfiguration() {
+        return serviceConfiguration;
+    }
+
+}
@@ -0,0 +1,117 @@
+package com.sidneysimmons.plentifulports.forwarding.domain;
+
+import com.sidneysimmons.plentifulports.thread.domain.MessageRing;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Subscription to the forwarding event bus. Events are queued in a bounded lock-free ring of their own so a slow subscriber neither holds
+ * up the publisher nor the other subscribers. A single drain at a time hands the queued events over in batches - once the ring is full,
+ * further bulk events are dropped for this subscriber only. Lifecycle events are few and always queued, next to the ring. The drain merges
+ * both queues by the sequence numbers the bus gave the events, so they're handed over in the order they were published.
+ * 
+ * @author Sidney Simmons
+ */
+@Slf4j
+public class EventSubscription {
+
+    private String name;
+    private ForwardingEventSubscriber subscriber;
+    private Executor executor;
+    private int maxBatchSize;
+    private MessageRing<ForwardingEvent> events;
+    private Queue<ForwardingEvent> lifecycleEvents = new ConcurrentLinkedQueue<>();
+    private AtomicBoolean scheduled = new AtomicBoolean();
+
+    /**
+     * Constructor.
+     * 
+     * @param name the name of the subscriber, for the log
+     * @param subscriber the subscriber
+     * @param executor executor running the drains
+     * @param capacity the number of events that can be queued
+     * @param maxBatchSize the maximum number of events handed over at once
+     */
+    public EventSubscription(String name, ForwardingEventSubscriber subscriber, Executor executor, int capacity, int maxBatchSize) {
+        this.name = name;
+        this.subscriber = subscriber;
+        this.executor = executor;
+        this.maxBatchSize = maxBatchSize;
+        this.events = new MessageRing<>(capacity);
+    }
+
+    /**
+     * Queue an event for the subscriber. Never blocks.
+     * 
+     * @param event the event
+     */
+    public void offer(ForwardingEvent event) {
+        if (event.getType().isBulk()) {
+            events.offer(event);
+        } else {
+            lifecycleEvents.offer(event);
+        }
+        if (!scheduled.getAndSet(true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    /**
+     * Hand the queued events over to the subscriber until there are none left.
+     */
+    private void drain() {
+        List<ForwardingEvent> batch = new ArrayList<>();
+        while (true) {
+            // Take whichever event was published first - a stop shouldn't show up before the output leading up to it, nor a start after
+            // the output following it
+            ForwardingEvent event = null;
+            ForwardingEvent bulkEvent = events.peek();
+            ForwardingEvent lifecycleEvent = lifecycleEvents.peek();
+            if (bulkEvent != null && (lifecycleEvent == null || bulkEvent.getSequence() < lifecycleEvent.getSequence())) {
+                event = events.poll();
+            } else if (lifecycleEvent != null) {
+                event = lifecycleEvents.poll();
+            }
+            if (event != null) {
+                batch.add(event);
+                if (batch.size() < maxBatchSize) {
+                    continue;
+                }
+            }
+            if (!batch.isEmpty()) {
+                deliver(batch);
+                batch = new ArrayList<>();
+                continue;
+            }
+
+            // Nothing left - the next event schedules another drain, unless one slipped in before the flag was cleared
+            scheduled.set(false);
+            if ((events.isEmpty() && lifecycleEvents.isEmpty()) || scheduled.getAndSet(true)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Deliver a batch to the subscriber. A failing subscriber only loses the batch.
+     * 
+     * @param batch the batch
+     */
+    private void deliver(List<ForwardingEvent> batch) {
+        try {
+            subscriber.handleEvents(batch);
+        } catch (RuntimeException e) {
+            log.error("Forwarding event subscriber " + name + " failed to handle " + batch.size() + " events.", e);
+        }
+        long dropped = events.takeDropped();
+        if (dropped > 0) {
+            log.warn("Dropped " + dropped + " forwarding events for subscriber " + name + " since it couldn't keep up.");
+        }
+    }
+
+}
@@ -0,0 +1,80 @@
+package com.sidneysimmons.plentifulports.forwarding.domain;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Forwards the ports of a single service. Running it starts the forwarding.
+ * 
+ * @author Sidney Simmons
+ */
+public interface Forwarder extends Runnable {
+
+    /**
+     * Stop the forwarding if it's currently alive.
+     */
+    void kill();
+
+    /**
+     * Stop the forwarding and wait until it's gone. Processes that are still running at the deadline are killed forcibly. Forwarders
+     * without processes of their own simply kill.
+     * 
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     */
+    default void shutdown(long timeout, TimeUnit unit) {
+        kill();
+    }
+
+    /**
+     * Return this forwarder's alive status.
+     * 
+     * @return true if the forwarder is alive, false otherwise
+     */
+    Boolean isAlive();
+
+    /**
+     * Set a consumer that's told about lifecycle changes of this forwarder. Reported states are {@link ForwardingState#READY} once
+     * connections are served, {@link ForwardingState#STARTING} while restarting, {@link ForwardingState#FAILED} when it dies on its own and
+     * {@link ForwardingState#STOPPED} once it's stopped. Must be set before the forwarder is started.
+     * 
+     * @param stateConsumer the state consumer
+     */
+    void setStateConsumer(Consumer<ForwardingState> stateConsumer);
+
+    /**
+     * Return the number of times the forwarding has been restarted on its own. Forwarders that don't restart always return zero.
+     * 
+     * @return the restart count
+     */
+    default Integer getRestartCount() {
+        return 0;
+    }
+
+    /**
+     * Read the number of bytes forwarded from the service to the local clients. Safe to call from any thread.
+     * 
+     * @return the number of bytes, null if the forwarder can't tell - kubectl doesn't report it
+     */
+    default Long readBytesIn() {
+        return null;
+    }
+
+    /**
+     * Read the number of bytes forwarded from the local clients to the service. Safe to call from any thread.
+     * 
+     * @return the number of bytes, null if the forwarder can't tell - kubectl doesn't report it
+     */
+    default Long readBytesOut() {
+        return null;
+    }
+
+    /**
+     * Set the counter for the connections this forwarder handles. Connections are counted right where they're seen instead of going
+     * through the event bus, which may drop events. Must be set before the forwarder is started.
+     * 
+     * @param connectionCounter the connection counter, null to not count the connections
+     */
+    void setConnectionCounter(ConnectionCounter connectionCounter);
+
+}
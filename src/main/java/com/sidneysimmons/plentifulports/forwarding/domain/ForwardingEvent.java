@@ -0,0 +1,38 @@
+package com.sidneysimmons.plentifulports.forwarding.domain;
+
+import com.sidneysimmons.plentifulports.settings.domain.ServiceConfiguration;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Something that happened while forwarding a service, as published on the forwarding event bus. The bus numbers the events as they're
+ * published so subscribers get them in that order.
+ * 
+ * @author Sidney Simmons
+ */
+@Data
+@NoArgsConstructor
+public class ForwardingEvent {
+
+    private ForwardingEventType type;
+    private ServiceConfiguration serviceConfiguration;
+    private String message;
+    private int localPort = -1;
+    private long timestampMillis;
+    private long sequence;
+
+    public ForwardingEvent(ForwardingEventType type, ServiceConfiguration serviceConfiguration, String message) {
+        this.type = type;
+        this.serviceConfiguration = serviceConfiguration;
+        this.message = message;
+        this.timestampMillis = System.currentTimeMillis();
+    }
+
+    public ForwardingEvent(ForwardingEventType type, ServiceConfiguration serviceConfiguration, int localPort) {
+        this.type = type;
+        this.serviceConfiguration = serviceConfiguration;
+        this.localPort = localPort;
+        this.timestampMillis = System.currentTimeMillis();
+    }
+
+}
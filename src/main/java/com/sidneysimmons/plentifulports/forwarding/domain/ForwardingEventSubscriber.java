@@ -0,0 +1,21 @@
+package com.sidneysimmons.plentifulports.forwarding.domain;
+
+import java.util.List;
+
+/**
+ * Subscriber of the forwarding event bus.
+ * 
+ * @author Sidney Simmons
+ */
+@FunctionalInterface
+public interface ForwardingEventSubscriber {
+
+    /**
+     * Handle a batch of events. Called from a worker thread, never from more than one at a time. Events that piled up while the
+     * subscriber was busy arrive together.
+     * 
+     * @param events the events in the order they were published
+     */
+    void handleEvents(List<ForwardingEvent> events);
+
+}
@@ -0,0 +1,51 @@
+package com.sidneysimmons.plentifulports.forwarding.domain;
+
+/**
+ * Type of a {@link ForwardingEvent}.
+ * 
+ * @author Sidney Simmons
+ */
+public enum ForwardingEventType {
+
+    /**
+     * A forwarder started.
+     */
+    STARTED,
+
+    /**
+     * A forwarder is serving connections.
+     */
+    READY,
+
+    /**
+     * A line meant for the user - output of kubectl or a note of the forwarder.
+     */
+    OUTPUT,
+
+    /**
+     * A connection to one of the local ports was handled. The forwarders count these themselves - the events are for anyone else who
+     * wants to follow the connections.
+     */
+    CONNECTION_HANDLED,
+
+    /**
+     * A forwarder stopped. For kubectl forwards this is the kubectl process exiting.
+     */
+    EXITED,
+
+    /**
+     * A forwarder failed and gave up.
+     */
+    FAILED;
+
+    /**
+     * Check if events of this type come in bulk. Those may be dropped for a subscriber that can't keep up while the rare lifecycle
+     * events are always delivered.
+     * 
+     * @return true if the events come in bulk, false otherwise
+     */
+    public Boolean isBulk() {
+        return this == OUTPUT || this == CONNECTION_HANDLED;
+    }
+
+}
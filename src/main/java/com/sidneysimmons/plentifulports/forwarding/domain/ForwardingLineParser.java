@@ -0,0 +1,138 @@
+package com.sidneysimmons.plentifulports.forwarding.domain;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parser for the lines kubectl port-forward prints. Works directly on the line without regular expressions, substrings or boxing since it
+ * runs for every line of every forward. Connection lines are the bulk of the output, so they can be recognized on the raw bytes before a
+ * line is ever decoded.
+ * 
+ * @author Sidney Simmons
+ */
+public final class ForwardingLineParser {
+
+    private static final String FORWARDING_PREFIX = "Forwarding from ";
+    private static final String ARROW = " -> ";
+    private static final byte[] CONNECTION_PREFIX = "Handling connection for ".getBytes(StandardCharsets.US_ASCII);
+    private static final String UNBOUND_PREFIX = "Unable to listen on port ";
+
+    /**
+     * Private constructor.
+     */
+    private ForwardingLineParser() {
+        // No need to instantiate this
+    }
+
+    /**
+     * Parse the local port of a "Forwarding from 127.0.0.1:X -> Y" line. IPv6 lines like "Forwarding from [::1]:X -> Y" are understood as
+     * well.
+     * 
+     * @param line the trimmed line
+     * @return the local port, -1 if the line isn't a forwarding line
+     */
+    public static int parseLocalPort(String line) {
+        if (!line.startsWith(FORWARDING_PREFIX)) {
+            return -1;
+        }
+        int arrow = line.indexOf(ARROW, FORWARDING_PREFIX.length());
+        if (arrow < 0) {
+            return -1;
+        }
+        int colon = line.lastIndexOf(':', arrow);
+        if (colon < FORWARDING_PREFIX.length()) {
+            return -1;
+        }
+        return parsePort(line, colon + 1, arrow);
+    }
+
+    /**
+     * Parse the local port of a "Handling connection for X" line straight from the bytes of the line. kubectl prints one for every
+     * connection. Surrounding whitespace is skipped.
+     * 
+     * @param bytes the bytes of the line
+     * @param length the number of bytes in the line
+     * @return the local port, -1 if the line isn't a connection line
+     */
+    public static int parseConnectionPort(byte[] bytes, int length) {
+        int from = 0;
+        int to = length;
+        while (from < to && isWhitespace(bytes[from])) {
+            from++;
+        }
+        while (to > from && isWhitespace(bytes[to - 1])) {
+            to--;
+        }
+        if (to - from < CONNECTION_PREFIX.length) {
+            return -1;
+        }
+        for (int i = 0; i < CONNECTION_PREFIX.length; i++) {
+            if (bytes[from + i] != CONNECTION_PREFIX[i]) {
+                return -1;
+            }
+        }
+        from += CONNECTION_PREFIX.length;
+        if (from >= to || to - from > 5) {
+            return -1;
+        }
+        int port = 0;
+        for (int i = from; i < to; i++) {
+            byte b = bytes[i];
+            if (b < '0' || b > '9') {
+                return -1;
+            }
+            port = port * 10 + (b - '0');
+        }
+        return port <= 65535 ? port : -1;
+    }
+
+    /**
+     * Parse the local port of an "Unable to listen on port X: ..." line. kubectl logs one for every local port it can't bind, with a log
+     * header in front of it.
+     * 
+     * @param line the trimmed line
+     * @return the local port, -1 if the line isn't a bind failure line
+     */
+    public static int parseUnboundPort(String line) {
+        int start = line.indexOf(UNBOUND_PREFIX);
+        if (start < 0) {
+            return -1;
+        }
+        start += UNBOUND_PREFIX.length();
+        int end = line.indexOf(':', start);
+        return parsePort(line, start, end < 0 ? line.length() : end);
+    }
+
+    /**
+     * Parse a port number from a range of characters.
+     * 
+     * @param chars the characters
+     * @param from the start of the range, inclusive
+     * @param to the end of the range, exclusive
+     * @return the port, -1 if the range isn't a valid port
+     */
+    private static int parsePort(CharSequence chars, int from, int to) {
+        if (from >= to || to - from > 5) {
+            return -1;
+        }
+        int port = 0;
+        for (int i = from; i < to; i++) {
+            char c = chars.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            port = port * 10 + (c - '0');
+        }
+        return port <= 65535 ? port : -1;
+    }
+
+    /**
+     * Check if a byte is whitespace the way {@link String#trim()} sees it.
+     * 
+     * @param b the byte
+     * @return true if it's whitespace, false otherwise
+     */
+    private static boolean isWhitespace(byte b) {
+        return b >= 0 && b <= ' ';
+    }
+
+}
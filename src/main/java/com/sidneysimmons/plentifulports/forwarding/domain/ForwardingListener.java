@@ -0,0 +1,192 @@
+package com.sidneysimmons.plentifulports.forwarding.domain;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Local port listener of the in-process forwarding engine. Every accepted connection gets its own tunnel from the tunnel factory.
+ * 
+ * @author Sidney Simmons
+ */
+@Slf4j
+public class ForwardingListener implements SelectorHandler {
+
+    private Integer localPort;
+    private ServerSocketChannel serverChannel;
+    private TunnelFactory tunnelFactory;
+    private Consumer<String> messageConsumer;
+    private Set<Tunnel> tunnels = new HashSet<>();
+    private AtomicInteger openTunnelCount = new AtomicInteger();
+    private volatile long lastActivity = System.nanoTime();
+    private volatile long bytesIn = 0;
+    private volatile long bytesOut = 0;
+
+    /**
+     * Constructor.
+     * 
+     * @param localPort the local port
+     * @param serverChannel the bound server channel
+     * @param tunnelFactory the factory for the tunnels of accepted connections
+     * @param messageConsumer consumer for messages meant for the user
+     */
+    public ForwardingListener(Integer localPort, ServerSocketChannel serverChannel, TunnelFactory tunnelFactory,
+            Consumer<String> messageConsumer) {
+        this.localPort = localPort;
+        this.serverChannel = serverChannel;
+        this.tunnelFactory = tunnelFactory;
+        this.messageConsumer = messageConsumer;
+    }
+
+    /**
+     * Register this listener with a given selector.
+     * 
+     * @param selector the selector
+     */
+    public void register(Selector selector) {
+        try {
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT, this);
+        } catch (ClosedChannelException e) {
+            log.debug("Listener for port " + localPort + " closed before it was registered.");
+        }
+    }
+
+    @Override
+    public void handle(SelectionKey key) throws IOException {
+        if (!key.isAcceptable()) {
+            return;
+        }
+
+        SocketChannel clientChannel = serverChannel.accept();
+        if (clientChannel == null) {
+            return;
+        }
+
+        // Failures of a single connection only drop that connection - the listener keeps accepting
+        Tunnel tunnel = null;
+        try {
+            tunnel = tunnelFactory.createTunnel(this, clientChannel);
+        } catch (RuntimeException e) {
+            log.warn("Can't create tunnel for port " + localPort + ".", e);
+            reportError("Can't forward connection on port " + localPort + ": " + e.getMessage());
+            clientChannel.close();
+            return;
+        }
+        tunnels.add(tunnel);
+        openTunnelCount.incrementAndGet();
+        lastActivity = System.nanoTime();
+        try {
+            tunnel.connect(key.selector());
+        } catch (IOException | RuntimeException e) {
+            log.debug("Can't connect tunnel for port " + localPort + ".", e);
+            tunnel.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            log.debug("Can't close listener for port " + localPort + ".", e);
+        }
+        for (Tunnel tunnel : new ArrayList<>(tunnels)) {
+            tunnel.close();
+        }
+    }
+
+    /**
+     * Return the local port.
+     * 
+     * @return the local port
+     */
+    public Integer getLocalPort() {
+        return localPort;
+    }
+
+    /**
+     * Return the number of tunnels that are currently open. Safe to call from any thread.
+     * 
+     * @return the number of open tunnels
+     */
+    public Integer getOpenTunnelCount() {
+        return openTunnelCount.get();
+    }
+
+    /**
+     * Return the time of the last accepted or closed connection. Safe to call from any thread.
+     * 
+     * @return the time of the last activity in {@link System#nanoTime()} units
+     */
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    /**
+     * Return the number of bytes the tunnels passed from the service to the local clients. Safe to call from any thread.
+     * 
+     * @return the number of bytes
+     */
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    /**
+     * Return the number of bytes the tunnels passed from the local clients to the service. Safe to call from any thread.
+     * 
+     * @return the number of bytes
+     */
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    /**
+     * Called by a tunnel once it passed bytes from the service to its client. Only the selector thread writes the counter, so a volatile
+     * is enough.
+     * 
+     * @param bytes the number of bytes
+     */
+    void recordBytesIn(int bytes) {
+        bytesIn += bytes;
+    }
+
+    /**
+     * Called by a tunnel once it passed bytes from its client to the service.
+     * 
+     * @param bytes the number of bytes
+     */
+    void recordBytesOut(int bytes) {
+        bytesOut += bytes;
+    }
+
+    /**
+     * Called by a tunnel once it's closed.
+     * 
+     * @param tunnel the tunnel
+     */
+    void tunnelClosed(Tunnel tunnel) {
+        if (tunnels.remove(tunnel)) {
+            openTunnelCount.decrementAndGet();
+            lastActivity = System.nanoTime();
+        }
+    }
+
+    /**
+     * Called by a tunnel when it runs into an error the user should see.
+     * 
+     * @param message the error message
+     */
+    void reportError(String message) {
+        messageConsumer.accept(message);
+    }
+
+}
@@ -1,12 +1,18 @@
 package com.sidneysimmons.plentifulports.forwarding.domain;
 
+import com.sidneysimmons.plentifulports.forwarding.ForwardingEventBus;
+import com.sidneysimmons.plentifulports.forwarding.RunStateService;
 import com.sidneysimmons.plentifulports.kubernetes.KubernetesGateway;
+import com.sidneysimmons.plentifulports.settings.domain.PortConfiguration;
 import com.sidneysimmons.plentifulports.settings.domain.ServiceConfiguration;
-import com.sidneysimmons.plentifulports.ui.component.PortsMonitor;
-import com.sidneysimmons.plentifulports.ui.component.PortsTable;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 
@@ -16,49 +22,96 @@ import org.apache.commons.lang3.StringUtils;
  * @author Sidney Simmons
  */
 @Slf4j
-public class ForwardingRunnable implements Runnable {
+public class ForwardingRunnable implements Forwarder {
 
     private ServiceConfiguration serviceConfiguration;
-    private PortsTable portsTable;
-    private PortsMonitor portsMonitor;
+    private ForwardingEventBus eventBus;
     private KubernetesGateway kubernetesGateway;
+    private RunStateService runStateService;
 
-    private Process forwardingProcess;
-    private boolean isAlive = false;
+    private volatile Process forwardingProcess;
+    private volatile boolean isAlive = false;
+    private volatile boolean killed = false;
+    private int[] pendingPorts;
+    private int pendingPortCount;
+    private Consumer<ForwardingState> stateConsumer;
+    private ConnectionCounter connectionCounter;
+    private Consumer<Integer> bindFailureHandler;
 
     /**
      * Constructor.
      * 
      * @param serviceConfiguration the service configuration
-     * @param portsTable the ports table
-     * @param portsMonitor the ports monitor
+     * @param eventBus the forwarding event bus
      * @param kubernetesGateway the kubernetes gateway
+     * @param runStateService the run-state service
      */
-    public ForwardingRunnable(ServiceConfiguration serviceConfiguration, PortsTable portsTable, PortsMonitor portsMonitor,
-            KubernetesGateway kubernetesGateway) {
+    public ForwardingRunnable(ServiceConfiguration serviceConfiguration, ForwardingEventBus eventBus, KubernetesGateway kubernetesGateway,
+            RunStateService runStateService) {
         this.serviceConfiguration = serviceConfiguration;
-        this.portsTable = portsTable;
-        this.portsMonitor = portsMonitor;
+        this.eventBus = eventBus;
         this.kubernetesGateway = kubernetesGateway;
+        this.runStateService = runStateService;
     }
 
     @Override
     public void run() {
-        // Set the alive flag to true
-        logMessage("Port forwarding started for " + serviceConfiguration + ".");
-        isAlive = true;
+        // Set the alive flag to true unless we were killed before starting
+        synchronized (this) {
+            if (killed) {
+                notifyState(ForwardingState.STOPPED);
+                return;
+            }
+            isAlive = true;
+        }
+        logMessage(ForwardingEventType.STARTED, "Port forwarding started for " + serviceConfiguration + ".");
+
+        // Every local port has to be reported as forwarding before we're ready
+        pendingPorts = new int[serviceConfiguration.getPorts().size()];
+        pendingPortCount = 0;
+        for (PortConfiguration port : serviceConfiguration.getPorts()) {
+            pendingPorts[pendingPortCount++] = Integer.parseInt(port.getLocal());
+        }
 
         try {
-            // Execute the process
+            // Execute the process - the output goes to a file so kubectl outlives us if we crash
+            Path outputFile = runStateService.createOutputFile(serviceConfiguration);
             ProcessBuilder processBuilder = kubernetesGateway.buildForwardPortsProcess(serviceConfiguration);
-            forwardingProcess = processBuilder.start();
+            processBuilder.redirectOutput(Redirect.appendTo(outputFile.toFile()));
+            try {
+                forwardingProcess = processBuilder.start();
+            } catch (IOException e) {
+                Files.deleteIfExists(outputFile);
+                throw e;
+            }
+            runStateService.recordProcess(serviceConfiguration, forwardingProcess, outputFile);
+            if (killed) {
+                // Killed while the process was starting
+                forwardingProcess.destroy();
+            }
 
-            // Read in the result
-            try (BufferedReader inputReader = new BufferedReader(new InputStreamReader(forwardingProcess.getInputStream()))) {
-                String line = null;
-                while ((line = inputReader.readLine()) != null) {
+            // Read in the result - connection lines are recognized on the raw bytes since there's one per connection
+            try (OutputTail outputTail = new OutputTail(outputFile, forwardingProcess.toHandle(), false)) {
+                while (outputTail.nextLine()) {
+                    int connectionPort = ForwardingLineParser.parseConnectionPort(outputTail.getLineBytes(), outputTail.getLineLength());
+                    if (connectionPort >= 0) {
+                        if (connectionCounter != null) {
+                            connectionCounter.record(connectionPort);
+                        }
+                        eventBus.publish(new ForwardingEvent(ForwardingEventType.CONNECTION_HANDLED, serviceConfiguration, connectionPort));
+                        continue;
+                    }
+                    String line = outputTail.getLine();
                     if (StringUtils.isNotBlank(line)) {
-                        portsMonitor.addMessage(line.trim());
+                        String trimmedLine = line.trim();
+                        eventBus.publish(new ForwardingEvent(ForwardingEventType.OUTPUT, serviceConfiguration, trimmedLine));
+                        if (pendingPortCount > 0) {
+                            markPortReady(ForwardingLineParser.parseLocalPort(trimmedLine));
+                            int unboundPort = ForwardingLineParser.parseUnboundPort(trimmedLine);
+                            if (unboundPort >= 0 && bindFailureHandler != null) {
+                                bindFailureHandler.accept(unboundPort);
+                            }
+                        }
                     }
                 }
             }
@@ -67,40 +120,130 @@ public class ForwardingRunnable implements Runnable {
             forwardingProcess.waitFor(5, TimeUnit.SECONDS);
         } catch (Exception e) {
             log.error("Forwarding did not shut down gracefully.", e);
+            eventBus.publish(new ForwardingEvent(ForwardingEventType.FAILED, serviceConfiguration,
+                    "Port forwarding failed for " + serviceConfiguration + ": " + e.getMessage()));
         }
 
-        // Set the alive flag to false and toggle the UI checkbox
+        // The process stays in the run-state file until it's really gone
+        if (forwardingProcess != null) {
+            forwardingProcess.onExit().thenAccept(process -> runStateService.forgetProcess(process.pid()));
+        }
+
+        // Set the alive flag to false
         isAlive = false;
-        portsTable.setToggle(serviceConfiguration, false);
-        logMessage("Port forwarding stopped for " + serviceConfiguration + ".");
+        logMessage(ForwardingEventType.EXITED, "Port forwarding stopped for " + serviceConfiguration + ".");
+        notifyState(killed ? ForwardingState.STOPPED : ForwardingState.FAILED);
+    }
+
+    @Override
+    public synchronized void kill() {
+        killed = true;
+        if (isAlive() && forwardingProcess != null) {
+            ProcessTree.destroy(forwardingProcess.toHandle());
+        }
+    }
+
+    @Override
+    public void shutdown(long timeout, TimeUnit unit) {
+        // Ask the whole process tree to stop - the tree is read up front since children get re-parented once kubectl is gone
+        Process process = null;
+        List<ProcessHandle> processTree = null;
+        synchronized (this) {
+            killed = true;
+            process = forwardingProcess;
+            if (process == null) {
+                return;
+            }
+            processTree = ProcessTree.read(process.toHandle());
+            processTree.forEach(ProcessHandle::destroy);
+        }
+
+        // Wait until the deadline and kill whatever is left
+        ProcessTree.awaitOrKill(processTree, timeout, unit, serviceConfiguration.toString());
+        closeQuietly(process.getOutputStream());
+        closeQuietly(process.getInputStream());
+        closeQuietly(process.getErrorStream());
+    }
+
+    @Override
+    public Boolean isAlive() {
+        return isAlive;
+    }
+
+    @Override
+    public void setStateConsumer(Consumer<ForwardingState> stateConsumer) {
+        this.stateConsumer = stateConsumer;
+    }
+
+    @Override
+    public void setConnectionCounter(ConnectionCounter connectionCounter) {
+        this.connectionCounter = connectionCounter;
+    }
+
+    /**
+     * Set a handler that's called when kubectl can't bind one of the local ports while starting up. kubectl keeps forwarding the ports it
+     * could bind, so it's up to the handler to decide whether that's good enough. Must be set before running.
+     * 
+     * @param bindFailureHandler handler for the local port kubectl couldn't bind
+     */
+    public void setBindFailureHandler(Consumer<Integer> bindFailureHandler) {
+        this.bindFailureHandler = bindFailureHandler;
+    }
+
+    /**
+     * Mark a local port as forwarding. Reports the runnable as ready once all of its ports are forwarding. kubectl reports each port once
+     * per address family so repeats are ignored.
+     * 
+     * @param localPort the local port, negative if the line wasn't a forwarding line
+     */
+    private void markPortReady(int localPort) {
+        for (int i = 0; i < pendingPortCount; i++) {
+            if (pendingPorts[i] == localPort) {
+                pendingPorts[i] = pendingPorts[--pendingPortCount];
+                if (pendingPortCount == 0) {
+                    notifyState(ForwardingState.READY);
+                }
+                return;
+            }
+        }
     }
 
     /**
-     * Kill the forwarding process if it's currently alive.
+     * Close a stream of the process and ignore any errors.
+     * 
+     * @param stream the stream
      */
-    public void kill() {
-        if (isAlive()) {
-            forwardingProcess.destroy();
+    private static void closeQuietly(Closeable stream) {
+        try {
+            stream.close();
+        } catch (IOException e) {
+            log.debug("Can't close process stream.", e);
         }
     }
 
     /**
-     * Return this runnable's alive status.
+     * Tell the state consumer about a lifecycle change.
      * 
-     * @return true if the runnable is alive, false otherwise
+     * @param state the new state
      */
-    public Boolean isAlive() {
-        return isAlive;
+    private void notifyState(ForwardingState state) {
+        if (state == ForwardingState.READY) {
+            eventBus.publish(new ForwardingEvent(ForwardingEventType.READY, serviceConfiguration, null));
+        }
+        if (stateConsumer != null) {
+            stateConsumer.accept(state);
+        }
     }
 
     /**
-     * Log a message to the log and also the ports monitor.
+     * Log a message to the log and also publish it as an event.
      * 
+     * @param type the type of the event
      * @param message the message
      */
-    private void logMessage(String message) {
+    private void logMessage(ForwardingEventType type, String message) {
         log.info(message);
-        portsMonitor.addMessage(message);
+        eventBus.publish(new ForwardingEvent(type, serviceConfiguration, message));
     }
 
 }
@@ -0,0 +1,122 @@
+package com.sidneysimmons.plentifulports.forwarding.domain;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Immutable snapshot of the lifecycle state of a single service along with the forwarder that belongs to it. Snapshots are swapped
+ * atomically so that equality is intentionally identity.
+ * 
+ * @author Sidney Simmons
+ */
+public final class ForwardingSlot {
+
+    /**
+     * Snapshot of a service that isn't forwarding.
+     */
+    public static final ForwardingSlot STOPPED = new ForwardingSlot(ForwardingState.STOPPED, null,
+            CompletableFuture.completedFuture(ForwardingState.STOPPED), 0, null);
+
+    private final ForwardingState state;
+    private final Forwarder forwarder;
+    private final CompletableFuture<ForwardingState> settled;
+    private final long startedNanos;
+    private final Long timeToReadyMillis;
+
+    /**
+     * Constructor.
+     * 
+     * @param state the lifecycle state
+     * @param forwarder the forwarder, null if there isn't one
+     * @param settled future completed with the state the current start settles in
+     * @param startedNanos the time the current start began in {@link System#nanoTime()} units
+     * @param timeToReadyMillis the time it took the current start to become ready, null if it isn't ready
+     */
+    public ForwardingSlot(ForwardingState state, Forwarder forwarder, CompletableFuture<ForwardingState> settled, long startedNanos,
+            Long timeToReadyMillis) {
+        this.state = state;
+        this.forwarder = forwarder;
+        this.settled = settled;
+        this.startedNanos = startedNanos;
+        this.timeToReadyMillis = timeToReadyMillis;
+    }
+
+    /**
+     * Build the snapshot of a service that has just been enabled.
+     * 
+     * @param forwarder the forwarder
+     * @return the snapshot
+     */
+    public static ForwardingSlot starting(Forwarder forwarder) {
+        return new ForwardingSlot(ForwardingState.STARTING, forwarder, new CompletableFuture<>(), System.nanoTime(), null);
+    }
+
+    /**
+     * Return the lifecycle state.
+     * 
+     * @return the state
+     */
+    public ForwardingState getState() {
+        return state;
+    }
+
+    /**
+     * Return the forwarder.
+     * 
+     * @return the forwarder, null if there isn't one
+     */
+    public Forwarder getForwarder() {
+        return forwarder;
+    }
+
+    /**
+     * Return the future that's completed once the current start settles. It's completed with {@link ForwardingState#READY},
+     * {@link ForwardingState#FAILED} or {@link ForwardingState#STOPPED}.
+     * 
+     * @return the settled future
+     */
+    public CompletableFuture<ForwardingState> getSettled() {
+        return settled;
+    }
+
+    /**
+     * Return the time it took the current start to become ready.
+     * 
+     * @return the time to ready in milliseconds, null if it isn't ready
+     */
+    public Long getTimeToReadyMillis() {
+        return timeToReadyMillis;
+    }
+
+    /**
+     * Read how long the current start has been ready for.
+     * 
+     * @return the uptime in milliseconds, null if it isn't ready
+     */
+    public Long readUptimeMillis() {
+        if (state != ForwardingState.READY || timeToReadyMillis == null) {
+            return null;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedNanos) - timeToReadyMillis;
+    }
+
+    /**
+     * Build the snapshot that follows this one for a given state. Stopped and failed services let go of their forwarder, a restart gets a
+     * fresh settled future and becoming ready records the time to ready.
+     * 
+     * @param next the next state
+     * @return the next snapshot
+     */
+    public ForwardingSlot transitionTo(ForwardingState next) {
+        if (next == ForwardingState.STOPPED || next == ForwardingState.FAILED) {
+            return new ForwardingSlot(next, null, CompletableFuture.completedFuture(next), 0, null);
+        } else if (next == ForwardingState.STARTING && state != ForwardingState.STARTING) {
+            return new ForwardingSlot(next, forwarder, new CompletableFuture<>(), System.nanoTime(), null);
+        } else if (next == ForwardingState.READY && state != ForwardingState.READY) {
+            long timeToReady = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedNanos);
+            return new ForwardingSlot(next, forwarder, settled, startedNanos, timeToReady);
+        }
+        return new ForwardingSlot(next, forwarder, settled, startedNanos, timeToReadyMillis);
+    }
+
+}
@@ -0,0 +1,65 @@
+package com.sidneysimmons.plentifulports.forwarding.domain;
+
+/**
+ * Lifecycle state of the forwarding of a single service.
+ * 
+ * @author Sidney Simmons
+ */
+public enum ForwardingState {
+
+    /**
+     * Not forwarding.
+     */
+    STOPPED,
+
+    /**
+     * Forwarding has been requested but isn't serving connections yet. Also used while a dead forward is being restarted.
+     */
+    STARTING,
+
+    /**
+     * Forwarding is serving connections.
+     */
+    READY,
+
+    /**
+     * Forwarding is being torn down.
+     */
+    STOPPING,
+
+    /**
+     * Forwarding died on its own and isn't going to recover without being enabled again.
+     */
+    FAILED;
+
+    /**
+     * Check if the lifecycle allows moving from this state to a given state.
+     * 
+     * @param next the next state
+     * @return true if the transition is allowed, false otherwise
+     */
+    public Boolean canTransitionTo(ForwardingState next) {
+        switch (this) {
+            case STOPPED:
+            case FAILED:
+                return next == STARTING;
+            case STARTING:
+            case READY:
+                return next != this;
+            case STOPPING:
+                return next == STOPPED;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Check if forwarding has been requested and not yet stopped in this state.
+     * 
+     * @return true if the forwarding is active, false otherwise
+     */
+    public Boolean isActive() {
+        return this == STARTING || this == READY;
+    }
+
+}
@@ -0,0 +1,236 @@
+package com.sidneysimmons.plentifulports.forwarding.domain;
+
+import com.sidneysimmons.plentifulports.forwarding.ForwardingEventBus;
+import com.sidneysimmons.plentifulports.forwarding.RunStateService;
+import com.sidneysimmons.plentifulports.kubernetes.KubernetesGateway;
+import com.sidneysimmons.plentifulports.settings.domain.ServiceConfiguration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Supervisor that keeps a kubectl forwarding runnable alive. Whenever kubectl exits (a rolled pod for example) the forwarding is restarted
+ * after an exponential backoff with jitter. A forward that keeps failing fast trips the circuit breaker and stays stopped until it's
+ * toggled on again.
+ * 
+ * @author Sidney Simmons
+ */
+@Slf4j
+public class ForwardingSupervisor implements Forwarder {
+
+    private static final long INITIAL_BACKOFF_MILLIS = 500;
+    private static final long MAXIMUM_BACKOFF_MILLIS = 30000;
+    private static final long STABLE_UPTIME_MILLIS = 30000;
+    private static final int MAXIMUM_FAST_FAILURES = 5;
+
+    private ServiceConfiguration serviceConfiguration;
+    private ForwardingEventBus eventBus;
+    private KubernetesGateway kubernetesGateway;
+    private RunStateService runStateService;
+
+    private ReentrantLock lock = new ReentrantLock();
+    private Condition killedCondition = lock.newCondition();
+    private ForwardingRunnable current;
+    private AtomicInteger restartCount = new AtomicInteger();
+    private int fastFailures = 0;
+    private volatile boolean isAlive = false;
+    private boolean killed = false;
+    private Consumer<ForwardingState> stateConsumer;
+    private ConnectionCounter connectionCounter;
+
+    /**
+     * Constructor.
+     * 
+     * @param serviceConfiguration the service configuration
+     * @param eventBus the forwarding event bus
+     * @param kubernetesGateway the kubernetes gateway
+     * @param runStateService the run-state service
+     */
+    public ForwardingSupervisor(ServiceConfiguration serviceConfiguration, ForwardingEventBus eventBus, KubernetesGateway kubernetesGateway,
+            RunStateService runStateService) {
+        this.serviceConfiguration = serviceConfiguration;
+        this.eventBus = eventBus;
+        this.kubernetesGateway = kubernetesGateway;
+        this.runStateService = runStateService;
+    }
+
+    @Override
+    public void run() {
+        lock.lock();
+        try {
+            if (killed) {
+                notifyState(ForwardingState.STOPPED);
+                return;
+            }
+            isAlive = true;
+        } finally {
+            lock.unlock();
+        }
+        boolean tripped = false;
+        while (true) {
+            // Start a fresh runnable unless we've been killed in the meantime
+            ForwardingRunnable runnable = null;
+            lock.lock();
+            try {
+                if (!isAlive) {
+                    break;
+                }
+                runnable = new ForwardingRunnable(serviceConfiguration, eventBus, kubernetesGateway, runStateService);
+                runnable.setConnectionCounter(connectionCounter);
+                runnable.setStateConsumer(state -> {
+                    if (state == ForwardingState.READY) {
+                        notifyState(ForwardingState.READY);
+                    }
+                });
+                current = runnable;
+            } finally {
+                lock.unlock();
+            }
+
+            // Run until kubectl exits
+            long started = System.nanoTime();
+            runnable.run();
+            long uptimeMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+
+            lock.lock();
+            try {
+                current = null;
+                if (!isAlive) {
+                    break;
+                }
+
+                // Only count failures that happen before the forward had a chance to settle
+                if (uptimeMillis >= STABLE_UPTIME_MILLIS) {
+                    fastFailures = 0;
+                } else {
+                    fastFailures++;
+                }
+                if (fastFailures >= MAXIMUM_FAST_FAILURES) {
+                    logMessage(ForwardingEventType.FAILED, "Port forwarding for " + serviceConfiguration + " failed " + fastFailures
+                            + " times in a row - giving up until it's enabled again.");
+                    isAlive = false;
+                    tripped = true;
+                    break;
+                }
+
+                // Back off before restarting - kill() wakes us up early
+                long backoffMillis = computeBackoffMillis(fastFailures);
+                int restart = restartCount.incrementAndGet();
+                notifyState(ForwardingState.STARTING);
+                logMessage(ForwardingEventType.OUTPUT, "Restarting port forwarding for " + serviceConfiguration + " in " + backoffMillis
+                        + " ms (restart #" + restart + ").");
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoffMillis);
+                long remaining = deadline - System.nanoTime();
+                while (isAlive && remaining > 0) {
+                    try {
+                        killedCondition.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        isAlive = false;
+                    }
+                    remaining = deadline - System.nanoTime();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // The runnables already published their own events - only the tripped circuit is ours to report
+        if (tripped) {
+            notifyState(ForwardingState.FAILED);
+        } else {
+            notifyState(ForwardingState.STOPPED);
+        }
+    }
+
+    @Override
+    public void kill() {
+        lock.lock();
+        try {
+            killed = true;
+            if (isAlive) {
+                isAlive = false;
+                if (current != null) {
+                    current.kill();
+                }
+                killedCondition.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void shutdown(long timeout, TimeUnit unit) {
+        ForwardingRunnable runnable = null;
+        lock.lock();
+        try {
+            runnable = current;
+        } finally {
+            lock.unlock();
+        }
+        kill();
+        if (runnable != null) {
+            runnable.shutdown(timeout, unit);
+        }
+    }
+
+    @Override
+    public Boolean isAlive() {
+        return isAlive;
+    }
+
+    @Override
+    public void setStateConsumer(Consumer<ForwardingState> stateConsumer) {
+        this.stateConsumer = stateConsumer;
+    }
+
+    @Override
+    public void setConnectionCounter(ConnectionCounter connectionCounter) {
+        this.connectionCounter = connectionCounter;
+    }
+
+    @Override
+    public Integer getRestartCount() {
+        return restartCount.get();
+    }
+
+    /**
+     * Compute the backoff before the next restart. Grows exponentially with the number of fast failures and is jittered so that many
+     * services failing together (a node going away for example) don't all restart in lockstep.
+     * 
+     * @param failures the number of consecutive fast failures
+     * @return the backoff in milliseconds
+     */
+    private static long computeBackoffMillis(int failures) {
+        long ceiling = Math.min(MAXIMUM_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << Math.min(failures, 16));
+        return ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1);
+    }
+
+    /**
+     * Tell the state consumer about a lifecycle change.
+     * 
+     * @param state the new state
+     */
+    private void notifyState(ForwardingState state) {
+        if (stateConsumer != null) {
+            stateConsumer.accept(state);
+        }
+    }
+
+    /**
+     * Log a message to the log and also publish it as an event.
+     * 
+     * @param type the type of the event
+     * @param message the message
+     */
+    private void logMessage(ForwardingEventType type, String message) {
+        log.info(message);
+        eventBus.publish(new ForwardingEvent(type, serviceConfiguration, message));
+    }
+
+}
@@ -0,0 +1,572 @@
+package com.sidneysimmons.plentifulports.forwarding.domain;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.concurrent.ThreadLocalRandom;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A single local connection tunneled to a pod over the kubernetes port-forward websocket protocol (v4.channel.k8s.io). Every websocket
+ * message is prefixed with a channel byte - channel 0 carries the data and channel 1 carries errors. The first two bytes the server sends
+ * on each channel are the forwarded port number and are skipped. The protocol has no way to open a second stream on a websocket, so every
+ * tunnel costs its own upgraded connection through the proxy and its own stream from the API server to the kubelet. The protocol can't pass
+ * a half-close along either, so once the client stops sending the tunnel keeps relaying until the upstream ends.
+ * 
+ * @author Sidney Simmons
+ */
+@Slf4j
+public class ForwardingTunnel implements Tunnel {
+
+    private static final String WEBSOCKET_PROTOCOL = "v4.channel.k8s.io";
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int DATA_CHANNEL = 0;
+    private static final int ERROR_CHANNEL = 1;
+    private static final int PORT_PREFIX_LENGTH = 2;
+    private static final int OPCODE_CONTINUATION = 0x0;
+    private static final int OPCODE_CLOSE = 0x8;
+    private static final int OPCODE_PING = 0x9;
+    private static final int CLIENT_BUFFER_SIZE = 16 * 1024;
+    private static final int UPSTREAM_BUFFER_SIZE = 64 * 1024;
+
+    private enum State {
+        CONNECTING, HANDSHAKING, OPEN, CLOSED
+    }
+
+    private ForwardingListener listener;
+    private SocketChannel clientChannel;
+    private SocketChannel upstreamChannel;
+    private SelectionKey clientKey;
+    private SelectionKey upstreamKey;
+    private InetSocketAddress upstreamAddress;
+    private String upgradePath;
+    private String webSocketKey;
+    private State state = State.CONNECTING;
+    private boolean upstreamClosed = false;
+    private boolean clientEof = false;
+
+    // All buffers are kept in write mode between events
+    private ByteBuffer clientIn = ByteBuffer.allocate(CLIENT_BUFFER_SIZE);
+    private ByteBuffer clientOut = ByteBuffer.allocate(UPSTREAM_BUFFER_SIZE);
+    private ByteBuffer upstreamIn = ByteBuffer.allocate(UPSTREAM_BUFFER_SIZE);
+    private ByteBuffer upstreamOut = ByteBuffer.allocate(CLIENT_BUFFER_SIZE + 256);
+
+    // Incoming frame state - payloads are streamed straight into the client buffer
+    private boolean frameInProgress = false;
+    private boolean frameFinal = false;
+    private boolean expectChannel = false;
+    private long frameRemaining = 0;
+    private int messageChannel = -1;
+    private int[] portPrefixRemaining = { PORT_PREFIX_LENGTH, PORT_PREFIX_LENGTH };
+    private StringBuilder errorMessage = new StringBuilder();
+    private Runnable closeHandler;
+
+    /**
+     * Constructor.
+     * 
+     * @param listener the listener that accepted the client
+     * @param clientChannel the accepted client channel
+     * @param upstreamAddress the address of the kubernetes API proxy
+     * @param upgradePath the port-forward path to upgrade to a websocket
+     */
+    public ForwardingTunnel(ForwardingListener listener, SocketChannel clientChannel, InetSocketAddress upstreamAddress,
+            String upgradePath) {
+        this.listener = listener;
+        this.clientChannel = clientChannel;
+        this.upstreamAddress = upstreamAddress;
+        this.upgradePath = upgradePath;
+    }
+
+    /**
+     * Set a handler that's called once the tunnel is closed. Must be set before the tunnel is connected.
+     * 
+     * @param closeHandler the close handler
+     */
+    public void setCloseHandler(Runnable closeHandler) {
+        this.closeHandler = closeHandler;
+    }
+
+    /**
+     * Start connecting the tunnel upstream. The client isn't read from until the websocket is open.
+     */
+    @Override
+    public void connect(Selector selector) throws IOException {
+        clientChannel.configureBlocking(false);
+        clientChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        clientKey = clientChannel.register(selector, 0, this);
+
+        upstreamChannel = SocketChannel.open();
+        upstreamChannel.configureBlocking(false);
+        upstreamChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        upstreamKey = upstreamChannel.register(selector, 0, this);
+        if (upstreamChannel.connect(upstreamAddress)) {
+            startHandshake();
+        }
+        updateInterest();
+    }
+
+    @Override
+    public void handle(SelectionKey key) throws IOException {
+        if (key == upstreamKey) {
+            if (key.isConnectable() && upstreamChannel.finishConnect()) {
+                startHandshake();
+            }
+            if (state != State.CLOSED && key.isWritable()) {
+                flushUpstream();
+            }
+            if (state != State.CLOSED && key.isReadable()) {
+                readUpstream();
+            }
+        } else {
+            if (key.isWritable()) {
+                flushClient();
+                processUpstream();
+            }
+            if (state == State.OPEN && !clientEof && key.isReadable() && upstreamOut.position() == 0) {
+                readClient();
+            }
+        }
+        closeIfDrained();
+        updateInterest();
+    }
+
+    @Override
+    public void close() {
+        if (state == State.CLOSED) {
+            return;
+        }
+
+        // Let the server know we're going away if the websocket is open - best effort only
+        if (state == State.OPEN && !upstreamClosed) {
+            try {
+                upstreamOut.clear();
+                writeControlFrame(OPCODE_CLOSE, new byte[] { 0x03, (byte) 0xE8 });
+                upstreamOut.flip();
+                upstreamChannel.write(upstreamOut);
+            } catch (IOException e) {
+                // Nothing to do here
+            }
+        }
+        state = State.CLOSED;
+        closeQuietly(clientChannel);
+        closeQuietly(upstreamChannel);
+        listener.tunnelClosed(this);
+        if (closeHandler != null) {
+            closeHandler.run();
+        }
+    }
+
+    /**
+     * Start the websocket handshake.
+     */
+    private void startHandshake() throws IOException {
+        byte[] keyBytes = new byte[16];
+        ThreadLocalRandom.current().nextBytes(keyBytes);
+        webSocketKey = Base64.getEncoder().encodeToString(keyBytes);
+        String request = "GET " + upgradePath + " HTTP/1.1\r\n"
+                + "Host: " + upstreamAddress.getHostString() + ":" + upstreamAddress.getPort() + "\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Key: " + webSocketKey + "\r\n"
+                + "Sec-WebSocket-Version: 13\r\n"
+                + "Sec-WebSocket-Protocol: " + WEBSOCKET_PROTOCOL + "\r\n\r\n";
+        upstreamOut.put(request.getBytes(StandardCharsets.US_ASCII));
+        state = State.HANDSHAKING;
+        flushUpstream();
+    }
+
+    /**
+     * Read from the client and frame the data for the upstream. A client that stops sending may still be waiting for the rest of the
+     * response, so the tunnel only stops reading it.
+     */
+    private void readClient() throws IOException {
+        int read = clientChannel.read(clientIn);
+        if (read < 0) {
+            clientEof = true;
+            return;
+        }
+        if (read > 0) {
+            listener.recordBytesOut(read);
+            clientIn.flip();
+            writeDataFrame(clientIn);
+            clientIn.clear();
+            flushUpstream();
+        }
+    }
+
+    /**
+     * Read from the upstream. Completes the handshake first and then decodes frames.
+     */
+    private void readUpstream() throws IOException {
+        int read = upstreamChannel.read(upstreamIn);
+        if (read < 0) {
+            upstreamClosed = true;
+        }
+        if (state == State.HANDSHAKING) {
+            if (upstreamClosed) {
+                listener.reportError("Tunnel closed during handshake for " + upgradePath + ".");
+                close();
+                return;
+            }
+            upstreamIn.flip();
+            boolean complete = readHandshake();
+            upstreamIn.compact();
+            if (!complete) {
+                return;
+            }
+        }
+        processUpstream();
+    }
+
+    /**
+     * Decode whatever upstream data is buffered and flush it to the client.
+     */
+    private void processUpstream() throws IOException {
+        if (state != State.OPEN) {
+            return;
+        }
+        upstreamIn.flip();
+        decodeFrames();
+        upstreamIn.compact();
+        flushClient();
+    }
+
+    /**
+     * Read the handshake response. Expects the upstream buffer in read mode.
+     * 
+     * @return true if the handshake is complete, false if more data is needed
+     */
+    private boolean readHandshake() {
+        int end = indexOfHeaderEnd(upstreamIn);
+        if (end < 0) {
+            if (upstreamIn.limit() == upstreamIn.capacity()) {
+                listener.reportError("Handshake response too large for " + upgradePath + ".");
+                close();
+            }
+            return false;
+        }
+
+        byte[] headerBytes = new byte[end - upstreamIn.position()];
+        upstreamIn.get(headerBytes);
+        String[] headerLines = new String(headerBytes, StandardCharsets.US_ASCII).split("\r\n");
+        if (!headerLines[0].contains(" 101 ")) {
+            listener.reportError("Can't open tunnel to " + upgradePath + " (" + headerLines[0].trim() + ").");
+            close();
+            return false;
+        }
+
+        String expectedAccept = computeAccept(webSocketKey);
+        boolean accepted = false;
+        for (String headerLine : headerLines) {
+            int separator = headerLine.indexOf(':');
+            if (separator > 0 && headerLine.substring(0, separator).trim().equalsIgnoreCase("Sec-WebSocket-Accept")) {
+                accepted = headerLine.substring(separator + 1).trim().equals(expectedAccept);
+            }
+        }
+        if (!accepted) {
+            listener.reportError("Invalid websocket handshake for " + upgradePath + ".");
+            close();
+            return false;
+        }
+        state = State.OPEN;
+        return true;
+    }
+
+    /**
+     * Decode as many frames as possible. Expects the upstream buffer in read mode. Stops early when the client buffer is full.
+     */
+    private void decodeFrames() throws IOException {
+        while (state == State.OPEN && upstreamIn.hasRemaining()) {
+            if (!frameInProgress && !readFrameHeader()) {
+                return;
+            }
+            if (!frameInProgress) {
+                // A control frame was handled in full
+                continue;
+            }
+
+            // The first payload byte of every message is the channel
+            if (expectChannel && frameRemaining > 0) {
+                messageChannel = upstreamIn.get() & 0xFF;
+                frameRemaining--;
+                expectChannel = false;
+            }
+
+            while (frameRemaining > 0 && upstreamIn.hasRemaining()) {
+                if (messageChannel <= ERROR_CHANNEL && messageChannel >= 0 && portPrefixRemaining[messageChannel] > 0) {
+                    upstreamIn.get();
+                    portPrefixRemaining[messageChannel]--;
+                    frameRemaining--;
+                } else if (messageChannel == DATA_CHANNEL) {
+                    int count = (int) Math.min(frameRemaining, Math.min(upstreamIn.remaining(), clientOut.remaining()));
+                    if (count == 0) {
+                        // Client buffer is full - wait for it to drain
+                        return;
+                    }
+                    int limit = upstreamIn.limit();
+                    upstreamIn.limit(upstreamIn.position() + count);
+                    clientOut.put(upstreamIn);
+                    upstreamIn.limit(limit);
+                    frameRemaining -= count;
+                } else if (messageChannel == ERROR_CHANNEL) {
+                    errorMessage.append((char) (upstreamIn.get() & 0xFF));
+                    frameRemaining--;
+                } else {
+                    upstreamIn.get();
+                    frameRemaining--;
+                }
+            }
+
+            if (frameRemaining > 0) {
+                return;
+            }
+            frameInProgress = false;
+            if (frameFinal && errorMessage.length() > 0) {
+                listener.reportError(errorMessage.toString().trim());
+                errorMessage.setLength(0);
+            }
+        }
+    }
+
+    /**
+     * Read the next frame header. Control frames are only consumed once their whole payload is buffered and are handled immediately.
+     * 
+     * @return true if a header was consumed, false if more data is needed
+     */
+    private boolean readFrameHeader() throws IOException {
+        int start = upstreamIn.position();
+        int available = upstreamIn.remaining();
+        if (available < 2) {
+            return false;
+        }
+
+        int first = upstreamIn.get(start) & 0xFF;
+        int second = upstreamIn.get(start + 1) & 0xFF;
+        int headerLength = 2;
+        long payloadLength = second & 0x7F;
+        if (payloadLength == 126) {
+            headerLength = 4;
+            if (available < headerLength) {
+                return false;
+            }
+            payloadLength = upstreamIn.getShort(start + 2) & 0xFFFF;
+        } else if (payloadLength == 127) {
+            headerLength = 10;
+            if (available < headerLength) {
+                return false;
+            }
+            payloadLength = upstreamIn.getLong(start + 2);
+        }
+        if ((second & 0x80) != 0) {
+            throw new IOException("Server sent a masked websocket frame.");
+        }
+
+        int opcode = first & 0x0F;
+        if (opcode >= OPCODE_CLOSE) {
+            if (available < headerLength + payloadLength) {
+                return false;
+            }
+            upstreamIn.position(start + headerLength);
+            byte[] payload = new byte[(int) payloadLength];
+            upstreamIn.get(payload);
+            handleControlFrame(opcode, payload);
+            return true;
+        }
+
+        upstreamIn.position(start + headerLength);
+        frameInProgress = true;
+        frameFinal = (first & 0x80) != 0;
+        expectChannel = opcode != OPCODE_CONTINUATION;
+        frameRemaining = payloadLength;
+        return true;
+    }
+
+    /**
+     * Handle a control frame.
+     * 
+     * @param opcode the opcode
+     * @param payload the payload
+     */
+    private void handleControlFrame(int opcode, byte[] payload) throws IOException {
+        if (opcode == OPCODE_CLOSE) {
+            upstreamClosed = true;
+            upstreamIn.position(upstreamIn.limit());
+        } else if (opcode == OPCODE_PING) {
+            writeControlFrame(0xA, payload);
+            flushUpstream();
+        }
+    }
+
+    /**
+     * Write a masked binary data frame on the data channel.
+     * 
+     * @param payload the payload
+     */
+    private void writeDataFrame(ByteBuffer payload) {
+        int length = payload.remaining() + 1;
+        upstreamOut.put((byte) 0x82);
+        if (length < 126) {
+            upstreamOut.put((byte) (0x80 | length));
+        } else if (length < 65536) {
+            upstreamOut.put((byte) (0x80 | 126));
+            upstreamOut.putShort((short) length);
+        } else {
+            upstreamOut.put((byte) (0x80 | 127));
+            upstreamOut.putLong(length);
+        }
+        byte[] mask = new byte[4];
+        ThreadLocalRandom.current().nextBytes(mask);
+        upstreamOut.put(mask);
+        upstreamOut.put((byte) (DATA_CHANNEL ^ mask[0]));
+        int index = 1;
+        while (payload.hasRemaining()) {
+            upstreamOut.put((byte) (payload.get() ^ mask[index++ & 3]));
+        }
+    }
+
+    /**
+     * Write a masked control frame.
+     * 
+     * @param opcode the opcode
+     * @param payload the payload (at most 125 bytes)
+     */
+    private void writeControlFrame(int opcode, byte[] payload) {
+        upstreamOut.put((byte) (0x80 | opcode));
+        upstreamOut.put((byte) (0x80 | payload.length));
+        byte[] mask = new byte[4];
+        ThreadLocalRandom.current().nextBytes(mask);
+        upstreamOut.put(mask);
+        for (int i = 0; i < payload.length; i++) {
+            upstreamOut.put((byte) (payload[i] ^ mask[i & 3]));
+        }
+    }
+
+    /**
+     * Flush pending data to the upstream.
+     */
+    private void flushUpstream() throws IOException {
+        if (upstreamOut.position() > 0 && upstreamChannel.isConnected()) {
+            upstreamOut.flip();
+            upstreamChannel.write(upstreamOut);
+            upstreamOut.compact();
+        }
+    }
+
+    /**
+     * Flush pending data to the client.
+     */
+    private void flushClient() throws IOException {
+        if (clientOut.position() > 0) {
+            clientOut.flip();
+            listener.recordBytesIn(clientChannel.write(clientOut));
+            clientOut.compact();
+        }
+    }
+
+    /**
+     * Close the tunnel once the upstream is gone and everything it sent has been decoded and has reached the client. Decoding stops
+     * whenever the client buffer fills up, so frames can still be buffered after the client caught up - they're decoded here. Whatever is
+     * left once the client buffer has room is a frame the upstream never finished and is dropped.
+     */
+    private void closeIfDrained() throws IOException {
+        if (state == State.CLOSED || !upstreamClosed) {
+            return;
+        }
+        if (clientOut.position() == 0 && upstreamIn.position() > 0) {
+            int buffered = upstreamIn.position();
+            processUpstream();
+            if (state != State.CLOSED && upstreamIn.position() == buffered && clientOut.position() == 0) {
+                upstreamIn.clear();
+            }
+        }
+        if (state != State.CLOSED && clientOut.position() == 0 && upstreamIn.position() == 0) {
+            close();
+        }
+    }
+
+    /**
+     * Update the interest operations of both keys based on the current buffers. Reading is paused on a side whose output is backed up.
+     */
+    private void updateInterest() {
+        if (state == State.CLOSED) {
+            return;
+        }
+
+        int upstreamOps = 0;
+        if (state == State.CONNECTING) {
+            upstreamOps = SelectionKey.OP_CONNECT;
+        } else {
+            if (!upstreamClosed && upstreamIn.hasRemaining()) {
+                upstreamOps |= SelectionKey.OP_READ;
+            }
+            if (upstreamOut.position() > 0) {
+                upstreamOps |= SelectionKey.OP_WRITE;
+            }
+        }
+        upstreamKey.interestOps(upstreamOps);
+
+        int clientOps = 0;
+        if (state == State.OPEN && !upstreamClosed && !clientEof && upstreamOut.position() == 0) {
+            clientOps |= SelectionKey.OP_READ;
+        }
+        if (clientOut.position() > 0) {
+            clientOps |= SelectionKey.OP_WRITE;
+        }
+        clientKey.interestOps(clientOps);
+    }
+
+    /**
+     * Find the end of the HTTP header block. Expects the buffer in read mode.
+     * 
+     * @param buffer the buffer
+     * @return the index just past the blank line, or -1 if it hasn't arrived yet
+     */
+    private static int indexOfHeaderEnd(ByteBuffer buffer) {
+        for (int i = buffer.position(); i + 3 < buffer.limit(); i++) {
+            if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n' && buffer.get(i + 2) == '\r' && buffer.get(i + 3) == '\n') {
+                return i + 4;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compute the expected Sec-WebSocket-Accept value for a given key.
+     * 
+     * @param key the websocket key
+     * @return the accept value
+     */
+    private static String computeAccept(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest((key + WEBSOCKET_GUID).getBytes(StandardCharsets.US_ASCII));
+            return Base64.getEncoder().encodeToString(hash);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 isn't available - this should never happen.", e);
+        }
+    }
+
+    /**
+     * Close a channel and ignore any errors.
+     * 
+     * @param channel the channel
+     */
+    private static void closeQuietly(SocketChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.debug("Can't close tunnel channel.", e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,406 @@
+package com.sidneysimmons.plentifulports.forwarding.domain;
+
+import com.sidneysimmons.plentifulports.forwarding.ForwardingEventBus;
+import com.sidneysimmons.plentifulports.forwarding.NativeForwardingEngine;
+import com.sidneysimmons.plentifulports.forwarding.RunStateService;
+import com.sidneysimmons.plentifulports.kubernetes.KubernetesGateway;
+import com.sidneysimmons.plentifulports.settings.domain.PortConfiguration;
+import com.sidneysimmons.plentifulports.settings.domain.ServiceConfiguration;
+import com.sidneysimmons.plentifulports.thread.ThreadService;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Runnable to initiate lazy port forwarding with kubernetes. The local ports are bound in-process right away but the kubectl process is
+ * only started once the first connection arrives. kubectl listens on ephemeral ports and connections are relayed to it. Once nothing has
+ * been connected for the idle timeout the kubectl process is stopped again while the local ports stay bound.
+ * 
+ * @author Sidney Simmons
+ */
+@Slf4j
+public class LazyForwardingRunnable implements Forwarder {
+
+    private static final long UPSTREAM_START_TIMEOUT_SECONDS = 30;
+    private static final int MAX_UPSTREAM_ATTEMPTS = 3;
+
+    private ServiceConfiguration serviceConfiguration;
+    private ForwardingEventBus eventBus;
+    private KubernetesGateway kubernetesGateway;
+    private RunStateService runStateService;
+    private NativeForwardingEngine nativeForwardingEngine;
+    private ThreadService threadService;
+    private long idleTimeoutNanos;
+
+    private List<ForwardingListener> listeners = new CopyOnWriteArrayList<>();
+    private ScheduledFuture<?> idleCheck;
+    private ForwardingRunnable upstream;
+    private CompletableFuture<Map<Integer, Integer>> upstreamPorts;
+    private long upstreamStarted;
+    private volatile boolean isAlive = false;
+    private boolean killed = false;
+    private Consumer<ForwardingState> stateConsumer;
+    private ConnectionCounter connectionCounter;
+
+    /**
+     * Constructor.
+     * 
+     * @param serviceConfiguration the service configuration
+     * @param eventBus the forwarding event bus
+     * @param kubernetesGateway the kubernetes gateway
+     * @param runStateService the run-state service
+     * @param nativeForwardingEngine the engine serving the local ports
+     * @param threadService the thread service
+     * @param idleTimeoutSeconds seconds without any connection before kubectl is stopped
+     */
+    public LazyForwardingRunnable(ServiceConfiguration serviceConfiguration, ForwardingEventBus eventBus,
+            KubernetesGateway kubernetesGateway, RunStateService runStateService, NativeForwardingEngine nativeForwardingEngine,
+            ThreadService threadService, Integer idleTimeoutSeconds) {
+        this.serviceConfiguration = serviceConfiguration;
+        this.eventBus = eventBus;
+        this.kubernetesGateway = kubernetesGateway;
+        this.runStateService = runStateService;
+        this.nativeForwardingEngine = nativeForwardingEngine;
+        this.threadService = threadService;
+        this.idleTimeoutNanos = TimeUnit.SECONDS.toNanos(idleTimeoutSeconds);
+    }
+
+    @Override
+    public void run() {
+        // Set the alive flag to true unless we were killed before starting
+        synchronized (this) {
+            if (killed) {
+                notifyState(ForwardingState.STOPPED);
+                return;
+            }
+            isAlive = true;
+        }
+        logMessage(ForwardingEventType.STARTED, "Lazy port forwarding started for " + serviceConfiguration + ".");
+
+        try {
+            // Bind the local ports - kubectl isn't started until somebody connects
+            for (PortConfiguration port : serviceConfiguration.getPorts()) {
+                Integer localPort = Integer.valueOf(port.getLocal());
+                TunnelFactory tunnelFactory = (portListener, clientChannel) -> {
+                    if (connectionCounter != null) {
+                        connectionCounter.record(localPort);
+                    }
+                    eventBus.publish(new ForwardingEvent(ForwardingEventType.CONNECTION_HANDLED, serviceConfiguration, localPort));
+                    return new RelayTunnel(portListener, clientChannel, resolveUpstreamAddress(localPort), nativeForwardingEngine::execute);
+                };
+                ForwardingListener listener = nativeForwardingEngine.openListener(localPort, tunnelFactory,
+                        message -> eventBus.publish(new ForwardingEvent(ForwardingEventType.OUTPUT, serviceConfiguration, message)));
+                synchronized (this) {
+                    listeners.add(listener);
+                    if (!isAlive) {
+                        // Killed while we were still starting up
+                        closeListeners();
+                        return;
+                    }
+                }
+                eventBus.publish(new ForwardingEvent(ForwardingEventType.OUTPUT, serviceConfiguration,
+                        "Listening on 127.0.0.1:" + localPort + " until the first connection"));
+            }
+            synchronized (this) {
+                if (isAlive) {
+                    idleCheck = threadService.scheduleAtFixedRate(this::checkIdle, 1, TimeUnit.SECONDS);
+                }
+            }
+            notifyState(ForwardingState.READY);
+        } catch (IOException e) {
+            // Torn down here rather than through kill so the failure isn't followed by an exit and a stop - the idle check isn't scheduled
+            // yet, but a connection to a port bound so far may already have started kubectl
+            synchronized (this) {
+                if (!isAlive) {
+                    return;
+                }
+                isAlive = false;
+                closeListeners();
+                stopUpstream();
+            }
+            log.error("Can't start lazy forwarding for " + serviceConfiguration + ".", e);
+            logMessage(ForwardingEventType.FAILED, "Port forwarding failed for " + serviceConfiguration + ": " + e.getMessage());
+            notifyState(ForwardingState.FAILED);
+        }
+    }
+
+    @Override
+    public void kill() {
+        synchronized (this) {
+            killed = true;
+            if (!isAlive) {
+                return;
+            }
+            isAlive = false;
+            if (idleCheck != null) {
+                idleCheck.cancel(false);
+            }
+            closeListeners();
+            stopUpstream();
+        }
+
+        logMessage(ForwardingEventType.EXITED, "Port forwarding stopped for " + serviceConfiguration + ".");
+        notifyState(ForwardingState.STOPPED);
+    }
+
+    @Override
+    public void shutdown(long timeout, TimeUnit unit) {
+        ForwardingRunnable runnable = null;
+        synchronized (this) {
+            runnable = upstream;
+        }
+        kill();
+        if (runnable != null) {
+            runnable.shutdown(timeout, unit);
+        }
+    }
+
+    @Override
+    public Boolean isAlive() {
+        return isAlive;
+    }
+
+    @Override
+    public void setStateConsumer(Consumer<ForwardingState> stateConsumer) {
+        this.stateConsumer = stateConsumer;
+    }
+
+    @Override
+    public void setConnectionCounter(ConnectionCounter connectionCounter) {
+        this.connectionCounter = connectionCounter;
+    }
+
+    @Override
+    public Long readBytesIn() {
+        long bytes = 0;
+        for (ForwardingListener listener : listeners) {
+            bytes += listener.getBytesIn();
+        }
+        return bytes;
+    }
+
+    @Override
+    public Long readBytesOut() {
+        long bytes = 0;
+        for (ForwardingListener listener : listeners) {
+            bytes += listener.getBytesOut();
+        }
+        return bytes;
+    }
+
+    /**
+     * Resolve the upstream address for a given local port. Starts kubectl if it isn't already running. Called from the selector thread so
+     * it never waits on kubectl.
+     * 
+     * @param localPort the local port
+     * @return future for the upstream address
+     */
+    private CompletableFuture<InetSocketAddress> resolveUpstreamAddress(Integer localPort) {
+        return ensureUpstream().thenApply(ports -> new InetSocketAddress(InetAddress.getLoopbackAddress(), ports.get(localPort)));
+    }
+
+    /**
+     * Start the kubectl process if it isn't already running.
+     * 
+     * @return future for the map of local ports to kubectl's ephemeral ports, completed once kubectl is listening on all of them
+     */
+    private synchronized CompletableFuture<Map<Integer, Integer>> ensureUpstream() {
+        if (!isAlive) {
+            CompletableFuture<Map<Integer, Integer>> stopped = new CompletableFuture<>();
+            stopped.completeExceptionally(new IllegalStateException("Forwarding is stopped."));
+            return stopped;
+        }
+        if (upstream != null) {
+            return upstreamPorts;
+        }
+
+        CompletableFuture<Map<Integer, Integer>> ready = new CompletableFuture<>();
+        upstreamPorts = ready;
+        upstreamStarted = System.nanoTime();
+        startUpstream(ready, 1);
+        if (upstream != null) {
+            threadService.schedule(() -> expireUpstream(ready), UPSTREAM_START_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        return ready;
+    }
+
+    /**
+     * Start a kubectl process on fresh ephemeral ports. Must be called while holding the lock.
+     * 
+     * @param ready the future to complete once kubectl is listening on all of the ports
+     * @param attempt the number of the attempt, starting at one
+     */
+    private void startUpstream(CompletableFuture<Map<Integer, Integer>> ready, int attempt) {
+        // Point kubectl at free ephemeral ports - the configured local ports are held by our listeners
+        Map<Integer, Integer> ports = new HashMap<>();
+        ServiceConfiguration upstreamConfiguration = new ServiceConfiguration();
+        upstreamConfiguration.setServiceName(serviceConfiguration.getServiceName());
+        upstreamConfiguration.setServiceNamespace(serviceConfiguration.getServiceNamespace());
+        upstreamConfiguration.setContext(serviceConfiguration.getContext());
+        try {
+            for (PortConfiguration port : serviceConfiguration.getPorts()) {
+                Integer ephemeralPort = findFreePort();
+                ports.put(Integer.valueOf(port.getLocal()), ephemeralPort);
+                upstreamConfiguration.getPorts().add(new PortConfiguration(String.valueOf(ephemeralPort), port.getRemote()));
+            }
+        } catch (IOException e) {
+            ready.completeExceptionally(e);
+            upstream = null;
+            upstreamPorts = null;
+            return;
+        }
+
+        // Complete once kubectl reports every ephemeral port as forwarding - kubectl gets no connection counter and publishes its events
+        // for its own configuration, so the relayed connections it reports aren't counted a second time. The probe socket of a port is
+        // closed before kubectl binds it, so somebody else may take the port in between - kubectl is stopped right away in that case.
+        ForwardingRunnable runnable = new ForwardingRunnable(upstreamConfiguration, eventBus, kubernetesGateway, runStateService);
+        AtomicBoolean bindFailed = new AtomicBoolean(false);
+        runnable.setStateConsumer(state -> {
+            if (state == ForwardingState.READY) {
+                ready.complete(ports);
+            }
+        });
+        runnable.setBindFailureHandler(port -> {
+            bindFailed.set(true);
+            runnable.kill();
+        });
+        upstream = runnable;
+        threadService.execute(() -> runUpstream(runnable, ready, attempt, bindFailed));
+    }
+
+    /**
+     * Run the kubectl process until it exits. kubectl that couldn't bind its ephemeral ports is started again on other ports.
+     * 
+     * @param runnable the kubectl forwarding runnable
+     * @param ready the readiness future of the runnable
+     * @param attempt the number of the attempt, starting at one
+     * @param bindFailed whether kubectl failed to bind one of its ports
+     */
+    private void runUpstream(ForwardingRunnable runnable, CompletableFuture<Map<Integer, Integer>> ready, int attempt,
+            AtomicBoolean bindFailed) {
+        runnable.run();
+        synchronized (this) {
+            if (upstream == runnable && isAlive && !ready.isDone() && bindFailed.get() && attempt < MAX_UPSTREAM_ATTEMPTS) {
+                log.info("kubectl couldn't bind its ports for " + serviceConfiguration + " - retrying with other ports.");
+                startUpstream(ready, attempt + 1);
+                return;
+            }
+            ready.completeExceptionally(new IOException("kubectl exited before forwarding started."));
+            if (upstream == runnable) {
+                upstream = null;
+                upstreamPorts = null;
+            }
+        }
+    }
+
+    /**
+     * Give up on a kubectl process that didn't start forwarding in time. It's stopped so the next connection starts a new one instead of
+     * waiting on the hung one.
+     * 
+     * @param ready the readiness future of the kubectl process
+     */
+    private void expireUpstream(CompletableFuture<Map<Integer, Integer>> ready) {
+        if (!ready.completeExceptionally(new TimeoutException("kubectl didn't start forwarding in time."))) {
+            return;
+        }
+        synchronized (this) {
+            if (upstreamPorts == ready) {
+                logMessage(ForwardingEventType.OUTPUT, "kubectl didn't start forwarding for " + serviceConfiguration
+                        + " in time - starting it again on the next connection.");
+                stopUpstream();
+            }
+        }
+    }
+
+    /**
+     * Stop kubectl once none of the listeners has had a connection for the idle timeout.
+     */
+    private synchronized void checkIdle() {
+        if (!isAlive || upstream == null) {
+            return;
+        }
+        long lastActivity = upstreamStarted;
+        for (ForwardingListener listener : listeners) {
+            if (listener.getOpenTunnelCount() > 0) {
+                return;
+            }
+            lastActivity = Math.max(lastActivity, listener.getLastActivity());
+        }
+        if (System.nanoTime() - lastActivity >= idleTimeoutNanos) {
+            logMessage(ForwardingEventType.OUTPUT,
+                    "No connections for " + serviceConfiguration + " - stopping kubectl until the next connection.");
+            stopUpstream();
+        }
+    }
+
+    /**
+     * Stop the kubectl process if it's running.
+     */
+    private void stopUpstream() {
+        if (upstream != null) {
+            upstream.kill();
+            upstream = null;
+            upstreamPorts = null;
+        }
+    }
+
+    /**
+     * Close all of the listeners opened so far.
+     */
+    private void closeListeners() {
+        for (ForwardingListener listener : listeners) {
+            nativeForwardingEngine.closeListener(listener);
+        }
+        listeners.clear();
+    }
+
+    /**
+     * Find a free local port for kubectl to listen on.
+     * 
+     * @return the port
+     * @throws IOException thrown if no port can be found
+     */
+    private static Integer findFreePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Tell the state consumer about a lifecycle change.
+     * 
+     * @param state the new state
+     */
+    private void notifyState(ForwardingState state) {
+        if (state == ForwardingState.READY) {
+            eventBus.publish(new ForwardingEvent(ForwardingEventType.READY, serviceConfiguration, null));
+        }
+        if (stateConsumer != null) {
+            stateConsumer.accept(state);
+        }
+    }
+
+    /**
+     * Log a message to the log and also publish it as an event.
+     * 
+     * @param type the type of the event
+     * @param message the message
+     */
+    private void logMessage(ForwardingEventType type, String message) {
+        log.info(message);
+        eventBus.publish(new ForwardingEvent(type, serviceConfiguration, message));
+    }
+
+}
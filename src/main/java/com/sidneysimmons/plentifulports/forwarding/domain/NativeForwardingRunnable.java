@@ -0,0 +1,292 @@
+package com.sidneysimmons.plentifulports.forwarding.domain;
+
+import com.sidneysimmons.plentifulports.forwarding.ForwardingEventBus;
+import com.sidneysimmons.plentifulports.forwarding.NativeForwardingEngine;
+import com.sidneysimmons.plentifulports.kubernetes.KubernetesApiClient;
+import com.sidneysimmons.plentifulports.kubernetes.domain.KubernetesEndpoint;
+import com.sidneysimmons.plentifulports.kubernetes.exception.KubernetesException;
+import com.sidneysimmons.plentifulports.settings.domain.LoadBalancing;
+import com.sidneysimmons.plentifulports.settings.domain.PortConfiguration;
+import com.sidneysimmons.plentifulports.settings.domain.ServiceConfiguration;
+import com.sidneysimmons.plentifulports.thread.ThreadService;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.ObjectUtils;
+
+/**
+ * Runnable to initiate the port forwarding with kubernetes through the native forwarding engine. Running it resolves the endpoints and
+ * binds the local ports - it doesn't hold on to the thread afterwards. Each port is forwarded to a pool of ready pods - a single one unless
+ * the service is load balanced - and the endpoints of the service are watched. Once a pod leaves the ready set, new connections go to
+ * another ready pod while open ones drain on the old pod.
+ * 
+ * @author Sidney Simmons
+ */
+@Slf4j
+public class NativeForwardingRunnable implements Forwarder {
+
+    private static final long MIN_WATCH_BACKOFF_MILLIS = 1000;
+    private static final long MAX_WATCH_BACKOFF_MILLIS = 30000;
+
+    private ServiceConfiguration serviceConfiguration;
+    private ForwardingEventBus eventBus;
+    private KubernetesApiClient kubernetesApiClient;
+    private NativeForwardingEngine nativeForwardingEngine;
+    private ThreadService threadService;
+
+    private List<ForwardingListener> listeners = new CopyOnWriteArrayList<>();
+    private Map<Integer, PodPool> podPools = new ConcurrentHashMap<>();
+    private volatile boolean isAlive = false;
+    private boolean killed = false;
+    private Consumer<ForwardingState> stateConsumer;
+    private ConnectionCounter connectionCounter;
+
+    /**
+     * Constructor.
+     * 
+     * @param serviceConfiguration the service configuration
+     * @param eventBus the forwarding event bus
+     * @param kubernetesApiClient the kubernetes API client
+     * @param nativeForwardingEngine the native forwarding engine
+     * @param threadService the thread service
+     */
+    public NativeForwardingRunnable(ServiceConfiguration serviceConfiguration, ForwardingEventBus eventBus,
+            KubernetesApiClient kubernetesApiClient, NativeForwardingEngine nativeForwardingEngine, ThreadService threadService) {
+        this.serviceConfiguration = serviceConfiguration;
+        this.eventBus = eventBus;
+        this.kubernetesApiClient = kubernetesApiClient;
+        this.nativeForwardingEngine = nativeForwardingEngine;
+        this.threadService = threadService;
+    }
+
+    @Override
+    public void run() {
+        // Set the alive flag to true unless we were killed before starting
+        synchronized (this) {
+            if (killed) {
+                notifyState(ForwardingState.STOPPED);
+                return;
+            }
+            isAlive = true;
+        }
+        logMessage(ForwardingEventType.STARTED, "Port forwarding started for " + serviceConfiguration + ".");
+
+        try {
+            // Pool the ready pods of each port and bind the local side - the pod is picked per connection
+            LoadBalancing loadBalancing = ObjectUtils.defaultIfNull(serviceConfiguration.getLoadBalancing(), LoadBalancing.NONE);
+            Integer podCount = ObjectUtils.defaultIfNull(serviceConfiguration.getPodCount(), Integer.MAX_VALUE);
+            InetSocketAddress proxyAddress = kubernetesApiClient.readProxyAddress(serviceConfiguration.getContext());
+            for (PortConfiguration port : serviceConfiguration.getPorts()) {
+                Integer remotePort = Integer.valueOf(port.getRemote());
+                List<KubernetesEndpoint> endpoints = kubernetesApiClient.readServiceEndpoints(serviceConfiguration.getContext(),
+                        serviceConfiguration.getServiceNamespace(), serviceConfiguration.getServiceName(), remotePort);
+                if (endpoints.isEmpty()) {
+                    throw new KubernetesException("No ready pods for port " + remotePort + ".");
+                }
+                PodPool podPool = new PodPool(loadBalancing, podCount);
+                podPool.update(endpoints);
+                podPools.put(remotePort, podPool);
+                TunnelFactory tunnelFactory = (portListener, clientChannel) -> {
+                    if (connectionCounter != null) {
+                        connectionCounter.record(portListener.getLocalPort());
+                    }
+                    eventBus.publish(new ForwardingEvent(ForwardingEventType.CONNECTION_HANDLED, serviceConfiguration,
+                            portListener.getLocalPort()));
+                    KubernetesEndpoint endpoint = podPool.acquire();
+                    ForwardingTunnel tunnel = new ForwardingTunnel(portListener, clientChannel, proxyAddress,
+                            kubernetesApiClient.buildPortForwardPath(endpoint));
+                    tunnel.setCloseHandler(() -> podPool.release(endpoint));
+                    return tunnel;
+                };
+                ForwardingListener listener = nativeForwardingEngine.openListener(Integer.valueOf(port.getLocal()), tunnelFactory,
+                        message -> eventBus.publish(new ForwardingEvent(ForwardingEventType.OUTPUT, serviceConfiguration, message)));
+                synchronized (this) {
+                    listeners.add(listener);
+                    if (!isAlive) {
+                        // Killed while we were still starting up
+                        closeListeners();
+                        return;
+                    }
+                }
+                eventBus.publish(new ForwardingEvent(ForwardingEventType.OUTPUT, serviceConfiguration, "Forwarding from 127.0.0.1:"
+                        + port.getLocal() + " -> " + endpoints.get(0).getPort() + " on " + describePods(podPool.readMembers())));
+            }
+            threadService.execute(this::watchEndpoints);
+            notifyState(ForwardingState.READY);
+        } catch (KubernetesException | IOException e) {
+            // Torn down here rather than through kill so the failure isn't followed by an exit and a stop - a kill that got here first
+            // already reported the stop
+            synchronized (this) {
+                if (!isAlive) {
+                    return;
+                }
+                isAlive = false;
+                closeListeners();
+            }
+            log.error("Can't start native forwarding for " + serviceConfiguration + ".", e);
+            logMessage(ForwardingEventType.FAILED, "Port forwarding failed for " + serviceConfiguration + ": " + e.getMessage());
+            notifyState(ForwardingState.FAILED);
+        }
+    }
+
+    @Override
+    public void kill() {
+        synchronized (this) {
+            killed = true;
+            if (!isAlive) {
+                return;
+            }
+            isAlive = false;
+            closeListeners();
+        }
+
+        logMessage(ForwardingEventType.EXITED, "Port forwarding stopped for " + serviceConfiguration + ".");
+        notifyState(ForwardingState.STOPPED);
+    }
+
+    @Override
+    public Boolean isAlive() {
+        return isAlive;
+    }
+
+    @Override
+    public void setStateConsumer(Consumer<ForwardingState> stateConsumer) {
+        this.stateConsumer = stateConsumer;
+    }
+
+    @Override
+    public void setConnectionCounter(ConnectionCounter connectionCounter) {
+        this.connectionCounter = connectionCounter;
+    }
+
+    @Override
+    public Long readBytesIn() {
+        long bytes = 0;
+        for (ForwardingListener listener : listeners) {
+            bytes += listener.getBytesIn();
+        }
+        return bytes;
+    }
+
+    @Override
+    public Long readBytesOut() {
+        long bytes = 0;
+        for (ForwardingListener listener : listeners) {
+            bytes += listener.getBytesOut();
+        }
+        return bytes;
+    }
+
+    /**
+     * Watch the endpoints of the service for as long as the forwarding is alive. The API server ends each watch after a while and a
+     * stopped forwarding only notices once its current watch ends.
+     */
+    private void watchEndpoints() {
+        List<Integer> remotePorts = new ArrayList<>(podPools.keySet());
+        long backoffMillis = MIN_WATCH_BACKOFF_MILLIS;
+        while (isAlive) {
+            try {
+                kubernetesApiClient.watchServiceEndpoints(serviceConfiguration.getContext(), serviceConfiguration.getServiceNamespace(),
+                        serviceConfiguration.getServiceName(), remotePorts, this::updateEndpoints);
+                backoffMillis = MIN_WATCH_BACKOFF_MILLIS;
+            } catch (KubernetesException e) {
+                if (!isAlive) {
+                    return;
+                }
+                log.warn("Can't watch the endpoints of " + serviceConfiguration + " - retrying in " + backoffMillis + "ms.", e);
+                try {
+                    TimeUnit.MILLISECONDS.sleep(backoffMillis);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                backoffMillis = Math.min(backoffMillis * 2, MAX_WATCH_BACKOFF_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * Update the pod pools with the currently ready pods. Pods that are no longer ready are failed over from right away.
+     * 
+     * @param endpoints the ready endpoints of each remote port
+     */
+    private void updateEndpoints(Map<Integer, List<KubernetesEndpoint>> endpoints) {
+        if (!isAlive) {
+            return;
+        }
+        for (Entry<Integer, List<KubernetesEndpoint>> entry : endpoints.entrySet()) {
+            PodPool podPool = podPools.get(entry.getKey());
+            List<KubernetesEndpoint> before = podPool.readMembers();
+            List<KubernetesEndpoint> dropped = podPool.update(entry.getValue());
+            List<KubernetesEndpoint> after = podPool.readMembers();
+            if (entry.getValue().isEmpty()) {
+                logMessage(ForwardingEventType.OUTPUT, "No ready pods left for port " + entry.getKey() + " of " + serviceConfiguration
+                        + " - staying on " + describePods(after) + ".");
+            } else if (!dropped.isEmpty()) {
+                logMessage(ForwardingEventType.OUTPUT, "Dropped " + describePods(dropped) + " since it's no longer ready - new connections"
+                        + " to port " + entry.getKey() + " of " + serviceConfiguration + " go to " + describePods(after) + ".");
+            } else if (!before.equals(after)) {
+                logMessage(ForwardingEventType.OUTPUT, "Connections to port " + entry.getKey() + " of " + serviceConfiguration
+                        + " now go to " + describePods(after) + ".");
+            }
+        }
+    }
+
+    /**
+     * Describe the given pods for the ports monitor.
+     * 
+     * @param pods the pods
+     * @return the description
+     */
+    private static String describePods(List<KubernetesEndpoint> pods) {
+        List<String> podNames = new ArrayList<>();
+        for (KubernetesEndpoint pod : pods) {
+            podNames.add(pod.getPodName());
+        }
+        return (podNames.size() == 1 ? "pod " : "pods ") + String.join(", ", podNames);
+    }
+
+    /**
+     * Close all of the listeners opened so far.
+     */
+    private void closeListeners() {
+        for (ForwardingListener listener : listeners) {
+            nativeForwardingEngine.closeListener(listener);
+        }
+        listeners.clear();
+    }
+
+    /**
+     * Tell the state consumer about a lifecycle change.
+     * 
+     * @param state the new state
+     */
+    private void notifyState(ForwardingState state) {
+        if (state == ForwardingState.READY) {
+            eventBus.publish(new ForwardingEvent(ForwardingEventType.READY, serviceConfiguration, null));
+        }
+        if (stateConsumer != null) {
+            stateConsumer.accept(state);
+        }
+    }
+
+    /**
+     * Log a message to the log and also publish it as an event.
+     * 
+     * @param type the type of the event
+     * @param message the message
+     */
+    private void logMessage(ForwardingEventType type, String message) {
+        log.info(message);
+        eventBus.publish(new ForwardingEvent(type, serviceConfiguration, message));
+    }
+
+}
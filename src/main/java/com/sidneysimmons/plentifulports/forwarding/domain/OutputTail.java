@@ -0,0 +1,178 @@
+package com.sidneysimmons.plentifulports.forwarding.domain;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Follows the output file of a process line by line, similar to "tail -f". kubectl writes to a file instead of a pipe so that it survives
+ * the application going away and can be adopted by the next run. The process appends to the file, so once everything has been read and
+ * the file grew past its limit it's truncated - a forward that runs for weeks doesn't fill up the disk. Lines are handed out as the raw
+ * bytes of a reused buffer so callers can recognize the frequent ones without decoding them.
+ * 
+ * @author Sidney Simmons
+ */
+public class OutputTail implements Closeable {
+
+    private static final long MIN_POLL_INTERVAL_MILLIS = 50;
+    private static final long MAX_POLL_INTERVAL_MILLIS = 1000;
+    private static final int BUFFER_SIZE = 8192;
+    private static final int INITIAL_LINE_SIZE = 256;
+    private static final long MAX_FILE_SIZE = 1024 * 1024;
+
+    private FileChannel channel;
+    private ProcessHandle process;
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).limit(0);
+    private byte[] line = new byte[INITIAL_LINE_SIZE];
+    private int lineLength = 0;
+    private boolean lineTaken = false;
+    private long pollIntervalMillis = MIN_POLL_INTERVAL_MILLIS;
+    private boolean exited = false;
+
+    /**
+     * Constructor.
+     * 
+     * @param outputFile the output file of the process
+     * @param process the process writing to the file
+     * @param fromEnd whether to skip whatever has been written so far
+     * @throws IOException thrown if the file can't be opened
+     */
+    public OutputTail(Path outputFile, ProcessHandle process, Boolean fromEnd) throws IOException {
+        this.channel = FileChannel.open(outputFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.process = process;
+        if (fromEnd) {
+            channel.position(channel.size());
+        }
+    }
+
+    /**
+     * Move on to the next complete line. Waits for more output while the process is alive, polling less and less often the longer the
+     * process stays quiet. The line can be read through {@link #getLineBytes()} and {@link #getLineLength()} until the next call.
+     * 
+     * @return true if there's a line, false once the process exited and all of its output has been read
+     * @throws IOException thrown if the file can't be read
+     * @throws InterruptedException thrown if interrupted while waiting for output
+     */
+    public boolean nextLine() throws IOException, InterruptedException {
+        if (lineTaken) {
+            lineLength = 0;
+            lineTaken = false;
+        }
+        while (true) {
+            if (scanLine()) {
+                lineTaken = true;
+                return true;
+            }
+            buffer.clear();
+            int read = channel.read(buffer);
+            buffer.flip();
+            if (read > 0) {
+                pollIntervalMillis = MIN_POLL_INTERVAL_MILLIS;
+            } else if (exited) {
+                lineTaken = true;
+                return lineLength > 0;
+            } else if (!process.isAlive()) {
+                // Drain whatever was written right before the exit
+                exited = true;
+            } else {
+                truncateIfCaughtUp();
+                Thread.sleep(pollIntervalMillis);
+                pollIntervalMillis = Math.min(pollIntervalMillis * 2, MAX_POLL_INTERVAL_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * Return the bytes of the current line. The array is reused for the next line and only holds the line up to
+     * {@link #getLineLength()}, without the line break.
+     * 
+     * @return the bytes of the line
+     */
+    public byte[] getLineBytes() {
+        return line;
+    }
+
+    /**
+     * Return the length of the current line.
+     * 
+     * @return the number of bytes in the line
+     */
+    public int getLineLength() {
+        return lineLength;
+    }
+
+    /**
+     * Decode the current line.
+     * 
+     * @return the line
+     */
+    public String getLine() {
+        return new String(line, 0, lineLength, Charset.defaultCharset());
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Move the buffered bytes up to the next line break over to the line.
+     * 
+     * @return true if a line break was found, false if the buffer ran out first
+     */
+    private boolean scanLine() {
+        byte[] bytes = buffer.array();
+        int start = buffer.position();
+        int end = buffer.limit();
+        for (int i = start; i < end; i++) {
+            if (bytes[i] == '\n') {
+                appendToLine(bytes, start, i - start);
+                buffer.position(i + 1);
+                return true;
+            }
+        }
+        appendToLine(bytes, start, end - start);
+        buffer.position(end);
+        return false;
+    }
+
+    /**
+     * Append bytes to the line, growing it if needed.
+     * 
+     * @param bytes the bytes
+     * @param offset the offset of the first byte to append
+     * @param length the number of bytes to append
+     */
+    private void appendToLine(byte[] bytes, int offset, int length) {
+        if (lineLength + length > line.length) {
+            line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + length));
+        }
+        System.arraycopy(bytes, offset, line, lineLength, length);
+        lineLength += length;
+    }
+
+    /**
+     * Truncate the file once everything in it has been read and it grew past its limit. The process appends, so it simply carries on at
+     * the start of the file. Bytes appended between the size check and the truncation are lost, which is why this only happens while
+     * the process is quiet.
+     * 
+     * @throws IOException thrown if the file can't be truncated
+     */
+    private void truncateIfCaughtUp() throws IOException {
+        long position = channel.position();
+        long size = channel.size();
+        if (size < position) {
+            // Truncated by someone else - start over from the beginning
+            channel.position(0);
+        } else if (position >= MAX_FILE_SIZE && size == position) {
+            channel.truncate(0);
+            channel.position(0);
+        }
+    }
+
+}
@@ -0,0 +1,108 @@
+package com.sidneysimmons.plentifulports.forwarding.domain;
+
+import com.sidneysimmons.plentifulports.kubernetes.domain.KubernetesEndpoint;
+import com.sidneysimmons.plentifulports.settings.domain.LoadBalancing;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The pods a single remote port is forwarded to. Connections are spread over up to a given number of ready pods. Pods stay in the pool for
+ * as long as they're ready so open connections don't move around for no reason.
+ * 
+ * @author Sidney Simmons
+ */
+public class PodPool {
+
+    private LoadBalancing loadBalancing;
+    private int size;
+    private Map<KubernetesEndpoint, Integer> openConnections = new LinkedHashMap<>();
+    private List<KubernetesEndpoint> members = new ArrayList<>();
+    private int next = 0;
+
+    /**
+     * Constructor.
+     * 
+     * @param loadBalancing how to spread the connections
+     * @param size the maximum number of pods, ignored without load balancing
+     */
+    public PodPool(LoadBalancing loadBalancing, Integer size) {
+        this.loadBalancing = loadBalancing;
+        this.size = loadBalancing == LoadBalancing.NONE ? 1 : size;
+    }
+
+    /**
+     * Update the pool with the currently ready pods. Pods that are no longer ready are dropped and free spots are filled with other ready
+     * pods. Without any ready pod the pool is left as it is - its pods may still be serving while they terminate.
+     * 
+     * @param ready the ready pods
+     * @return the pods dropped from the pool
+     */
+    public synchronized List<KubernetesEndpoint> update(List<KubernetesEndpoint> ready) {
+        List<KubernetesEndpoint> dropped = new ArrayList<>();
+        if (ready.isEmpty()) {
+            return dropped;
+        }
+        for (KubernetesEndpoint member : new ArrayList<>(members)) {
+            if (!ready.contains(member)) {
+                members.remove(member);
+                openConnections.remove(member);
+                dropped.add(member);
+            }
+        }
+        for (KubernetesEndpoint endpoint : ready) {
+            if (members.size() >= size) {
+                break;
+            }
+            if (!members.contains(endpoint)) {
+                members.add(endpoint);
+                openConnections.put(endpoint, 0);
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * Pick the pod for a new connection and count the connection against it. Called from the selector thread.
+     * 
+     * @return the pod, null if the pool is empty
+     */
+    public synchronized KubernetesEndpoint acquire() {
+        if (members.isEmpty()) {
+            return null;
+        }
+        KubernetesEndpoint picked = null;
+        if (loadBalancing == LoadBalancing.LEAST_CONNECTIONS) {
+            for (KubernetesEndpoint member : members) {
+                if (picked == null || openConnections.get(member) < openConnections.get(picked)) {
+                    picked = member;
+                }
+            }
+        } else {
+            next = next % members.size();
+            picked = members.get(next++);
+        }
+        openConnections.merge(picked, 1, Integer::sum);
+        return picked;
+    }
+
+    /**
+     * Stop counting a connection against a given pod once the connection is closed.
+     * 
+     * @param endpoint the pod
+     */
+    public synchronized void release(KubernetesEndpoint endpoint) {
+        openConnections.computeIfPresent(endpoint, (member, count) -> Math.max(0, count - 1));
+    }
+
+    /**
+     * Read the pods in the pool.
+     * 
+     * @return a copy of the pods
+     */
+    public synchronized List<KubernetesEndpoint> readMembers() {
+        return new ArrayList<>(members);
+    }
+
+}
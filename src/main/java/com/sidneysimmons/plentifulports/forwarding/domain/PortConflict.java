@@ -0,0 +1,45 @@
+package com.sidneysimmons.plentifulports.forwarding.domain;
+
+import com.sidneysimmons.plentifulports.settings.domain.ServiceConfiguration;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Local port of a service that's already taken by some other process.
+ * 
+ * @author Sidney Simmons
+ */
+@Data
+@NoArgsConstructor
+public class PortConflict {
+
+    private ServiceConfiguration serviceConfiguration;
+    private Integer localPort;
+    private Long ownerPid;
+    private String ownerName;
+
+    public PortConflict(ServiceConfiguration serviceConfiguration, Integer localPort, Long ownerPid, String ownerName) {
+        this.serviceConfiguration = serviceConfiguration;
+        this.localPort = localPort;
+        this.ownerPid = ownerPid;
+        this.ownerName = ownerName;
+    }
+
+    /**
+     * Describe the conflict for the user.
+     * 
+     * @return the description
+     */
+    public String describe() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("Local port ").append(localPort).append(" of ").append(serviceConfiguration).append(" is already in use");
+        if (ownerPid != null) {
+            builder.append(" by PID ").append(ownerPid);
+            if (ownerName != null) {
+                builder.append(" (").append(ownerName).append(")");
+            }
+        }
+        return builder.append(".").toString();
+    }
+
+}
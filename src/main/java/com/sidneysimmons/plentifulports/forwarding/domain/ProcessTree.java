@@ -0,0 +1,70 @@
+package com.sidneysimmons.plentifulports.forwarding.domain;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Helpers for stopping a process along with everything it spawned.
+ * 
+ * @author Sidney Simmons
+ */
+@Slf4j
+public final class ProcessTree {
+
+    private static final long POLL_INTERVAL_MILLIS = 20;
+
+    private ProcessTree() {
+        // No need to instantiate this
+    }
+
+    /**
+     * Read a process along with all of its descendants.
+     * 
+     * @param process the process
+     * @return the process tree, the process itself first
+     */
+    public static List<ProcessHandle> read(ProcessHandle process) {
+        List<ProcessHandle> processTree = new ArrayList<>();
+        processTree.add(process);
+        process.descendants().forEach(processTree::add);
+        return processTree;
+    }
+
+    /**
+     * Ask a process and all of its descendants to stop without waiting for them.
+     * 
+     * @param process the process
+     */
+    public static void destroy(ProcessHandle process) {
+        read(process).forEach(ProcessHandle::destroy);
+    }
+
+    /**
+     * Wait for a process tree that has been asked to stop and kill whatever is left once the timeout is up.
+     * 
+     * @param processTree the process tree
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @param owner description of whoever owns the processes for the log
+     */
+    public static void awaitOrKill(List<ProcessHandle> processTree, long timeout, TimeUnit unit, String owner) {
+        // Poll instead of waiting on onExit() - the JDK only polls every few seconds for processes that aren't its own children
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        try {
+            while (processTree.stream().anyMatch(ProcessHandle::isAlive) && System.nanoTime() < deadline) {
+                Thread.sleep(POLL_INTERVAL_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (ProcessHandle handle : processTree) {
+            if (handle.isAlive()) {
+                log.warn("Process " + handle.pid() + " of " + owner + " didn't stop in time - killing it forcibly.");
+                handle.destroyForcibly();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,228 @@
+package com.sidneysimmons.plentifulports.forwarding.domain;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A single local connection relayed byte for byte to an upstream TCP port. The upstream address arrives through a future so that the
+ * client can be accepted before the upstream exists. Half-closes are passed through in both directions.
+ * 
+ * @author Sidney Simmons
+ */
+@Slf4j
+public class RelayTunnel implements Tunnel {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private ForwardingListener listener;
+    private SocketChannel clientChannel;
+    private SocketChannel upstreamChannel;
+    private SelectionKey clientKey;
+    private SelectionKey upstreamKey;
+    private Selector selector;
+    private CompletableFuture<InetSocketAddress> upstreamAddress;
+    private Executor selectorExecutor;
+    private boolean upstreamConnected = false;
+    private boolean clientEof = false;
+    private boolean upstreamEof = false;
+    private boolean upstreamOutputShutdown = false;
+    private boolean clientOutputShutdown = false;
+    private boolean closed = false;
+
+    // Both buffers are kept in write mode between events
+    private ByteBuffer clientToUpstream = ByteBuffer.allocate(BUFFER_SIZE);
+    private ByteBuffer upstreamToClient = ByteBuffer.allocate(BUFFER_SIZE);
+
+    /**
+     * Constructor.
+     * 
+     * @param listener the listener that accepted the client
+     * @param clientChannel the accepted client channel
+     * @param upstreamAddress future for the upstream address
+     * @param selectorExecutor executor that runs tasks on the selector thread
+     */
+    public RelayTunnel(ForwardingListener listener, SocketChannel clientChannel, CompletableFuture<InetSocketAddress> upstreamAddress,
+            Executor selectorExecutor) {
+        this.listener = listener;
+        this.clientChannel = clientChannel;
+        this.upstreamAddress = upstreamAddress;
+        this.selectorExecutor = selectorExecutor;
+    }
+
+    @Override
+    public void connect(Selector selector) throws IOException {
+        this.selector = selector;
+        clientChannel.configureBlocking(false);
+        clientChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        clientKey = clientChannel.register(selector, 0, this);
+        updateInterest();
+
+        // Connect upstream once the address is known - always hop back onto the selector thread
+        upstreamAddress.whenComplete((address, error) -> selectorExecutor.execute(() -> {
+            if (closed) {
+                return;
+            }
+            if (error != null) {
+                listener.reportError("Can't relay port " + listener.getLocalPort() + ": " + rootMessage(error));
+                close();
+                return;
+            }
+            try {
+                connectUpstream(address);
+            } catch (IOException e) {
+                listener.reportError("Can't relay port " + listener.getLocalPort() + ": " + e.getMessage());
+                close();
+            }
+        }));
+    }
+
+    @Override
+    public void handle(SelectionKey key) throws IOException {
+        if (key == upstreamKey) {
+            if (key.isConnectable() && upstreamChannel.finishConnect()) {
+                upstreamConnected = true;
+            }
+            if (!closed && key.isReadable()) {
+                if (upstreamChannel.read(upstreamToClient) < 0) {
+                    upstreamEof = true;
+                }
+            }
+        } else {
+            if (key.isReadable()) {
+                if (clientChannel.read(clientToUpstream) < 0) {
+                    clientEof = true;
+                }
+            }
+        }
+        if (!closed) {
+            flush();
+            updateInterest();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        closeQuietly(clientChannel);
+        closeQuietly(upstreamChannel);
+        listener.tunnelClosed(this);
+    }
+
+    /**
+     * Start connecting to the upstream.
+     * 
+     * @param address the upstream address
+     * @throws IOException thrown if the connection can't be started
+     */
+    private void connectUpstream(InetSocketAddress address) throws IOException {
+        upstreamChannel = SocketChannel.open();
+        upstreamChannel.configureBlocking(false);
+        upstreamChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        upstreamKey = upstreamChannel.register(selector, 0, this);
+        upstreamConnected = upstreamChannel.connect(address);
+        flush();
+        updateInterest();
+    }
+
+    /**
+     * Write whatever is buffered in both directions and pass half-closes along once a side is drained.
+     */
+    private void flush() throws IOException {
+        if (upstreamConnected && clientToUpstream.position() > 0) {
+            clientToUpstream.flip();
+            listener.recordBytesOut(upstreamChannel.write(clientToUpstream));
+            clientToUpstream.compact();
+        }
+        if (upstreamToClient.position() > 0) {
+            upstreamToClient.flip();
+            listener.recordBytesIn(clientChannel.write(upstreamToClient));
+            upstreamToClient.compact();
+        }
+
+        if (upstreamConnected && clientEof && !upstreamOutputShutdown && clientToUpstream.position() == 0) {
+            upstreamChannel.shutdownOutput();
+            upstreamOutputShutdown = true;
+        }
+        if (upstreamEof && !clientOutputShutdown && upstreamToClient.position() == 0) {
+            clientChannel.shutdownOutput();
+            clientOutputShutdown = true;
+        }
+        if (upstreamOutputShutdown && clientOutputShutdown) {
+            close();
+        }
+    }
+
+    /**
+     * Update the interest operations of both keys based on the current buffers. Reading is paused on a side whose output is backed up.
+     */
+    private void updateInterest() {
+        if (closed) {
+            return;
+        }
+
+        int clientOps = 0;
+        if (!clientEof && clientToUpstream.hasRemaining()) {
+            clientOps |= SelectionKey.OP_READ;
+        }
+        if (upstreamToClient.position() > 0) {
+            clientOps |= SelectionKey.OP_WRITE;
+        }
+        clientKey.interestOps(clientOps);
+
+        if (upstreamKey != null) {
+            int upstreamOps = 0;
+            if (!upstreamConnected) {
+                upstreamOps = SelectionKey.OP_CONNECT;
+            } else {
+                if (!upstreamEof && upstreamToClient.hasRemaining()) {
+                    upstreamOps |= SelectionKey.OP_READ;
+                }
+                if (clientToUpstream.position() > 0) {
+                    upstreamOps |= SelectionKey.OP_WRITE;
+                }
+            }
+            upstreamKey.interestOps(upstreamOps);
+        }
+    }
+
+    /**
+     * Find the message of the root cause of a given error.
+     * 
+     * @param error the error
+     * @return the root cause message
+     */
+    private static String rootMessage(Throwable error) {
+        Throwable cause = error;
+        while (cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause.getMessage();
+    }
+
+    /**
+     * Close a channel and ignore any errors.
+     * 
+     * @param channel the channel
+     */
+    private static void closeQuietly(SocketChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.debug("Can't close relay channel.", e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,30 @@
+package com.sidneysimmons.plentifulports.forwarding.domain;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.sidneysimmons.plentifulports.settings.domain.PortConfiguration;
+import java.util.ArrayList;
+import java.util.List;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * kubectl process spawned by the application, as recorded in the run-state file. Either a port-forward of a service or a kubernetes API
+ * proxy.
+ * 
+ * @author Sidney Simmons
+ */
+@Data
+@NoArgsConstructor
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class RunStateEntry {
+
+    private Long pid;
+    private Long startInstant;
+    private String serviceName;
+    private String serviceNamespace;
+    private String context;
+    private List<PortConfiguration> ports = new ArrayList<>();
+    private String outputFile;
+    private Boolean proxy = false;
+
+}
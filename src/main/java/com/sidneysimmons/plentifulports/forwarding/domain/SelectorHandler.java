@@ -0,0 +1,26 @@
+package com.sidneysimmons.plentifulports.forwarding.domain;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+
+/**
+ * Handler attached to a selection key of the native forwarding engine. Handlers are only ever called from the selector thread.
+ * 
+ * @author Sidney Simmons
+ */
+public interface SelectorHandler {
+
+    /**
+     * Handle the ready operations of a given key.
+     * 
+     * @param key the selection key
+     * @throws IOException thrown if the channel fails
+     */
+    void handle(SelectionKey key) throws IOException;
+
+    /**
+     * Close the handler and its channels. Called when handling fails.
+     */
+    void close();
+
+}
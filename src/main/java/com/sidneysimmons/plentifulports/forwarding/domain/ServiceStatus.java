@@ -0,0 +1,23 @@
+package com.sidneysimmons.plentifulports.forwarding.domain;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Snapshot of the live status of a single service, sampled for the ports table. Values the forwarding can't tell are null.
+ * 
+ * @author Sidney Simmons
+ */
+@Data
+@NoArgsConstructor
+public class ServiceStatus {
+
+    private ForwardingState state = ForwardingState.STOPPED;
+    private Long uptimeMillis;
+    private Integer restartCount = 0;
+    private long connectionTotal = 0;
+    private Long bytesIn;
+    private Long bytesOut;
+    private Long timeToReadyMillis;
+
+}
@@ -0,0 +1,67 @@
+package com.sidneysimmons.plentifulports.forwarding.domain;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throttle for starting many services at once. Caps the number of starts in flight and spreads the starts out with a token bucket so that
+ * a bulk start doesn't get throttled by the API server.
+ * 
+ * @author Sidney Simmons
+ */
+public class StartThrottle {
+
+    private Semaphore permits;
+    private double startsPerNano;
+    private double capacity;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * Constructor.
+     * 
+     * @param maxConcurrentStarts the maximum number of starts in flight, also the burst size of the token bucket
+     * @param startsPerSecond the sustained number of starts per second
+     */
+    public StartThrottle(Integer maxConcurrentStarts, Integer startsPerSecond) {
+        this.permits = new Semaphore(Math.max(1, maxConcurrentStarts), true);
+        this.startsPerNano = Math.max(1, startsPerSecond) / (double) TimeUnit.SECONDS.toNanos(1);
+        this.capacity = Math.max(1, maxConcurrentStarts);
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Wait for a token and a free start slot. Every successful call must be paired with {@link #release()}.
+     * 
+     * @throws InterruptedException thrown if interrupted while waiting
+     */
+    public void acquire() throws InterruptedException {
+        long waitNanos = reserveToken();
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+        permits.acquire();
+    }
+
+    /**
+     * Give back a start slot once the start has settled.
+     */
+    public void release() {
+        permits.release();
+    }
+
+    /**
+     * Take a token from the bucket. The bucket may go into debt - callers then wait until their token has been refilled.
+     * 
+     * @return how long the caller has to wait for its token in nanoseconds
+     */
+    private synchronized long reserveToken() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * startsPerNano);
+        lastRefill = now;
+        tokens -= 1;
+        return tokens >= 0 ? 0 : (long) (-tokens / startsPerNano);
+    }
+
+}
@@ -0,0 +1,21 @@
+package com.sidneysimmons.plentifulports.forwarding.domain;
+
+import java.io.IOException;
+import java.nio.channels.Selector;
+
+/**
+ * A single accepted local connection and its upstream side. Tunnels are only ever touched from the selector thread.
+ * 
+ * @author Sidney Simmons
+ */
+public interface Tunnel extends SelectorHandler {
+
+    /**
+     * Register the tunnel's channels with a given selector and start connecting upstream.
+     * 
+     * @param selector the selector
+     * @throws IOException thrown if the tunnel can't be started
+     */
+    void connect(Selector selector) throws IOException;
+
+}
@@ -0,0 +1,22 @@
+package com.sidneysimmons.plentifulports.forwarding.domain;
+
+import java.nio.channels.SocketChannel;
+
+/**
+ * Factory for the tunnels of a forwarding listener.
+ * 
+ * @author Sidney Simmons
+ */
+@FunctionalInterface
+public interface TunnelFactory {
+
+    /**
+     * Create a tunnel for a newly accepted connection. Called from the selector thread so it must not block.
+     * 
+     * @param listener the listener that accepted the connection
+     * @param clientChannel the accepted client channel
+     * @return the tunnel
+     */
+    Tunnel createTunnel(ForwardingListener listener, SocketChannel clientChannel);
+
+}
@@ -0,0 +1,177 @@
+package com.sidneysimmons.plentifulports.kubernetes;
+
+import com.sidneysimmons.plentifulports.kubernetes.domain.CachedQuery;
+import com.sidneysimmons.plentifulports.kubernetes.domain.KubernetesContext;
+import com.sidneysimmons.plentifulports.kubernetes.domain.KubernetesService;
+import com.sidneysimmons.plentifulports.kubernetes.exception.KubernetesException;
+import com.sidneysimmons.plentifulports.thread.ThreadService;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+/**
+ * Caching layer in front of the {@link KubernetesGateway} queries. Results are kept for a while so navigating around the UI doesn't spawn
+ * kubectl each time. The kubeconfig files are watched and any change to them drops everything right away - along with the API proxies and
+ * the service index of contexts that changed.
+ * 
+ * @author Sidney Simmons
+ */
+@Slf4j
+@Component("cachingKubernetesGateway")
+public class CachingKubernetesGateway {
+
+    private static final long CONTEXTS_TIME_TO_LIVE_SECONDS = 300;
+    private static final long SERVICES_TIME_TO_LIVE_SECONDS = 30;
+
+    @Resource(name = "kubernetesGateway")
+    private KubernetesGateway kubernetesGateway;
+
+    @Resource(name = "kubernetesApiClient")
+    private KubernetesApiClient kubernetesApiClient;
+
+    @Resource(name = "serviceIndex")
+    private ServiceIndex serviceIndex;
+
+    @Resource(name = "threadService")
+    private ThreadService threadService;
+
+    private CachedQuery<KubernetesContext> currentContext = new CachedQuery<>(CONTEXTS_TIME_TO_LIVE_SECONDS, TimeUnit.SECONDS);
+    private CachedQuery<List<KubernetesContext>> availableContexts = new CachedQuery<>(CONTEXTS_TIME_TO_LIVE_SECONDS, TimeUnit.SECONDS);
+    private CachedQuery<List<KubernetesService>> services = new CachedQuery<>(SERVICES_TIME_TO_LIVE_SECONDS, TimeUnit.SECONDS);
+    private WatchService watchService;
+
+    @PostConstruct
+    public void initialize() {
+        // Watch the directories - kubectl replaces the config file instead of writing to it
+        List<Path> kubeconfigFiles = KubeconfigFiles.resolve();
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            Set<Path> directories = new HashSet<>();
+            for (Path kubeconfigFile : kubeconfigFiles) {
+                Path directory = kubeconfigFile.getParent();
+                if (directory != null && Files.isDirectory(directory) && directories.add(directory)) {
+                    directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                            StandardWatchEventKinds.ENTRY_DELETE);
+                }
+            }
+            log.info("Watching kubeconfig files " + kubeconfigFiles + ".");
+            threadService.execute(() -> watchKubeconfig(new HashSet<>(kubeconfigFiles)));
+        } catch (IOException e) {
+            log.warn("Can't watch kubeconfig files " + kubeconfigFiles + " - cached queries only expire with time.", e);
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                log.debug("Can't close the kubeconfig watch service.", e);
+            }
+        }
+    }
+
+    /**
+     * Read the current kubernetes context.
+     * 
+     * @return the current context
+     * @throws KubernetesException thrown if the context can't be read
+     */
+    public KubernetesContext readCurrentContext() throws KubernetesException {
+        return currentContext.read(kubernetesGateway::readCurrentContext);
+    }
+
+    /**
+     * Read the current kubernetes context without blocking the caller.
+     * 
+     * @return future for the current context - completed exceptionally with a {@link KubernetesException} if it can't be read
+     */
+    public CompletableFuture<KubernetesContext> readCurrentContextAsync() {
+        return threadService.supplyAsync(() -> {
+            try {
+                return readCurrentContext();
+            } catch (KubernetesException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    /**
+     * Read all available kubernetes contexts.
+     * 
+     * @return a list of available contexts
+     * @throws KubernetesException thrown if the contexts can't be read
+     */
+    public List<KubernetesContext> readAvailableContexts() throws KubernetesException {
+        return new ArrayList<>(availableContexts.read(kubernetesGateway::readAvailableContexts));
+    }
+
+    /**
+     * Read all the kubernetes services.
+     * 
+     * @return a list of services
+     * @throws KubernetesException thrown if the services can't be read
+     */
+    public List<KubernetesService> readServices() throws KubernetesException {
+        return new ArrayList<>(services.read(kubernetesGateway::readServices));
+    }
+
+    /**
+     * Drop all cached results.
+     */
+    public void invalidate() {
+        currentContext.invalidate();
+        availableContexts.invalidate();
+        services.invalidate();
+    }
+
+    /**
+     * Drop the cached results whenever one of the kubeconfig files changes. The proxies of changed contexts are stopped before the index
+     * looks at the kubeconfig, so it never syncs through a proxy that's about to go away. Runs until the watch service is closed.
+     * 
+     * @param kubeconfigFiles the kubeconfig files
+     */
+    private void watchKubeconfig(Set<Path> kubeconfigFiles) {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Path directory = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                            || kubeconfigFiles.contains(directory.resolve((Path) event.context()))) {
+                        log.info("Kubeconfig changed - dropping cached kubernetes queries.");
+                        invalidate();
+                        kubernetesApiClient.refreshProxies();
+                        serviceIndex.refresh();
+                        break;
+                    }
+                }
+                key.reset();
+            }
+        } catch (ClosedWatchServiceException e) {
+            log.debug("Kubeconfig watch service closed.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
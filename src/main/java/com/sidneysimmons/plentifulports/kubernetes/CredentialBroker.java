@@ -0,0 +1,349 @@
+package com.sidneysimmons.plentifulports.kubernetes;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import com.sidneysimmons.plentifulports.kubernetes.domain.BrokeredCredential;
+import com.sidneysimmons.plentifulports.kubernetes.domain.Kubeconfig;
+import com.sidneysimmons.plentifulports.kubernetes.exception.KubernetesException;
+import com.sidneysimmons.plentifulports.thread.ThreadService;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.stereotype.Component;
+
+/**
+ * Runs the exec credential plugin of the current context (aws eks get-token, gke-gcloud-auth-plugin and such) once and hands the
+ * credential to the kubectl processes the application spawns through a generated kubeconfig. The kubeconfig only holds the current context
+ * and is written again once the credential is about to expire. Contexts without an exec plugin are left alone. Each context runs its plugin
+ * at most once at a time - callers asking while it runs wait for the same run - and a plugin that failed isn't run again for a while.
+ * 
+ * @author Sidney Simmons
+ */
+@Slf4j
+@Component("credentialBroker")
+public class CredentialBroker {
+
+    private static final long PLUGIN_TIMEOUT_SECONDS = 60;
+    private static final long EXPIRATION_MARGIN_SECONDS = 60;
+    private static final long DEFAULT_LIFETIME_SECONDS = 300;
+    private static final long FAILURE_RETRY_SECONDS = 30;
+
+    @Resource(name = "kubeconfigReader")
+    private KubeconfigReader kubeconfigReader;
+
+    @Resource(name = "threadService")
+    private ThreadService threadService;
+
+    private ObjectMapper yamlMapper = new ObjectMapper(new YAMLFactory());
+    private Map<String, BrokeredCredential> credentials = new ConcurrentHashMap<>();
+    private Map<String, CompletableFuture<BrokeredCredential>> brokering = new ConcurrentHashMap<>();
+
+    @PreDestroy
+    public void destroy() {
+        for (BrokeredCredential credential : credentials.values()) {
+            if (credential.getKubeconfigFile() != null) {
+                deleteQuietly(credential.getKubeconfigFile());
+            }
+        }
+        credentials.clear();
+    }
+
+    /**
+     * Resolve the kubeconfig a spawned kubectl process should use. Only use it for short-lived processes or ones that authenticate once
+     * up front - the credential in the file isn't refreshed for a process that's already running.
+     * 
+     * @param contextName the context the process runs against, null for the current context
+     * @return the generated kubeconfig, null if kubectl should read the regular kubeconfig itself
+     */
+    public Path resolveKubeconfig(String contextName) {
+        Kubeconfig kubeconfig = null;
+        try {
+            kubeconfig = kubeconfigReader.readKubeconfig();
+        } catch (KubernetesException e) {
+            log.warn("Can't read the kubeconfig - kubectl runs the credential plugin itself.", e);
+            return null;
+        }
+        String resolvedName = contextName != null ? contextName : kubeconfig.getCurrentContext();
+        if (resolvedName == null) {
+            return null;
+        }
+        BrokeredCredential cached = credentials.get(resolvedName);
+        if (isUsable(cached, kubeconfig)) {
+            return cached.getKubeconfigFile();
+        }
+
+        // Only contexts authenticating through an exec plugin are brokered
+        JsonNode context = kubeconfig.getContexts().get(resolvedName);
+        JsonNode cluster = context != null ? kubeconfig.getClusters().get(context.path("cluster").asText("")) : null;
+        JsonNode user = context != null ? kubeconfig.getUsers().get(context.path("user").asText("")) : null;
+        if (cluster == null || user == null || !user.path("exec").isObject()) {
+            return null;
+        }
+
+        // Only the first caller runs the plugin, everyone else waits for its outcome without holding a lock
+        CompletableFuture<BrokeredCredential> flight = new CompletableFuture<>();
+        CompletableFuture<BrokeredCredential> running = brokering.putIfAbsent(resolvedName, flight);
+        if (running == null) {
+            try {
+                flight.complete(broker(kubeconfig, resolvedName, context, cluster, user.path("exec")));
+            } finally {
+                brokering.remove(resolvedName, flight);
+            }
+            running = flight;
+        }
+        return running.join().getKubeconfigFile();
+    }
+
+    /**
+     * Broker the credential of a context unless another caller just did, and cache the outcome. A failure is cached as well so the plugin
+     * isn't run again on every kubectl call while it's broken.
+     * 
+     * @param kubeconfig the merged kubeconfig
+     * @param contextName the name of the context
+     * @param context the context
+     * @param cluster the cluster of the context
+     * @param exec the exec plugin configuration of the user of the context
+     * @return the brokered credential - without a kubeconfig file if the plugin failed
+     */
+    private BrokeredCredential broker(Kubeconfig kubeconfig, String contextName, JsonNode context, JsonNode cluster, JsonNode exec) {
+        BrokeredCredential cached = credentials.get(contextName);
+        if (isUsable(cached, kubeconfig)) {
+            return cached;
+        }
+        BrokeredCredential credential = null;
+        try {
+            credential = brokerCredential(kubeconfig, contextName, context, cluster, exec);
+        } catch (KubernetesException | RuntimeException e) {
+            // Unparseable plugin output ends up here as well
+            log.warn("Can't broker the credential of context " + contextName + " - kubectl runs the credential plugin itself for the next "
+                    + FAILURE_RETRY_SECONDS + "s.", e);
+            credential = new BrokeredCredential();
+            credential.setSource(kubeconfig);
+            credential.setExpiration(Instant.now().plusSeconds(FAILURE_RETRY_SECONDS));
+        }
+        credentials.put(contextName, credential);
+        return credential;
+    }
+
+    /**
+     * Check if a cached credential can still be handed out. A credential has to be good for a while longer, a cached failure only
+     * counts until it's time to try again. Either way it has to come from the current kubeconfig.
+     * 
+     * @param cached the cached credential, null if there's none
+     * @param kubeconfig the current kubeconfig
+     * @return true if the cached credential can be used, false if the plugin has to run
+     */
+    private static Boolean isUsable(BrokeredCredential cached, Kubeconfig kubeconfig) {
+        if (cached == null || cached.getSource() != kubeconfig) {
+            return false;
+        }
+        Instant now = Instant.now();
+        if (cached.getKubeconfigFile() == null) {
+            return now.isBefore(cached.getExpiration());
+        }
+        return now.plusSeconds(EXPIRATION_MARGIN_SECONDS).isBefore(cached.getExpiration());
+    }
+
+    /**
+     * Run the exec plugin of a context and write a kubeconfig holding the credential it returned.
+     * 
+     * @param kubeconfig the merged kubeconfig
+     * @param contextName the name of the context
+     * @param context the context
+     * @param cluster the cluster of the context
+     * @param exec the exec plugin configuration of the user of the context
+     * @return the brokered credential
+     * @throws KubernetesException thrown if the plugin fails or the kubeconfig can't be written
+     */
+    private BrokeredCredential brokerCredential(Kubeconfig kubeconfig, String contextName, JsonNode context, JsonNode cluster,
+            JsonNode exec) throws KubernetesException {
+        long started = System.nanoTime();
+        JsonNode status = runPlugin(exec, cluster).path("status");
+
+        // Hand the credential over the same way the plugin handed it to us
+        ObjectNode userNode = yamlMapper.createObjectNode();
+        if (status.hasNonNull("token")) {
+            userNode.put("token", status.path("token").asText());
+        } else if (status.hasNonNull("clientCertificateData") && status.hasNonNull("clientKeyData")) {
+            userNode.put("client-certificate-data", encode(status.path("clientCertificateData").asText()));
+            userNode.put("client-key-data", encode(status.path("clientKeyData").asText()));
+        } else {
+            throw new KubernetesException("Credential plugin of context " + contextName + " didn't return a credential.");
+        }
+        Instant expiration = status.hasNonNull("expirationTimestamp")
+                ? OffsetDateTime.parse(status.path("expirationTimestamp").asText()).toInstant()
+                : Instant.now().plusSeconds(DEFAULT_LIFETIME_SECONDS);
+
+        BrokeredCredential credential = new BrokeredCredential();
+        credential.setSource(kubeconfig);
+        credential.setExpiration(expiration);
+        credential.setKubeconfigFile(writeKubeconfig(contextName, context, cluster, userNode));
+        log.info("Brokered the credential of context " + contextName + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started)
+                + " ms - valid until " + expiration + ".");
+        return credential;
+    }
+
+    /**
+     * Run an exec credential plugin.
+     * 
+     * @param exec the exec plugin configuration
+     * @param cluster the cluster the credential is for
+     * @return the ExecCredential the plugin printed
+     * @throws KubernetesException thrown if the plugin fails
+     */
+    private JsonNode runPlugin(JsonNode exec, JsonNode cluster) throws KubernetesException {
+        List<String> command = new ArrayList<>();
+        command.add(exec.path("command").asText());
+        for (JsonNode arg : exec.path("args")) {
+            command.add(arg.asText());
+        }
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+        for (JsonNode env : exec.path("env")) {
+            processBuilder.environment().put(env.path("name").asText(), env.path("value").asText(""));
+        }
+        ObjectNode execInfo = yamlMapper.createObjectNode();
+        execInfo.put("apiVersion", exec.path("apiVersion").asText("client.authentication.k8s.io/v1beta1"));
+        execInfo.put("kind", "ExecCredential");
+        ObjectNode spec = execInfo.putObject("spec");
+        spec.put("interactive", false);
+        if (exec.path("provideClusterInfo").asBoolean(false)) {
+            ObjectNode clusterInfo = spec.putObject("cluster");
+            clusterInfo.put("server", cluster.path("server").asText(""));
+            clusterInfo.put("certificate-authority-data", cluster.path("certificate-authority-data").asText(""));
+            clusterInfo.put("insecure-skip-tls-verify", cluster.path("insecure-skip-tls-verify").asBoolean(false));
+        }
+        processBuilder.environment().put("KUBERNETES_EXEC_INFO", execInfo.toString());
+
+        Process process = null;
+        try {
+            process = processBuilder.start();
+            process.getOutputStream().close();
+            Process started = process;
+            CompletableFuture<String> output = threadService.supplyAsync(() -> readQuietly(started.getInputStream()));
+            CompletableFuture<String> errorOutput = threadService.supplyAsync(() -> readQuietly(started.getErrorStream()));
+            if (!process.waitFor(PLUGIN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                throw new KubernetesException("Credential plugin " + command.get(0) + " didn't finish in time.");
+            } else if (process.exitValue() != 0) {
+                throw new KubernetesException("Credential plugin " + command.get(0) + " failed: " + errorOutput.join().trim());
+            }
+            return yamlMapper.readTree(output.join());
+        } catch (IOException e) {
+            throw new KubernetesException("Can't run credential plugin " + command.get(0) + ".", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KubernetesException("Interrupted while running credential plugin " + command.get(0) + ".", e);
+        } finally {
+            if (process != null && process.isAlive()) {
+                process.destroyForcibly();
+            }
+        }
+    }
+
+    /**
+     * Write a kubeconfig holding a single context. The file is only readable by the user since it holds a credential, and it's written
+     * next to the real one first and then moved over it so kubectl never reads a half written file.
+     * 
+     * @param contextName the name of the context
+     * @param context the context
+     * @param cluster the cluster of the context
+     * @param userNode the user holding the credential
+     * @return the kubeconfig file
+     * @throws KubernetesException thrown if the file can't be written
+     */
+    private Path writeKubeconfig(String contextName, JsonNode context, JsonNode cluster, ObjectNode userNode) throws KubernetesException {
+        ObjectNode root = yamlMapper.createObjectNode();
+        root.put("apiVersion", "v1");
+        root.put("kind", "Config");
+        root.put("current-context", contextName);
+        ObjectNode contextNode = root.putArray("contexts").addObject();
+        contextNode.put("name", contextName);
+        ObjectNode contextBody = contextNode.putObject("context");
+        contextBody.put("cluster", contextName);
+        contextBody.put("user", contextName);
+        if (context.hasNonNull("namespace")) {
+            contextBody.put("namespace", context.path("namespace").asText());
+        }
+        ArrayNode clusters = root.putArray("clusters");
+        clusters.addObject().put("name", contextName).set("cluster", cluster);
+        ArrayNode users = root.putArray("users");
+        users.addObject().put("name", contextName).set("user", userNode);
+
+        Path directory = Paths.get(System.getProperty("user.home"), ".plentiful-ports", "credentials");
+        Path file = directory.resolve(contextName.replaceAll("[^A-Za-z0-9._-]", "_") + ".yaml");
+        try {
+            Files.createDirectories(directory);
+            Path temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.deleteIfExists(temporaryFile);
+            if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+                Files.createFile(temporaryFile, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+            }
+            yamlMapper.writeValue(temporaryFile.toFile(), root);
+            Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return file;
+        } catch (IOException e) {
+            throw new KubernetesException("Can't write the brokered kubeconfig of context " + contextName + ".", e);
+        }
+    }
+
+    /**
+     * Base64 encode PEM data the way kubeconfig expects it in its data fields.
+     * 
+     * @param pem the PEM data
+     * @return the encoded data
+     */
+    private static String encode(String pem) {
+        return Base64.getEncoder().encodeToString(pem.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Read a stream to the end and ignore any errors.
+     * 
+     * @param stream the stream
+     * @return whatever could be read
+     */
+    private static String readQuietly(InputStream stream) {
+        try {
+            return IOUtils.toString(stream, Charset.defaultCharset());
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+    /**
+     * Delete a file and ignore any errors.
+     * 
+     * @param file the file
+     */
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.debug("Can't delete brokered kubeconfig " + file + ".", e);
+        }
+    }
+
+}
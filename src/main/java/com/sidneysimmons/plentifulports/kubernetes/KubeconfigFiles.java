@@ -0,0 +1,43 @@
+package com.sidneysimmons.plentifulports.kubernetes;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Resolves the kubeconfig files kubectl reads.
+ * 
+ * @author Sidney Simmons
+ */
+public final class KubeconfigFiles {
+
+    private KubeconfigFiles() {
+        // No need to instantiate this
+    }
+
+    /**
+     * Resolve the kubeconfig files. These are the entries of the KUBECONFIG environment variable when it's set, otherwise the config
+     * file in the ".kube" directory of the user's home directory. The files don't have to exist.
+     * 
+     * @return the kubeconfig files in the order kubectl reads them
+     */
+    public static List<Path> resolve() {
+        List<Path> files = new ArrayList<>();
+        String kubeconfig = System.getenv("KUBECONFIG");
+        if (StringUtils.isNotBlank(kubeconfig)) {
+            for (String entry : StringUtils.split(kubeconfig, File.pathSeparator)) {
+                if (StringUtils.isNotBlank(entry)) {
+                    files.add(Paths.get(entry.trim()).toAbsolutePath().normalize());
+                }
+            }
+        }
+        if (files.isEmpty()) {
+            files.add(Paths.get(System.getProperty("user.home"), ".kube", "config"));
+        }
+        return files;
+    }
+
+}
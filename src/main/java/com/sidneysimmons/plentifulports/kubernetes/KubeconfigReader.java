@@ -0,0 +1,174 @@
+package com.sidneysimmons.plentifulports.kubernetes;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import com.sidneysimmons.plentifulports.kubernetes.domain.Kubeconfig;
+import com.sidneysimmons.plentifulports.kubernetes.exception.KubernetesException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.stereotype.Component;
+
+/**
+ * Reads kubeconfig in-process instead of asking kubectl. Multiple files are merged the same way kubectl does it - the first file to set
+ * the current context wins and so does the first file to define a context, cluster or user of a given name. Relative file references are
+ * resolved against the directory of the file they're in. The merged result is kept until one of the files changes.
+ * 
+ * @author Sidney Simmons
+ */
+@Slf4j
+@Component("kubeconfigReader")
+public class KubeconfigReader {
+
+    private ObjectMapper yamlMapper = new ObjectMapper(new YAMLFactory());
+    private ReentrantLock lock = new ReentrantLock();
+    private List<String> cachedStamps;
+    private Kubeconfig cachedKubeconfig;
+
+    /**
+     * Read the merged kubeconfig. Only parses the files again if one of them changed since the last read.
+     * 
+     * @return the kubeconfig
+     * @throws KubernetesException thrown if one of the files can't be read
+     */
+    public Kubeconfig readKubeconfig() throws KubernetesException {
+        // A lock instead of a monitor so virtual threads reading files don't pin their carrier
+        lock.lock();
+        try {
+            return readKubeconfigLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Read the merged kubeconfig while holding the lock.
+     * 
+     * @return the kubeconfig
+     * @throws KubernetesException thrown if one of the files can't be read
+     */
+    private Kubeconfig readKubeconfigLocked() throws KubernetesException {
+        List<Path> files = KubeconfigFiles.resolve();
+        List<String> stamps = readStamps(files);
+        if (cachedKubeconfig != null && stamps.equals(cachedStamps)) {
+            return cachedKubeconfig;
+        }
+
+        Kubeconfig kubeconfig = new Kubeconfig();
+        Set<String> contextNames = new TreeSet<>();
+        for (Path file : files) {
+            JsonNode root = readFile(file);
+            if (root == null) {
+                continue;
+            }
+            String currentContext = root.path("current-context").asText("");
+            if (kubeconfig.getCurrentContext() == null && StringUtils.isNotBlank(currentContext)) {
+                kubeconfig.setCurrentContext(currentContext);
+            }
+            for (JsonNode context : root.path("contexts")) {
+                String name = context.path("name").asText("");
+                if (StringUtils.isNotBlank(name)) {
+                    contextNames.add(name);
+                    kubeconfig.getContexts().putIfAbsent(name, context.path("context"));
+                }
+            }
+            Path directory = file.toAbsolutePath().getParent();
+            for (JsonNode cluster : root.path("clusters")) {
+                String name = cluster.path("name").asText("");
+                if (StringUtils.isNotBlank(name) && cluster.path("cluster").isObject()) {
+                    ObjectNode clusterNode = ((ObjectNode) cluster.path("cluster")).deepCopy();
+                    resolvePath(clusterNode, "certificate-authority", directory);
+                    kubeconfig.getClusters().putIfAbsent(name, clusterNode);
+                }
+            }
+            for (JsonNode user : root.path("users")) {
+                String name = user.path("name").asText("");
+                if (StringUtils.isNotBlank(name) && user.path("user").isObject()) {
+                    ObjectNode userNode = ((ObjectNode) user.path("user")).deepCopy();
+                    resolvePath(userNode, "client-certificate", directory);
+                    resolvePath(userNode, "client-key", directory);
+                    resolvePath(userNode, "tokenFile", directory);
+                    String execCommand = userNode.path("exec").path("command").asText("");
+                    if (userNode.path("exec").isObject() && StringUtils.containsAny(execCommand, "/\\")) {
+                        // Only commands with a path are relative to the file - bare names are looked up on the PATH
+                        resolvePath((ObjectNode) userNode.path("exec"), "command", directory);
+                    }
+                    kubeconfig.getUsers().putIfAbsent(name, userNode);
+                }
+            }
+        }
+        kubeconfig.getContextNames().addAll(contextNames);
+        log.debug("Read kubeconfig from " + files + ".");
+
+        cachedStamps = stamps;
+        cachedKubeconfig = kubeconfig;
+        return kubeconfig;
+    }
+
+    /**
+     * Read a single kubeconfig file. Missing files are skipped just like kubectl skips them.
+     * 
+     * @param file the file
+     * @return the parsed file, null if it doesn't exist or is empty
+     * @throws KubernetesException thrown if the file can't be read or parsed
+     */
+    private JsonNode readFile(Path file) throws KubernetesException {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try {
+            JsonNode root = yamlMapper.readTree(file.toFile());
+            return root != null && root.isObject() ? root : null;
+        } catch (IOException e) {
+            throw new KubernetesException("Can't read kubeconfig " + file + ".", e);
+        }
+    }
+
+    /**
+     * Resolve a relative file reference against a given directory.
+     * 
+     * @param node the node holding the reference
+     * @param field the field of the reference
+     * @param directory the directory of the kubeconfig file
+     */
+    private static void resolvePath(ObjectNode node, String field, Path directory) {
+        String value = node.path(field).asText("");
+        if (StringUtils.isNotBlank(value) && directory != null && !Paths.get(value).isAbsolute()) {
+            node.put(field, directory.resolve(value).normalize().toString());
+        }
+    }
+
+    /**
+     * Read a stamp of each file that changes whenever the file does.
+     * 
+     * @param files the files
+     * @return the stamps in the same order as the files
+     */
+    private static List<String> readStamps(List<Path> files) {
+        List<String> stamps = new ArrayList<>();
+        for (Path file : files) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                stamps.add(file + "@" + attributes.lastModifiedTime().toMillis() + "/" + attributes.size() + "/" + attributes.fileKey());
+            } catch (NoSuchFileException e) {
+                stamps.add(file + "@missing");
+            } catch (IOException e) {
+                stamps.add(file + "@unreadable");
+            }
+        }
+        return stamps;
+    }
+
+}
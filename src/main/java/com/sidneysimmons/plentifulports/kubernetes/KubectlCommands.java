@@ -0,0 +1,44 @@
+package com.sidneysimmons.plentifulports.kubernetes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Helpers for building kubectl commands.
+ * 
+ * @author Sidney Simmons
+ */
+public final class KubectlCommands {
+
+    private KubectlCommands() {
+        // No need to instantiate this
+    }
+
+    /**
+     * Point a kubectl command at a given context. The context flag goes right after the kubectl executable.
+     * 
+     * @param context the context, null for kubectl's current context
+     * @param command the command including the kubectl executable
+     * @return the command to run
+     */
+    public static List<String> withContext(String context, List<String> command) {
+        List<String> contextCommand = new ArrayList<>(command);
+        if (context != null) {
+            contextCommand.add(1, "--context=" + context);
+        }
+        return contextCommand;
+    }
+
+    /**
+     * Point a kubectl command at a given context. The context flag goes right after the kubectl executable.
+     * 
+     * @param context the context, null for kubectl's current context
+     * @param command the command including the kubectl executable
+     * @return the command to run
+     */
+    public static List<String> withContext(String context, String... command) {
+        return withContext(context, Arrays.asList(command));
+    }
+
+}
@@ -0,0 +1,283 @@
+package com.sidneysimmons.plentifulports.kubernetes;
+
+import com.sidneysimmons.plentifulports.kubernetes.domain.KubectlOutputHandler;
+import com.sidneysimmons.plentifulports.kubernetes.domain.LatencyHistogram;
+import com.sidneysimmons.plentifulports.kubernetes.exception.KubernetesException;
+import com.sidneysimmons.plentifulports.thread.ThreadService;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.IOUtils;
+import org.springframework.stereotype.Component;
+
+/**
+ * Runs short-lived kubectl commands. Every command has a wall-clock deadline - once it passes, or the returned future is cancelled, the
+ * process is killed, which also ends the output the handler is blocked on. Only a few commands run at the same time and the others wait
+ * for a free slot within their deadline. Deadlines can be derived from the latencies observed for the same operation against the same
+ * context, so a slow cluster gets more time and a fast one fails fast.
+ * 
+ * @author Sidney Simmons
+ */
+@Slf4j
+@Component("kubectlExecutor")
+public class KubectlExecutor {
+
+    private static final int MAX_CONCURRENT_PROCESSES = 4;
+    private static final long DEFAULT_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(60);
+    private static final long MIN_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private static final long MAX_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(120);
+    private static final double TIMEOUT_FACTOR = 3;
+    private static final long MIN_SAMPLES = 5;
+
+    @Resource(name = "threadService")
+    private ThreadService threadService;
+
+    @Resource(name = "kubeconfigReader")
+    private KubeconfigReader kubeconfigReader;
+
+    @Resource(name = "credentialBroker")
+    private CredentialBroker credentialBroker;
+
+    private Semaphore slots = new Semaphore(MAX_CONCURRENT_PROCESSES, true);
+    private Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+
+    /**
+     * Run a kubectl command with a deadline derived from the latencies observed so far - the p99 times three within two seconds and two
+     * minutes. Until there are enough samples the deadline is a minute. A hedged command is started a second time once the first attempt
+     * takes longer than the p95, and whichever finishes first wins. Only hedge commands whose output handler has no side effects.
+     * 
+     * @param <T> the type of the result
+     * @param operation name of the operation the latencies are tracked under, along with the context
+     * @param context the context to run against, null for the current context
+     * @param command the command including the kubectl executable
+     * @param hedge whether or not a slow attempt may be hedged
+     * @param outputHandler handler turning the output of the command into the result
+     * @return future for the result - completed exceptionally with a {@link KubernetesException} if the command fails or times out
+     */
+    public <T> CompletableFuture<T> execute(String operation, String context, List<String> command, Boolean hedge,
+            KubectlOutputHandler<T> outputHandler) {
+        String contextName = context != null ? context : readContextName();
+        LatencyHistogram histogram = latencies.computeIfAbsent(contextName + " " + operation, key -> new LatencyHistogram());
+        boolean sampled = histogram.getCount() >= MIN_SAMPLES;
+        long timeoutNanos = sampled
+                ? Math.max(MIN_TIMEOUT_NANOS, Math.min(MAX_TIMEOUT_NANOS, (long) (histogram.readPercentile(0.99) * TIMEOUT_FACTOR)))
+                : DEFAULT_TIMEOUT_NANOS;
+
+        // Any attempt still running is killed once the result is in
+        CompletableFuture<T> result = new CompletableFuture<>();
+        List<CompletableFuture<T>> attempts = new CopyOnWriteArrayList<>();
+        AtomicInteger running = new AtomicInteger();
+        result.whenComplete((value, e) -> attempts.forEach(attempt -> attempt.cancel(true)));
+        startAttempt(context, command, timeoutNanos, outputHandler, histogram, result, attempts, running);
+        if (hedge && sampled) {
+            long hedgeDelayNanos = histogram.readPercentile(0.95);
+            ScheduledFuture<?> hedgeTimer = threadService.schedule(() -> {
+                if (!result.isDone()) {
+                    log.info("kubectl " + operation + " is slower than usual - hedging with a second attempt.");
+                    startAttempt(context, command, timeoutNanos, outputHandler, histogram, result, attempts, running);
+                }
+            }, hedgeDelayNanos, TimeUnit.NANOSECONDS);
+            result.whenComplete((value, e) -> hedgeTimer.cancel(false));
+        }
+        return result;
+    }
+
+    /**
+     * Run a kubectl command.
+     * 
+     * @param <T> the type of the result
+     * @param context the context to run against, null for the current context
+     * @param command the command including the kubectl executable
+     * @param timeout the deadline of the command, counted from now
+     * @param unit the unit of the timeout
+     * @param outputHandler handler turning the output of the command into the result
+     * @return future for the result - completed exceptionally with a {@link KubernetesException} if the command fails or times out
+     */
+    public <T> CompletableFuture<T> execute(String context, List<String> command, long timeout, TimeUnit unit,
+            KubectlOutputHandler<T> outputHandler) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        List<String> contextCommand = KubectlCommands.withContext(context, command);
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        String timeoutMessage = "kubectl didn't finish within " + unit.toMillis(timeout) + " ms: " + String.join(" ", contextCommand);
+        ScheduledFuture<?> timer = threadService.schedule(
+                () -> result.completeExceptionally(new KubernetesException(timeoutMessage, new TimeoutException())), timeout, unit);
+        result.whenComplete((value, e) -> timer.cancel(false));
+        threadService.execute(() -> run(context, contextCommand, deadline, outputHandler, result));
+        return result;
+    }
+
+    /**
+     * Start an attempt of a command. The first attempt to succeed completes the result, the result only fails once every attempt failed.
+     * Attempts that time out or lose to another attempt are recorded as censored latencies - they took at least that long - so the
+     * deadline grows along with a cluster that got slower instead of learning only from the attempts that were fast enough.
+     * 
+     * @param <T> the type of the result
+     * @param context the context
+     * @param command the command
+     * @param timeoutNanos the deadline of the attempt in nanoseconds
+     * @param outputHandler the output handler
+     * @param histogram the latencies of the command
+     * @param result the result to complete
+     * @param attempts the attempts started so far
+     * @param running the number of attempts still running
+     */
+    private <T> void startAttempt(String context, List<String> command, long timeoutNanos, KubectlOutputHandler<T> outputHandler,
+            LatencyHistogram histogram, CompletableFuture<T> result, List<CompletableFuture<T>> attempts, AtomicInteger running) {
+        long started = System.nanoTime();
+        running.incrementAndGet();
+        CompletableFuture<T> attempt = execute(context, command, timeoutNanos, TimeUnit.NANOSECONDS, outputHandler);
+        attempts.add(attempt);
+        attempt.whenComplete((value, e) -> {
+            if (e == null) {
+                histogram.record(System.nanoTime() - started);
+                result.complete(value);
+            } else {
+                if (e instanceof CancellationException || e.getCause() instanceof TimeoutException) {
+                    histogram.recordCensored(System.nanoTime() - started);
+                }
+                if (running.decrementAndGet() == 0) {
+                    result.completeExceptionally(e);
+                }
+            }
+        });
+        if (result.isDone()) {
+            attempt.cancel(true);
+        }
+    }
+
+    /**
+     * Read the name of the current context. kubectl runs against it unless told otherwise and latencies are tracked per context.
+     * 
+     * @return the context name
+     */
+    private String readContextName() {
+        try {
+            return String.valueOf(kubeconfigReader.readKubeconfig().getCurrentContext());
+        } catch (KubernetesException e) {
+            return "unknown";
+        }
+    }
+
+    /**
+     * Wait for the result of a command. Meant for callers that can afford to block.
+     * 
+     * @param <T> the type of the result
+     * @param future the future of the command
+     * @return the result
+     * @throws KubernetesException thrown if the command failed or timed out
+     */
+    public static <T> T await(CompletableFuture<T> future) throws KubernetesException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof KubernetesException) {
+                throw (KubernetesException) e.getCause();
+            }
+            throw new KubernetesException("Error integrating with kubernetes.", e.getCause());
+        }
+    }
+
+    /**
+     * Run a command in the calling thread and complete the result with its outcome.
+     * 
+     * @param <T> the type of the result
+     * @param context the context
+     * @param command the command
+     * @param deadline the deadline in {@link System#nanoTime()} units
+     * @param outputHandler the output handler
+     * @param result the result to complete
+     */
+    private <T> void run(String context, List<String> command, long deadline, KubectlOutputHandler<T> outputHandler,
+            CompletableFuture<T> result) {
+        try {
+            if (!slots.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.completeExceptionally(new KubernetesException("Interrupted while waiting to run kubectl.", e));
+            return;
+        }
+        try {
+            if (result.isDone()) {
+                // Cancelled or timed out while waiting for a slot
+                return;
+            }
+
+            // Start the process - stderr is kept apart so it can't end up in the middle of the output
+            ProcessBuilder processBuilder = new ProcessBuilder(command);
+            Path kubeconfig = credentialBroker.resolveKubeconfig(context);
+            if (kubeconfig != null) {
+                processBuilder.environment().put("KUBECONFIG", kubeconfig.toString());
+            }
+            Process process = processBuilder.start();
+            result.whenComplete((value, e) -> {
+                if (e != null) {
+                    killProcess(process);
+                }
+            });
+            CompletableFuture<String> errorOutput = threadService.supplyAsync(() -> readQuietly(process.getErrorStream()));
+
+            // Read the output and wait for the exit - both end early once the process is killed
+            T value = null;
+            try (InputStream output = process.getInputStream()) {
+                value = outputHandler.handle(output);
+            }
+            long remaining = deadline - System.nanoTime();
+            if (!process.waitFor(Math.max(0, remaining), TimeUnit.NANOSECONDS)) {
+                killProcess(process);
+                return;
+            }
+            if (process.exitValue() != 0) {
+                result.completeExceptionally(new KubernetesException("kubectl failed: " + errorOutput.join().trim()));
+                return;
+            }
+            result.complete(value);
+        } catch (Exception e) {
+            result.completeExceptionally(e instanceof KubernetesException ? e : new KubernetesException("Error running kubectl.", e));
+        } finally {
+            slots.release();
+        }
+    }
+
+    /**
+     * Kill a process along with any children it spawned (credential plugins for example).
+     * 
+     * @param process the process
+     */
+    private static void killProcess(Process process) {
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
+        log.debug("Killed kubectl process " + process.pid() + ".");
+    }
+
+    /**
+     * Read a stream to the end and ignore any errors.
+     * 
+     * @param stream the stream
+     * @return whatever could be read
+     */
+    private static String readQuietly(InputStream stream) {
+        try {
+            return IOUtils.toString(stream, Charset.defaultCharset());
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+}
@@ -0,0 +1,534 @@
+package com.sidneysimmons.plentifulports.kubernetes;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sidneysimmons.plentifulports.forwarding.RunStateService;
+import com.sidneysimmons.plentifulports.kubernetes.domain.Kubeconfig;
+import com.sidneysimmons.plentifulports.kubernetes.domain.KubernetesEndpoint;
+import com.sidneysimmons.plentifulports.kubernetes.domain.KubernetesService;
+import com.sidneysimmons.plentifulports.kubernetes.domain.KubernetesServiceEvent;
+import com.sidneysimmons.plentifulports.kubernetes.exception.KubernetesException;
+import com.sidneysimmons.plentifulports.kubernetes.exception.ResourceExpiredException;
+import com.sidneysimmons.plentifulports.thread.ThreadService;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.stereotype.Component;
+
+/**
+ * Client for the kubernetes API. Requests go through a shared kubectl proxy process per context which takes care of authentication and
+ * keeps its own pooled connections to the API server for plain requests. Upgraded port-forward connections aren't pooled - each one is a
+ * connection of its own. A null context stands for kubectl's current context - it's resolved when the request is made and the proxies
+ * are kept per resolved context, so switching the current context never sends requests to the previous cluster.
+ * 
+ * @author Sidney Simmons
+ */
+@Slf4j
+@Component("kubernetesApiClient")
+public class KubernetesApiClient {
+
+    private static final String SERVING_PREFIX = "Starting to serve on ";
+    private static final long PROXY_START_TIMEOUT_SECONDS = 30;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int READ_TIMEOUT_MILLIS = 10000;
+    private static final int HTTP_GONE = 410;
+    private static final int LIST_PAGE_SIZE = 500;
+    private static final long WATCH_TIMEOUT_SECONDS = 300;
+    private static final long ENDPOINTS_WATCH_TIMEOUT_SECONDS = 60;
+
+    @Resource(name = "objectMapper")
+    private ObjectMapper objectMapper;
+
+    @Resource(name = "threadService")
+    private ThreadService threadService;
+
+    @Resource(name = "runStateService")
+    private RunStateService runStateService;
+
+    @Resource(name = "kubeconfigReader")
+    private KubeconfigReader kubeconfigReader;
+
+    private Map<String, Process> proxyProcesses = new HashMap<>();
+    private Map<String, InetSocketAddress> proxyAddresses = new HashMap<>();
+    private Map<String, List<JsonNode>> proxyDefinitions = new HashMap<>();
+    private Map<String, CompletableFuture<InetSocketAddress>> proxyStarts = new HashMap<>();
+
+    @PreDestroy
+    public synchronized void destroy() {
+        for (Process proxyProcess : proxyProcesses.values()) {
+            log.info("Shutting down kubernetes API proxy.");
+            proxyProcess.destroy();
+        }
+        for (CompletableFuture<InetSocketAddress> proxyStart : new ArrayList<>(proxyStarts.values())) {
+            proxyStart.completeExceptionally(new KubernetesException("Kubernetes API client shut down."));
+        }
+        proxyProcesses.clear();
+        proxyAddresses.clear();
+        proxyDefinitions.clear();
+    }
+
+    /**
+     * Stop the proxies whose context changed or went away since they were started. Called whenever the kubeconfig changes - the next
+     * request for such a context starts a fresh proxy.
+     */
+    public void refreshProxies() {
+        Kubeconfig kubeconfig = null;
+        try {
+            kubeconfig = kubeconfigReader.readKubeconfig();
+        } catch (KubernetesException e) {
+            log.warn("Can't read the kubeconfig - stopping all kubernetes API proxies.", e);
+        }
+
+        List<Process> staleProcesses = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Entry<String, Process>> iterator = proxyProcesses.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Entry<String, Process> proxy = iterator.next();
+                String context = proxy.getKey();
+                if (kubeconfig == null || !Objects.equals(proxyDefinitions.get(context), kubeconfig.readContextDefinition(context))) {
+                    log.info("Context " + context + " changed - stopping its kubernetes API proxy.");
+                    staleProcesses.add(proxy.getValue());
+                    proxyAddresses.remove(context);
+                    proxyDefinitions.remove(context);
+                    iterator.remove();
+                }
+            }
+        }
+        staleProcesses.forEach(Process::destroy);
+    }
+
+    /**
+     * Read the address of the kubernetes API proxy of a given context. Starts the proxy if it isn't already running. Callers asking for a
+     * proxy that's still starting wait on the same start, and a proxy that doesn't start serving in time is killed.
+     * 
+     * @param context the context, null for the current context
+     * @return the proxy address
+     * @throws KubernetesException thrown if the proxy can't be started
+     */
+    public InetSocketAddress readProxyAddress(String context) throws KubernetesException {
+        Kubeconfig kubeconfig = kubeconfigReader.readKubeconfig();
+        String resolvedContext = context != null ? context : kubeconfig.getCurrentContext();
+        if (resolvedContext == null) {
+            throw new KubernetesException("The kubeconfig doesn't set a current context.");
+        }
+        CompletableFuture<InetSocketAddress> proxyStart = null;
+        boolean starting = false;
+        synchronized (this) {
+            Process proxyProcess = proxyProcesses.get(resolvedContext);
+            if (proxyProcess != null && proxyProcess.isAlive()) {
+                return proxyAddresses.get(resolvedContext);
+            }
+            proxyStart = proxyStarts.get(resolvedContext);
+            if (proxyStart == null) {
+                proxyStart = new CompletableFuture<>();
+                proxyStarts.put(resolvedContext, proxyStart);
+                starting = true;
+            }
+        }
+
+        // The monitor isn't held while waiting, so a hung proxy only holds up the callers of its own context
+        if (starting) {
+            startProxy(resolvedContext, kubeconfig.readContextDefinition(resolvedContext), proxyStart);
+        }
+        try {
+            return proxyStart.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KubernetesException("Interrupted while starting the kubernetes API proxy.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TimeoutException) {
+                throw new KubernetesException("Kubernetes API proxy didn't start serving within " + PROXY_START_TIMEOUT_SECONDS + "s.",
+                        e.getCause());
+            }
+            throw new KubernetesException("Error starting the kubernetes API proxy.", e.getCause());
+        }
+    }
+
+    /**
+     * Read the ready endpoints for a given service port.
+     * 
+     * @param context the context, null for the current context
+     * @param namespace the service namespace
+     * @param serviceName the service name
+     * @param servicePort the port exposed by the service
+     * @return a list of ready endpoints (empty if there are none)
+     * @throws KubernetesException thrown if the endpoints can't be read
+     */
+    public List<KubernetesEndpoint> readServiceEndpoints(String context, String namespace, String serviceName, Integer servicePort)
+            throws KubernetesException {
+        String portName = readServicePortNames(context, namespace, serviceName, Collections.singletonList(servicePort)).get(servicePort);
+        JsonNode endpointsNode = readJson(context, "/api/v1/namespaces/" + namespace + "/endpoints/" + serviceName);
+        return parseEndpoints(endpointsNode, namespace, portName);
+    }
+
+    /**
+     * Watch the ready endpoints of a given service. The current endpoints are reported right away and then again whenever they change.
+     * Blocks until the API server ends the watch, which it does after about a minute - the caller is expected to watch again.
+     * 
+     * @param context the context, null for the current context
+     * @param namespace the service namespace
+     * @param serviceName the service name
+     * @param servicePorts the ports exposed by the service
+     * @param endpointsConsumer consumer for the ready endpoints of each service port
+     * @throws KubernetesException thrown if the endpoints can't be watched
+     */
+    public void watchServiceEndpoints(String context, String namespace, String serviceName, List<Integer> servicePorts,
+            Consumer<Map<Integer, List<KubernetesEndpoint>>> endpointsConsumer) throws KubernetesException {
+        // Without a resource version the watch starts with the current state, so a new watch never misses anything
+        Map<Integer, String> portNames = readServicePortNames(context, namespace, serviceName, servicePorts);
+        String path = "/api/v1/namespaces/" + namespace + "/endpoints?watch=1&timeoutSeconds=" + ENDPOINTS_WATCH_TIMEOUT_SECONDS
+                + "&fieldSelector=" + URLEncoder.encode("metadata.name=" + serviceName, StandardCharsets.UTF_8);
+        readWatchEvents(context, path, ENDPOINTS_WATCH_TIMEOUT_SECONDS, (type, object) -> {
+            if ("BOOKMARK".equals(type)) {
+                return;
+            }
+            Map<Integer, List<KubernetesEndpoint>> endpoints = new HashMap<>();
+            for (Entry<Integer, String> portName : portNames.entrySet()) {
+                endpoints.put(portName.getKey(),
+                        "DELETED".equals(type) ? new ArrayList<>() : parseEndpoints(object, namespace, portName.getValue()));
+            }
+            endpointsConsumer.accept(endpoints);
+        });
+    }
+
+    /**
+     * List the services of all namespaces page by page. Each service is handed to the consumer as soon as it's parsed.
+     * 
+     * @param context the context, null for the current context
+     * @param serviceConsumer consumer for the services
+     * @return the resource version of the list - a watch started from it doesn't miss any change
+     * @throws KubernetesException thrown if the services can't be listed
+     */
+    public String listServices(String context, Consumer<KubernetesService> serviceConsumer) throws KubernetesException {
+        String continueToken = null;
+        String resourceVersion = null;
+        do {
+            String path = "/api/v1/services?limit=" + LIST_PAGE_SIZE;
+            if (continueToken != null) {
+                path += "&continue=" + URLEncoder.encode(continueToken, StandardCharsets.UTF_8);
+            }
+            continueToken = null;
+            try (InputStream inputStream = openStream(context, path, READ_TIMEOUT_MILLIS);
+                    JsonParser parser = objectMapper.getFactory().createParser(inputStream)) {
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    throw new KubernetesException("Unexpected service list from the kubernetes API.");
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.getCurrentName();
+                    JsonToken value = parser.nextToken();
+                    if ("metadata".equals(field) && value == JsonToken.START_OBJECT) {
+                        JsonNode metadata = objectMapper.readTree(parser);
+                        continueToken = StringUtils.trimToNull(metadata.path("continue").asText(""));
+                        resourceVersion = metadata.path("resourceVersion").asText(resourceVersion);
+                    } else if ("items".equals(field) && value == JsonToken.START_ARRAY) {
+                        while (parser.nextToken() == JsonToken.START_OBJECT) {
+                            serviceConsumer.accept(ServiceParser.parseService(parser));
+                        }
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } catch (IOException e) {
+                throw new KubernetesException("Error integrating with kubernetes.", e);
+            }
+        } while (continueToken != null);
+        return resourceVersion;
+    }
+
+    /**
+     * Watch the services of all namespaces starting at a given resource version. Blocks until the API server ends the watch, which it
+     * does every few minutes.
+     * 
+     * @param context the context, null for the current context
+     * @param resourceVersion the resource version to start at
+     * @param eventConsumer consumer for the changes
+     * @return the resource version to continue watching from
+     * @throws ResourceExpiredException thrown if the resource version is too old - the services have to be listed again
+     * @throws KubernetesException thrown if the services can't be watched
+     */
+    public String watchServices(String context, String resourceVersion, Consumer<KubernetesServiceEvent> eventConsumer)
+            throws KubernetesException {
+        String path = "/api/v1/services?watch=1&allowWatchBookmarks=true&timeoutSeconds=" + WATCH_TIMEOUT_SECONDS + "&resourceVersion="
+                + URLEncoder.encode(resourceVersion, StandardCharsets.UTF_8);
+        AtomicReference<String> lastResourceVersion = new AtomicReference<>(resourceVersion);
+        readWatchEvents(context, path, WATCH_TIMEOUT_SECONDS, (type, object) -> {
+            KubernetesService service = null;
+            try (JsonParser objectParser = objectMapper.treeAsTokens(object)) {
+                objectParser.nextToken();
+                service = ServiceParser.parseService(objectParser);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (service.getResourceVersion() != null) {
+                lastResourceVersion.set(service.getResourceVersion());
+            }
+            if (!"BOOKMARK".equals(type)) {
+                eventConsumer.accept(new KubernetesServiceEvent(type, service));
+            }
+        });
+        return lastResourceVersion.get();
+    }
+
+    /**
+     * Build the API path used to open a port-forward stream to a given endpoint.
+     * 
+     * @param endpoint the endpoint
+     * @return the port-forward path
+     */
+    public String buildPortForwardPath(KubernetesEndpoint endpoint) {
+        return "/api/v1/namespaces/" + endpoint.getNamespace() + "/pods/" + endpoint.getPodName() + "/portforward?ports="
+                + endpoint.getPort();
+    }
+
+    /**
+     * Read the events of a watch until the API server ends it.
+     * 
+     * @param context the context, null for the current context
+     * @param path the API path of the watch
+     * @param timeoutSeconds the timeout the watch was requested with
+     * @param eventConsumer consumer for the type and object of each event
+     * @throws ResourceExpiredException thrown if the watch reports its resource version as too old
+     * @throws KubernetesException thrown if the watch fails
+     */
+    private void readWatchEvents(String context, String path, long timeoutSeconds, BiConsumer<String, JsonNode> eventConsumer)
+            throws KubernetesException {
+        int readTimeoutMillis = (int) TimeUnit.SECONDS.toMillis(timeoutSeconds + 30);
+        try (InputStream inputStream = openStream(context, path, readTimeoutMillis);
+                JsonParser parser = objectMapper.getFactory().createParser(inputStream)) {
+            // Every event is a small object of its own - the object is read as a tree since its type may come after it
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                JsonNode event = objectMapper.readTree(parser);
+                String type = event.path("type").asText("");
+                JsonNode object = event.path("object");
+                if ("ERROR".equals(type)) {
+                    if (object.path("code").asInt() == HTTP_GONE) {
+                        throw new ResourceExpiredException("Watch expired: " + object.path("message").asText(""));
+                    }
+                    throw new KubernetesException("Watch failed: " + object.path("message").asText(""));
+                }
+                eventConsumer.accept(type, object);
+            }
+        } catch (IOException | UncheckedIOException e) {
+            throw new KubernetesException("Error integrating with kubernetes.", e);
+        }
+    }
+
+    /**
+     * Read the names of the given service ports. Endpoint ports are matched up with service ports by name.
+     * 
+     * @param context the context, null for the current context
+     * @param namespace the service namespace
+     * @param serviceName the service name
+     * @param servicePorts the ports exposed by the service
+     * @return map of service ports to their names
+     * @throws KubernetesException thrown if the service can't be read or doesn't expose one of the ports
+     */
+    private Map<Integer, String> readServicePortNames(String context, String namespace, String serviceName, List<Integer> servicePorts)
+            throws KubernetesException {
+        JsonNode service = readJson(context, "/api/v1/namespaces/" + namespace + "/services/" + serviceName);
+        Map<Integer, String> portNames = new HashMap<>();
+        for (JsonNode port : service.path("spec").path("ports")) {
+            if (servicePorts.contains(port.path("port").asInt())) {
+                portNames.put(port.path("port").asInt(), port.path("name").asText(""));
+            }
+        }
+        for (Integer servicePort : servicePorts) {
+            if (!portNames.containsKey(servicePort)) {
+                throw new KubernetesException("Service " + serviceName + " doesn't expose port " + servicePort + ".");
+            }
+        }
+        return portNames;
+    }
+
+    /**
+     * Collect the ready pods of an endpoints object along with the container port a named service port resolves to.
+     * 
+     * @param endpointsNode the endpoints object
+     * @param namespace the service namespace
+     * @param portName the name of the service port
+     * @return a list of ready endpoints (empty if there are none)
+     */
+    private static List<KubernetesEndpoint> parseEndpoints(JsonNode endpointsNode, String namespace, String portName) {
+        List<KubernetesEndpoint> endpoints = new ArrayList<>();
+        for (JsonNode subset : endpointsNode.path("subsets")) {
+            Integer targetPort = null;
+            for (JsonNode port : subset.path("ports")) {
+                if (port.path("name").asText("").equals(portName)) {
+                    targetPort = port.path("port").asInt();
+                }
+            }
+            if (targetPort == null) {
+                continue;
+            }
+            for (JsonNode address : subset.path("addresses")) {
+                JsonNode targetRef = address.path("targetRef");
+                if ("Pod".equals(targetRef.path("kind").asText())) {
+                    endpoints.add(new KubernetesEndpoint(targetRef.path("namespace").asText(namespace), targetRef.path("name").asText(),
+                            targetPort));
+                }
+            }
+        }
+        return endpoints;
+    }
+
+    /**
+     * Read a JSON document from the kubernetes API.
+     * 
+     * @param context the context, null for the current context
+     * @param path the API path
+     * @return the JSON document
+     * @throws KubernetesException thrown if the document can't be read
+     */
+    private JsonNode readJson(String context, String path) throws KubernetesException {
+        try (InputStream inputStream = openStream(context, path, READ_TIMEOUT_MILLIS)) {
+            return objectMapper.readTree(inputStream);
+        } catch (IOException e) {
+            throw new KubernetesException("Error integrating with kubernetes.", e);
+        }
+    }
+
+    /**
+     * Open a response stream from the kubernetes API.
+     * 
+     * @param context the context, null for the current context
+     * @param path the API path
+     * @param readTimeoutMillis the read timeout in milliseconds
+     * @return the response stream
+     * @throws KubernetesException thrown if the API doesn't answer with a success
+     * @throws IOException thrown if the stream can't be opened
+     */
+    private InputStream openStream(String context, String path, int readTimeoutMillis) throws KubernetesException, IOException {
+        InetSocketAddress address = readProxyAddress(context);
+        URL url = null;
+        try {
+            // The path already carries its encoded query, so it's resolved as is rather than quoted a second time
+            url = new URI("http", null, address.getHostString(), address.getPort(), null, null, null).resolve(URI.create(path)).toURL();
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            throw new KubernetesException("Invalid kubernetes API path " + path + ".", e);
+        }
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(readTimeoutMillis);
+        int status = connection.getResponseCode();
+        if (status == HTTP_GONE) {
+            connection.disconnect();
+            throw new ResourceExpiredException("Kubernetes API returned status " + status + " for " + path + ".");
+        } else if (status != HttpURLConnection.HTTP_OK) {
+            connection.disconnect();
+            throw new KubernetesException("Kubernetes API returned status " + status + " for " + path + ".");
+        }
+        return connection.getInputStream();
+    }
+
+    /**
+     * Start the kubernetes API proxy of a given context. The start is completed once the proxy reports where it's serving, or failed if
+     * it exits or doesn't report in time - the proxy is killed in that case.
+     * 
+     * @param context the resolved context
+     * @param definition the definition of the context as the proxy is started with it
+     * @param proxyStart the start to complete
+     */
+    private void startProxy(String context, List<JsonNode> definition, CompletableFuture<InetSocketAddress> proxyStart) {
+        // Create the process - port zero lets kubectl pick a free port
+        log.info("Starting kubernetes API proxy for context " + context + ".");
+        Process process = null;
+        try {
+            ProcessBuilder processBuilder = new ProcessBuilder();
+            processBuilder.redirectErrorStream(true);
+            processBuilder.command(KubectlCommands.withContext(context, "kubectl", "proxy", "--port=0"));
+            process = processBuilder.start();
+        } catch (IOException e) {
+            synchronized (this) {
+                proxyStarts.remove(context, proxyStart);
+            }
+            proxyStart.completeExceptionally(e);
+            return;
+        }
+
+        // Recorded like the forwards so a crashed run doesn't leave the proxy behind
+        runStateService.recordProxyProcess(context, process);
+        process.onExit().thenAccept(exited -> runStateService.forgetProcess(exited.pid()));
+
+        Process proxyProcess = process;
+        proxyStart.orTimeout(PROXY_START_TIMEOUT_SECONDS, TimeUnit.SECONDS).whenComplete((address, e) -> {
+            synchronized (this) {
+                proxyStarts.remove(context, proxyStart);
+                if (e == null) {
+                    proxyProcesses.put(context, proxyProcess);
+                    proxyAddresses.put(context, address);
+                    proxyDefinitions.put(context, definition);
+                }
+            }
+            if (e == null) {
+                log.info("Kubernetes API proxy serving on " + address + ".");
+            } else {
+                // Kill the whole tree - a hung proxy is most likely waiting on an exec plugin
+                proxyProcess.descendants().forEach(ProcessHandle::destroyForcibly);
+                proxyProcess.destroyForcibly();
+            }
+        });
+        threadService.execute(() -> readProxyOutput(proxyProcess, proxyStart));
+    }
+
+    /**
+     * Read the proxy output until the proxy exits. Completes the start once the proxy reports where it's serving and keeps draining the
+     * output into the log afterwards so the proxy never blocks on a full pipe.
+     * 
+     * @param proxyProcess the proxy process
+     * @param proxyStart the start to complete
+     */
+    private void readProxyOutput(Process proxyProcess, CompletableFuture<InetSocketAddress> proxyStart) {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(proxyProcess.getInputStream()))) {
+            String line = null;
+            while ((line = reader.readLine()) != null) {
+                if (!proxyStart.isDone() && line.startsWith(SERVING_PREFIX)) {
+                    String hostAndPort = line.substring(SERVING_PREFIX.length()).trim();
+                    try {
+                        proxyStart.complete(new InetSocketAddress(StringUtils.substringBeforeLast(hostAndPort, ":"),
+                                Integer.parseInt(StringUtils.substringAfterLast(hostAndPort, ":"))));
+                    } catch (IllegalArgumentException e) {
+                        proxyStart.completeExceptionally(new KubernetesException("Unexpected kubernetes API proxy address " + hostAndPort
+                                + ".", e));
+                    }
+                } else if (StringUtils.isNotBlank(line)) {
+                    log.info(line.trim());
+                }
+            }
+        } catch (IOException e) {
+            log.debug("Kubernetes API proxy output closed.", e);
+        }
+        proxyStart.completeExceptionally(new KubernetesException("Kubernetes API proxy exited before serving."));
+        log.info("Kubernetes API proxy stopped.");
+    }
+
+}
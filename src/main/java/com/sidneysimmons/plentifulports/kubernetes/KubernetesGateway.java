@@ -1,21 +1,33 @@
 package com.sidneysimmons.plentifulports.kubernetes;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.sidneysimmons.plentifulports.kubernetes.domain.Kubeconfig;
 import com.sidneysimmons.plentifulports.kubernetes.domain.KubernetesContext;
+import com.sidneysimmons.plentifulports.kubernetes.domain.KubernetesQuery;
 import com.sidneysimmons.plentifulports.kubernetes.domain.KubernetesService;
 import com.sidneysimmons.plentifulports.kubernetes.exception.KubernetesException;
 import com.sidneysimmons.plentifulports.settings.domain.PortConfiguration;
 import com.sidneysimmons.plentifulports.settings.domain.ServiceConfiguration;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import com.sidneysimmons.plentifulports.thread.ThreadService;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import javax.annotation.Resource;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.lang3.StringUtils;
 import org.springframework.stereotype.Component;
 
 /**
@@ -27,133 +39,142 @@ import org.springframework.stereotype.Component;
 @Component("kubernetesGateway")
 public final class KubernetesGateway {
 
+    private static final int SERVICES_CHUNK_SIZE = 500;
+    private static final List<String> READ_SERVICES_COMMAND = Arrays.asList("kubectl", "get", "services", "--all-namespaces",
+            "--chunk-size=" + SERVICES_CHUNK_SIZE, "-o", "json");
+
+    @Resource(name = "kubeconfigReader")
+    private KubeconfigReader kubeconfigReader;
+
+    @Resource(name = "kubectlExecutor")
+    private KubectlExecutor kubectlExecutor;
+
+    @Resource(name = "credentialBroker")
+    private CredentialBroker credentialBroker;
+
+    @Resource(name = "threadService")
+    private ThreadService threadService;
+
+    @Resource(name = "serviceIndex")
+    private ServiceIndex serviceIndex;
+
+    private JsonFactory jsonFactory = new JsonFactory();
+
     /**
-     * Read the current kubernetes context.
+     * Read the current kubernetes context. The kubeconfig is read in-process so this doesn't spawn kubectl.
      * 
      * @return the current context
-     * @throws KubernetesException thrown if the context can't be read
+     * @throws KubernetesException thrown if the context can't be read or isn't set
      */
     public KubernetesContext readCurrentContext() throws KubernetesException {
-        KubernetesContext context = null;
-        try {
-            // Create the process
-            log.info("Reading current kubernetes context.");
-            ProcessBuilder processBuilder = new ProcessBuilder();
-            processBuilder.redirectErrorStream(true);
-            processBuilder.command("kubectl", "config", "current-context");
-            Process process = processBuilder.start();
-
-            // Read in the result
-            try (BufferedReader inputReader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-                String line = null;
-                while ((line = inputReader.readLine()) != null) {
-                    if (StringUtils.isNotBlank(line)) {
-                        context = new KubernetesContext();
-                        context.setName(line.trim());
-                    }
-                }
-            }
-
-            // Wait for the process to complete
-            Boolean success = process.waitFor(5, TimeUnit.SECONDS);
-            if (!success) {
-                throw new RuntimeException("Can't read kubernetes current context.");
-            }
-        } catch (Exception e) {
-            throw new KubernetesException("Error integrating with kubernetes.", e);
+        String currentContext = kubeconfigReader.readKubeconfig().getCurrentContext();
+        if (currentContext == null) {
+            throw new KubernetesException("The kubeconfig doesn't set a current context.");
         }
+        KubernetesContext context = new KubernetesContext();
+        context.setName(currentContext);
         return context;
     }
 
     /**
-     * Read all available kubernetes contexts.
+     * Read the current kubernetes context without blocking the caller.
+     * 
+     * @return future for the current context - completed exceptionally with a {@link KubernetesException} if it can't be read
+     */
+    public CompletableFuture<KubernetesContext> readCurrentContextAsync() {
+        return supplyAsync(this::readCurrentContext);
+    }
+
+    /**
+     * Read all available kubernetes contexts. The kubeconfig is read in-process so this doesn't spawn kubectl.
      * 
-     * @return a list of available contexts
+     * @return a list of available contexts sorted by name
      * @throws KubernetesException thrown if the contexts can't be read
      */
     public List<KubernetesContext> readAvailableContexts() throws KubernetesException {
         List<KubernetesContext> contexts = new ArrayList<>();
-        try {
-            // Create the process
-            log.info("Reading available kubernetes contexts.");
-            ProcessBuilder processBuilder = new ProcessBuilder();
-            processBuilder.redirectErrorStream(true);
-            processBuilder.command("kubectl", "config", "get-contexts", "-o", "name");
-            Process process = processBuilder.start();
-
-            // Read in the result
-            try (BufferedReader inputReader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-                String line = null;
-                while ((line = inputReader.readLine()) != null) {
-                    if (StringUtils.isNotBlank(line)) {
-                        KubernetesContext context = new KubernetesContext();
-                        context.setName(line.trim());
-                        contexts.add(context);
-                    }
-                }
-            }
-
-            // Wait for the process to complete
-            Boolean success = process.waitFor(5, TimeUnit.SECONDS);
-            if (!success) {
-                throw new RuntimeException("Can't read available kubernetes contexts.");
-            }
-        } catch (Exception e) {
-            throw new KubernetesException("Error integrating with kubernetes.", e);
+        for (String contextName : kubeconfigReader.readKubeconfig().getContextNames()) {
+            KubernetesContext context = new KubernetesContext();
+            context.setName(contextName);
+            contexts.add(context);
         }
         return contexts;
     }
 
     /**
-     * Read all the kubernetes services.
+     * Read all the kubernetes services of all namespaces of all contexts. The services of the current context are served from the service
+     * index once it's synced.
      * 
      * @return a list of services
-     * @throws KubernetesException thrown if the services can't be read
+     * @throws KubernetesException thrown if the services can't be read from any context
      */
     public List<KubernetesService> readServices() throws KubernetesException {
-        List<KubernetesService> services = new ArrayList<>();
+        return KubectlExecutor.await(readServicesAsync());
+    }
+
+    /**
+     * Read all the kubernetes services of all namespaces of all contexts without blocking the caller. The contexts are read concurrently
+     * and the results merged - a context that can't be read is left out instead of failing the others. The services of the current
+     * context are served from the service index once it's synced. A slow read is hedged with a second one.
+     * 
+     * @return future for the services - completed exceptionally with a {@link KubernetesException} if they can't be read from any context
+     */
+    public CompletableFuture<List<KubernetesService>> readServicesAsync() {
+        Map<String, CompletableFuture<List<KubernetesService>>> reads = new LinkedHashMap<>();
         try {
-            // Create the process
-            log.info("Reading kubernetes services.");
-            ProcessBuilder processBuilder = new ProcessBuilder();
-            processBuilder.redirectErrorStream(true);
-            processBuilder.command("kubectl", "get", "services", "-o", "json");
-            Process process = processBuilder.start();
-
-            // Read in the result
-            StringBuilder builder = new StringBuilder();
-            try (BufferedReader inputReader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-                String line = null;
-                while ((line = inputReader.readLine()) != null) {
-                    if (StringUtils.isNotBlank(line)) {
-                        builder.append(line.trim());
-                    }
-                }
+            Kubeconfig kubeconfig = kubeconfigReader.readKubeconfig();
+            for (String contextName : readContextNames(kubeconfig)) {
+                reads.put(contextName, readContextServicesAsync(contextName));
             }
+        } catch (KubernetesException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return mergeReads(reads, services -> {
+            List<KubernetesService> merged = new ArrayList<>();
+            services.forEach(merged::addAll);
+            return merged;
+        });
+    }
 
-            // Wait for the process to complete
-            Boolean success = process.waitFor(5, TimeUnit.SECONDS);
-            if (!success) {
-                throw new RuntimeException("Can't read kubernetes services.");
-            }
+    /**
+     * Read all the kubernetes services of all namespaces of all contexts and hand each one to the given consumer as soon as it's parsed.
+     * 
+     * @param serviceConsumer consumer for the services
+     * @throws KubernetesException thrown if the services can't be read from any context
+     */
+    public void readServices(Consumer<KubernetesService> serviceConsumer) throws KubernetesException {
+        KubectlExecutor.await(readServicesAsync(serviceConsumer));
+    }
 
-            // Parse the service objects from the JSON
-            JsonNode response = new ObjectMapper().readValue(builder.toString(), JsonNode.class);
-            ArrayNode serviceNodes = (ArrayNode) response.findPath("items");
-            for (JsonNode serviceNode : serviceNodes) {
-                KubernetesService service = new KubernetesService();
-                service.setName(serviceNode.findPath("metadata").findPath("name").asText("N/A"));
-                service.setNamespace(serviceNode.findPath("metadata").findPath("namespace").asText("N/A"));
-                services.add(service);
+    /**
+     * Read all the kubernetes services of all namespaces of all contexts and hand each one to the given consumer as soon as it's parsed.
+     * kubectl pages through the services in chunks and the output is parsed as a stream, so the full list is never held in memory here.
+     * The contexts are read concurrently, so the consumer is called from several worker threads at the same time. kubectl is killed if it
+     * doesn't finish in time or the future is cancelled.
+     * 
+     * @param serviceConsumer consumer for the services - must be thread safe
+     * @return future for the number of services read - completed exceptionally with a {@link KubernetesException} if they can't be read
+     *         from any context
+     */
+    public CompletableFuture<Integer> readServicesAsync(Consumer<KubernetesService> serviceConsumer) {
+        Map<String, CompletableFuture<Integer>> reads = new LinkedHashMap<>();
+        try {
+            for (String contextName : readContextNames(kubeconfigReader.readKubeconfig())) {
+                // Never hedged - the consumer would see the services twice
+                log.info("Reading kubernetes services of context " + contextName + ".");
+                reads.put(contextName, kubectlExecutor.execute("get services", contextName, READ_SERVICES_COMMAND, false,
+                        output -> parseServices(output, contextName, serviceConsumer)));
             }
-        } catch (Exception e) {
-            throw new KubernetesException("Error integrating with kubernetes.", e);
+        } catch (KubernetesException e) {
+            return CompletableFuture.failedFuture(e);
         }
-        return services;
+        return mergeReads(reads, counts -> counts.stream().mapToInt(Integer::intValue).sum());
     }
 
     /**
-     * Build the forward ports process. The process is not started in this method.
+     * Build the forward ports process. The process is not started in this method. It runs against the context of the service, or the
+     * current context if the service doesn't name one. It's pointed at the brokered kubeconfig when the context authenticates through a
+     * credential plugin - kubectl only authenticates once when it connects so the credential expiring later on doesn't matter.
      * 
      * @param serviceConfiguration the service configuration
      * @return the process builder
@@ -162,15 +183,144 @@ public final class KubernetesGateway {
         // Create the process
         ProcessBuilder processBuilder = new ProcessBuilder();
         processBuilder.redirectErrorStream(true);
+        Path kubeconfig = credentialBroker.resolveKubeconfig(serviceConfiguration.getContext());
+        if (kubeconfig != null) {
+            processBuilder.environment().put("KUBECONFIG", kubeconfig.toString());
+        }
 
         // Build the command
         List<String> command = new ArrayList<>(Arrays.asList("kubectl", "port-forward", "-n", serviceConfiguration.getServiceNamespace(),
                 "service/" + serviceConfiguration.getServiceName()));
         command.addAll(formatPorts(serviceConfiguration.getPorts()));
-        processBuilder.command(command);
+        processBuilder.command(KubectlCommands.withContext(serviceConfiguration.getContext(), command));
         return processBuilder;
     }
 
+    /**
+     * Read the services of a single context. The context the service index covers is served from the index once it's synced.
+     * 
+     * @param contextName the context
+     * @return future for the services of the context
+     */
+    private CompletableFuture<List<KubernetesService>> readContextServicesAsync(String contextName) {
+        if (serviceIndex.isSynced() && contextName.equals(serviceIndex.getContext())) {
+            List<KubernetesService> services = new ArrayList<>();
+            for (KubernetesService indexed : serviceIndex.readServices()) {
+                // The indexed services are shared - hand out copies
+                KubernetesService service = new KubernetesService();
+                service.setName(indexed.getName());
+                service.setNamespace(indexed.getNamespace());
+                service.setPorts(new ArrayList<>(indexed.getPorts()));
+                service.setResourceVersion(indexed.getResourceVersion());
+                service.setContext(contextName);
+                services.add(service);
+            }
+            return CompletableFuture.completedFuture(services);
+        }
+        log.info("Reading kubernetes services of context " + contextName + ".");
+        return kubectlExecutor.execute("get services", contextName, READ_SERVICES_COMMAND, true, output -> {
+            // Every attempt collects its own list so a hedged attempt can't mix into it
+            List<KubernetesService> services = new ArrayList<>();
+            parseServices(output, contextName, services::add);
+            return services;
+        });
+    }
+
+    /**
+     * Read the names of the contexts to read services from. Falls back to the current context if the kubeconfig doesn't list any.
+     * 
+     * @param kubeconfig the merged kubeconfig
+     * @return the context names
+     * @throws KubernetesException thrown if there's no context at all
+     */
+    private static List<String> readContextNames(Kubeconfig kubeconfig) throws KubernetesException {
+        if (!kubeconfig.getContextNames().isEmpty()) {
+            return kubeconfig.getContextNames();
+        }
+        if (kubeconfig.getCurrentContext() == null) {
+            throw new KubernetesException("The kubeconfig doesn't define any contexts.");
+        }
+        return Collections.singletonList(kubeconfig.getCurrentContext());
+    }
+
+    /**
+     * Merge the results of reads running against several contexts once all of them are done. Contexts that failed are logged and left
+     * out, the merged result only fails if every context failed.
+     * 
+     * @param <T> the type of the result of a single context
+     * @param <R> the type of the merged result
+     * @param reads the reads by context name
+     * @param merger function merging the results of the contexts that succeeded
+     * @return future for the merged result
+     */
+    private static <T, R> CompletableFuture<R> mergeReads(Map<String, CompletableFuture<T>> reads, Function<List<T>, R> merger) {
+        return CompletableFuture.allOf(reads.values().toArray(new CompletableFuture<?>[0])).handle((ignored, failure) -> {
+            List<T> results = new ArrayList<>();
+            Throwable lastFailure = null;
+            for (Entry<String, CompletableFuture<T>> read : reads.entrySet()) {
+                try {
+                    results.add(read.getValue().join());
+                } catch (CompletionException | CancellationException e) {
+                    log.warn("Can't read kubernetes services of context " + read.getKey() + " - leaving it out.", e.getCause());
+                    lastFailure = e;
+                }
+            }
+            if (results.isEmpty() && lastFailure != null) {
+                throw lastFailure instanceof CompletionException ? (CompletionException) lastFailure : new CompletionException(lastFailure);
+            }
+            return merger.apply(results);
+        });
+    }
+
+    /**
+     * Parse the services straight off the output of kubectl.
+     * 
+     * @param output the output
+     * @param contextName the context the services were read from
+     * @param serviceConsumer consumer for the services
+     * @return the number of services parsed
+     * @throws IOException thrown if the output can't be parsed
+     */
+    private Integer parseServices(InputStream output, String contextName, Consumer<KubernetesService> serviceConsumer) throws IOException {
+        int count = 0;
+        try (JsonParser parser = jsonFactory.createParser(output)) {
+            if (parser.nextToken() == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.getCurrentName();
+                    if (parser.nextToken() == JsonToken.START_ARRAY && "items".equals(field)) {
+                        while (parser.nextToken() == JsonToken.START_OBJECT) {
+                            KubernetesService service = ServiceParser.parseService(parser);
+                            service.setContext(contextName);
+                            serviceConsumer.accept(service);
+                            count++;
+                        }
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            }
+        }
+        log.info("Read " + count + " kubernetes services of context " + contextName + ".");
+        return count;
+    }
+
+    /**
+     * Run a query on a worker thread.
+     * 
+     * @param <T> the type of the result
+     * @param query the query
+     * @return future for the result - completed exceptionally with the exception of the query
+     */
+    private <T> CompletableFuture<T> supplyAsync(KubernetesQuery<T> query) {
+        return threadService.supplyAsync(() -> {
+            try {
+                return query.read();
+            } catch (KubernetesException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
     /**
      * Format the given list of ports.
      * 
@@ -0,0 +1,291 @@
+package com.sidneysimmons.plentifulports.kubernetes;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.sidneysimmons.plentifulports.kubernetes.domain.Kubeconfig;
+import com.sidneysimmons.plentifulports.kubernetes.domain.KubernetesService;
+import com.sidneysimmons.plentifulports.kubernetes.domain.KubernetesServiceEvent;
+import com.sidneysimmons.plentifulports.kubernetes.exception.KubernetesException;
+import com.sidneysimmons.plentifulports.kubernetes.exception.ResourceExpiredException;
+import com.sidneysimmons.plentifulports.thread.ThreadService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+/**
+ * Live index of the kubernetes services of the current context. The services are listed once and then kept up to date from a watch on the
+ * API, so reading them never has to go back to the cluster. A watch that falls too far behind is answered with a full list again. The
+ * index isn't started until someone needs it, and it starts over whenever the kubeconfig switches the current context or changes how to
+ * reach it.
+ * 
+ * @author Sidney Simmons
+ */
+@Slf4j
+@Component("serviceIndex")
+public class ServiceIndex {
+
+    private static final long MIN_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 30000;
+    private static final long PUBLISH_DELAY_MILLIS = 250;
+
+    @Resource(name = "kubernetesApiClient")
+    private KubernetesApiClient kubernetesApiClient;
+
+    @Resource(name = "kubeconfigReader")
+    private KubeconfigReader kubeconfigReader;
+
+    @Resource(name = "threadService")
+    private ThreadService threadService;
+
+    private Map<String, KubernetesService> services = new ConcurrentHashMap<>();
+    private volatile List<KubernetesService> snapshot = Collections.emptyList();
+    private volatile String context;
+    private List<JsonNode> contextDefinition;
+    private volatile long generation = 0;
+    private volatile boolean synced = false;
+    private volatile boolean started = false;
+    private volatile boolean stopped = false;
+    private AtomicBoolean publishScheduled = new AtomicBoolean();
+    private List<Runnable> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Start keeping the index up to date. Does nothing if it's already started.
+     */
+    public synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        refresh();
+    }
+
+    /**
+     * Follow a change of the kubeconfig. If the current context was switched or its definition changed, the index is dropped and synced
+     * again from the current context. Does nothing unless the index is started.
+     */
+    public synchronized void refresh() {
+        if (!started || stopped) {
+            return;
+        }
+        Kubeconfig kubeconfig = null;
+        try {
+            kubeconfig = kubeconfigReader.readKubeconfig();
+        } catch (KubernetesException e) {
+            log.warn("Can't read the kubeconfig - keeping the service index as it is.", e);
+            return;
+        }
+        String currentContext = kubeconfig.getCurrentContext();
+        List<JsonNode> currentDefinition = currentContext != null ? kubeconfig.readContextDefinition(currentContext) : null;
+        if (generation > 0 && Objects.equals(currentContext, context) && Objects.equals(currentDefinition, contextDefinition)) {
+            return;
+        }
+
+        // A new generation makes the sync of the previous context drop whatever it still receives
+        long syncGeneration = ++generation;
+        context = currentContext;
+        contextDefinition = currentDefinition;
+        synced = false;
+        services.clear();
+        publish();
+        if (currentContext == null) {
+            log.warn("The kubeconfig doesn't set a current context - not indexing services.");
+            return;
+        }
+        log.info("Indexing the services of context " + currentContext + ".");
+        threadService.execute(() -> syncServices(currentContext, syncGeneration));
+    }
+
+    @PreDestroy
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Read all the indexed services.
+     * 
+     * @return an immutable list of services
+     */
+    public List<KubernetesService> readServices() {
+        return snapshot;
+    }
+
+    /**
+     * Check if a given service exists.
+     * 
+     * @param namespace the namespace of the service
+     * @param name the name of the service
+     * @return true if the service exists, false otherwise
+     */
+    public Boolean contains(String namespace, String name) {
+        return services.containsKey(key(namespace, name));
+    }
+
+    /**
+     * Check if the index holds the services of the cluster, i.e. the first list went through.
+     * 
+     * @return true if the index is synced, false otherwise
+     */
+    public Boolean isSynced() {
+        return synced;
+    }
+
+    /**
+     * Read the context the index covers.
+     * 
+     * @return the context, null if the index isn't started or there's no current context
+     */
+    public String getContext() {
+        return context;
+    }
+
+    /**
+     * Add a listener that's called whenever the indexed services change. Changes are coalesced, so a burst of watch events only calls
+     * the listeners once. Listeners are called on a background thread.
+     * 
+     * @param listener the listener
+     */
+    public void addListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * List and watch the services of a given context until stopped or the index moves on to another generation. The watch resumes from
+     * the last resource version it saw, so the index is only listed again if that version expired.
+     * 
+     * @param syncContext the context
+     * @param syncGeneration the generation of the index the sync belongs to
+     */
+    private void syncServices(String syncContext, long syncGeneration) {
+        String resourceVersion = null;
+        long backoffMillis = MIN_BACKOFF_MILLIS;
+        while (!stopped && generation == syncGeneration) {
+            try {
+                if (resourceVersion == null) {
+                    resourceVersion = listServices(syncContext, syncGeneration);
+                }
+                resourceVersion = kubernetesApiClient.watchServices(syncContext, resourceVersion,
+                        event -> applyEvent(event, syncGeneration));
+                backoffMillis = MIN_BACKOFF_MILLIS;
+            } catch (ResourceExpiredException e) {
+                log.info("Service watch expired - listing the services again.");
+                resourceVersion = null;
+            } catch (KubernetesException e) {
+                if (generation != syncGeneration) {
+                    break;
+                }
+                log.warn("Can't sync the service index - retrying in " + backoffMillis + "ms.", e);
+                try {
+                    TimeUnit.MILLISECONDS.sleep(backoffMillis);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+            }
+        }
+        log.debug("Stopped syncing the services of context " + syncContext + ".");
+    }
+
+    /**
+     * List the services of a given context and replace the index with them.
+     * 
+     * @param syncContext the context
+     * @param syncGeneration the generation of the index the list belongs to
+     * @return the resource version of the list
+     * @throws KubernetesException thrown if the services can't be listed
+     */
+    private String listServices(String syncContext, long syncGeneration) throws KubernetesException {
+        Map<String, KubernetesService> listed = new ConcurrentHashMap<>();
+        String resourceVersion = kubernetesApiClient.listServices(syncContext, service -> listed.put(key(service), service));
+        synchronized (this) {
+            if (generation != syncGeneration) {
+                return resourceVersion;
+            }
+            services.keySet().retainAll(listed.keySet());
+            services.putAll(listed);
+            snapshot = Collections.unmodifiableList(new ArrayList<>(services.values()));
+            synced = true;
+        }
+        log.info("Indexed " + listed.size() + " kubernetes services of context " + syncContext + ".");
+        publish();
+        return resourceVersion;
+    }
+
+    /**
+     * Apply a watch event to the index. Events of an older generation are dropped.
+     * 
+     * @param event the event
+     * @param syncGeneration the generation of the index the event belongs to
+     */
+    private void applyEvent(KubernetesServiceEvent event, long syncGeneration) {
+        String key = key(event.getService());
+        synchronized (this) {
+            if (generation != syncGeneration) {
+                return;
+            }
+            if ("DELETED".equals(event.getType())) {
+                services.remove(key);
+            } else {
+                services.put(key, event.getService());
+            }
+        }
+        schedulePublish();
+    }
+
+    /**
+     * Publish the index a little later. Whatever else changes in the meantime goes out with the same snapshot.
+     */
+    private void schedulePublish() {
+        if (publishScheduled.compareAndSet(false, true)) {
+            threadService.schedule(() -> {
+                publishScheduled.set(false);
+                publish();
+            }, PUBLISH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Publish a new snapshot of the index and tell the listeners about it.
+     */
+    private void publish() {
+        snapshot = Collections.unmodifiableList(new ArrayList<>(services.values()));
+        for (Runnable listener : listeners) {
+            try {
+                listener.run();
+            } catch (RuntimeException e) {
+                log.warn("Service index listener failed.", e);
+            }
+        }
+    }
+
+    /**
+     * Build the index key of a given service.
+     * 
+     * @param service the service
+     * @return the key
+     */
+    private static String key(KubernetesService service) {
+        return key(service.getNamespace(), service.getName());
+    }
+
+    /**
+     * Build the index key of a given namespace and name.
+     * 
+     * @param namespace the namespace
+     * @param name the name
+     * @return the key
+     */
+    private static String key(String namespace, String name) {
+        return namespace + "/" + name;
+    }
+
+}
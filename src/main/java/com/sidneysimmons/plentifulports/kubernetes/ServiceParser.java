@@ -0,0 +1,86 @@
+package com.sidneysimmons.plentifulports.kubernetes;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.sidneysimmons.plentifulports.kubernetes.domain.KubernetesService;
+import java.io.IOException;
+
+/**
+ * Streaming parser for kubernetes service objects, shared by kubectl and API based discovery.
+ * 
+ * @author Sidney Simmons
+ */
+public final class ServiceParser {
+
+    private ServiceParser() {
+        // No need to instantiate this
+    }
+
+    /**
+     * Parse a single service. The parser is positioned on the start of the service object and is left on its end. Only the fields the
+     * application uses are read - everything else is skipped without being materialized.
+     * 
+     * @param parser the parser
+     * @return the service
+     * @throws IOException thrown if the service can't be parsed
+     */
+    public static KubernetesService parseService(JsonParser parser) throws IOException {
+        KubernetesService service = new KubernetesService();
+        service.setName("N/A");
+        service.setNamespace("N/A");
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if ("metadata".equals(field) && value == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String metadataField = parser.getCurrentName();
+                    parser.nextToken();
+                    if ("name".equals(metadataField)) {
+                        service.setName(parser.getValueAsString("N/A"));
+                    } else if ("namespace".equals(metadataField)) {
+                        service.setNamespace(parser.getValueAsString("N/A"));
+                    } else if ("resourceVersion".equals(metadataField)) {
+                        service.setResourceVersion(parser.getValueAsString());
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } else if ("spec".equals(field) && value == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String specField = parser.getCurrentName();
+                    if (parser.nextToken() == JsonToken.START_ARRAY && "ports".equals(specField)) {
+                        while (parser.nextToken() == JsonToken.START_OBJECT) {
+                            parseServicePort(parser, service);
+                        }
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return service;
+    }
+
+    /**
+     * Parse a single port of a service and add it to the service. The parser is positioned on the start of the port object and is left
+     * on its end.
+     * 
+     * @param parser the parser
+     * @param service the service
+     * @throws IOException thrown if the port can't be parsed
+     */
+    private static void parseServicePort(JsonParser parser, KubernetesService service) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            if ("port".equals(field) && parser.currentToken() == JsonToken.VALUE_NUMBER_INT) {
+                service.getPorts().add(parser.getIntValue());
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+}
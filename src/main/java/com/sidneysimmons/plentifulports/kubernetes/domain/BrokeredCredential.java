@@ -0,0 +1,22 @@
+package com.sidneysimmons.plentifulports.kubernetes.domain;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Credential of a context obtained from its exec plugin, along with the generated kubeconfig holding it. A credential without a kubeconfig
+ * stands for a plugin run that failed and is kept until it's time to try again.
+ * 
+ * @author Sidney Simmons
+ */
+@Data
+@NoArgsConstructor
+public class BrokeredCredential {
+
+    private Kubeconfig source;
+    private Instant expiration;
+    private Path kubeconfigFile;
+
+}
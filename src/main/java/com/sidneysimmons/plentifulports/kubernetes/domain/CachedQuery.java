@@ -0,0 +1,103 @@
+package com.sidneysimmons.plentifulports.kubernetes.domain;
+
+import com.sidneysimmons.plentifulports.kubernetes.exception.KubernetesException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cached result of a kubernetes query. The result is kept for a fixed time to live and concurrent callers of a stale result share a
+ * single run of the query instead of each running it. Failures aren't cached.
+ * 
+ * @author Sidney Simmons
+ * @param <T> the type of the result
+ */
+public class CachedQuery<T> {
+
+    private long timeToLiveNanos;
+    private T value;
+    private boolean loaded = false;
+    private long expiresAt;
+    private long generation = 0;
+    private CompletableFuture<T> inFlight;
+
+    /**
+     * Constructor.
+     * 
+     * @param timeToLive how long a result is kept
+     * @param unit the unit of the time to live
+     */
+    public CachedQuery(long timeToLive, TimeUnit unit) {
+        this.timeToLiveNanos = unit.toNanos(timeToLive);
+    }
+
+    /**
+     * Read the cached result. Runs the query if there's no fresh result and nobody else is running it already.
+     * 
+     * @param query the query
+     * @return the result
+     * @throws KubernetesException thrown if the query fails
+     */
+    public T read(KubernetesQuery<T> query) throws KubernetesException {
+        CompletableFuture<T> load = null;
+        long loadGeneration = 0;
+        boolean leader = false;
+        synchronized (this) {
+            if (loaded && System.nanoTime() - expiresAt < 0) {
+                return value;
+            }
+            if (inFlight == null) {
+                inFlight = new CompletableFuture<>();
+                leader = true;
+            }
+            load = inFlight;
+            loadGeneration = generation;
+        }
+
+        // The first caller runs the query outside the lock - everybody else waits for its result
+        if (leader) {
+            try {
+                T result = query.read();
+                synchronized (this) {
+                    // Results of queries started before an invalidation are handed out but not kept
+                    if (generation == loadGeneration) {
+                        value = result;
+                        loaded = true;
+                        expiresAt = System.nanoTime() + timeToLiveNanos;
+                    }
+                    if (inFlight == load) {
+                        inFlight = null;
+                    }
+                }
+                load.complete(result);
+            } catch (KubernetesException | RuntimeException e) {
+                synchronized (this) {
+                    if (inFlight == load) {
+                        inFlight = null;
+                    }
+                }
+                load.completeExceptionally(e);
+            }
+        }
+
+        try {
+            return load.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof KubernetesException) {
+                throw (KubernetesException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Drop the cached result. Queries already running aren't stopped but their results won't be kept.
+     */
+    public synchronized void invalidate() {
+        value = null;
+        loaded = false;
+        inFlight = null;
+        generation++;
+    }
+
+}
@@ -0,0 +1,42 @@
+package com.sidneysimmons.plentifulports.kubernetes.domain;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * The parts of the merged kubeconfig the application cares about.
+ * 
+ * @author Sidney Simmons
+ */
+@Data
+@NoArgsConstructor
+public class Kubeconfig {
+
+    private String currentContext;
+    private List<String> contextNames = new ArrayList<>();
+    private Map<String, JsonNode> contexts = new LinkedHashMap<>();
+    private Map<String, JsonNode> clusters = new LinkedHashMap<>();
+    private Map<String, JsonNode> users = new LinkedHashMap<>();
+
+    /**
+     * Read everything that defines a given context - the context itself along with its cluster and user. Two definitions are equal if
+     * kubectl would talk to the same cluster the same way.
+     * 
+     * @param contextName the context
+     * @return the context, cluster and user entries (missing ones are null), null if there's no such context
+     */
+    public List<JsonNode> readContextDefinition(String contextName) {
+        JsonNode context = contexts.get(contextName);
+        if (context == null) {
+            return null;
+        }
+        return Arrays.asList(context, clusters.get(context.path("cluster").asText("")), users.get(context.path("user").asText("")));
+    }
+
+}
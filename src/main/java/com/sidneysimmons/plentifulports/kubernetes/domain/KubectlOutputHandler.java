@@ -0,0 +1,26 @@
+package com.sidneysimmons.plentifulports.kubernetes.domain;
+
+import com.sidneysimmons.plentifulports.kubernetes.exception.KubernetesException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Turns the output of a kubectl command into a result.
+ * 
+ * @author Sidney Simmons
+ * @param <T> the type of the result
+ */
+@FunctionalInterface
+public interface KubectlOutputHandler<T> {
+
+    /**
+     * Read the output of the command. The stream ends early if the command is killed.
+     * 
+     * @param output the standard output of the command
+     * @return the result
+     * @throws IOException thrown if the output can't be read
+     * @throws KubernetesException thrown if the output isn't what was expected
+     */
+    T handle(InputStream output) throws IOException, KubernetesException;
+
+}
@@ -0,0 +1,25 @@
+package com.sidneysimmons.plentifulports.kubernetes.domain;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Kubernetes endpoint. A ready pod backing a service along with the container port a service port resolves to.
+ * 
+ * @author Sidney Simmons
+ */
+@Data
+@NoArgsConstructor
+public class KubernetesEndpoint {
+
+    private String namespace;
+    private String podName;
+    private Integer port;
+
+    public KubernetesEndpoint(String namespace, String podName, Integer port) {
+        this.namespace = namespace;
+        this.podName = podName;
+        this.port = port;
+    }
+
+}
@@ -0,0 +1,22 @@
+package com.sidneysimmons.plentifulports.kubernetes.domain;
+
+import com.sidneysimmons.plentifulports.kubernetes.exception.KubernetesException;
+
+/**
+ * A query against kubernetes.
+ * 
+ * @author Sidney Simmons
+ * @param <T> the type of the result
+ */
+@FunctionalInterface
+public interface KubernetesQuery<T> {
+
+    /**
+     * Run the query.
+     * 
+     * @return the result
+     * @throws KubernetesException thrown if the query fails
+     */
+    T read() throws KubernetesException;
+
+}
@@ -1,5 +1,7 @@
 package com.sidneysimmons.plentifulports.kubernetes.domain;
 
+import java.util.ArrayList;
+import java.util.List;
 import lombok.Data;
 
 /**
@@ -12,5 +14,8 @@ public class KubernetesService {
 
     private String name;
     private String namespace;
+    private List<Integer> ports = new ArrayList<>();
+    private String resourceVersion;
+    private String context;
 
 }
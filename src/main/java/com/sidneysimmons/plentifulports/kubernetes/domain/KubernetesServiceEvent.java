@@ -0,0 +1,23 @@
+package com.sidneysimmons.plentifulports.kubernetes.domain;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Change to a kubernetes service reported by a watch.
+ * 
+ * @author Sidney Simmons
+ */
+@Data
+@NoArgsConstructor
+public class KubernetesServiceEvent {
+
+    private String type;
+    private KubernetesService service;
+
+    public KubernetesServiceEvent(String type, KubernetesService service) {
+        this.type = type;
+        this.service = service;
+    }
+
+}
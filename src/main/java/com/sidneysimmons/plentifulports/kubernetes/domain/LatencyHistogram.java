@@ -0,0 +1,122 @@
+package com.sidneysimmons.plentifulports.kubernetes.domain;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Histogram of command latencies. Buckets grow by 10% each, starting at one millisecond, so percentiles are accurate to about 10% over
+ * the whole range. Once enough samples are in, all counts are halved so older samples fade out and the histogram follows a cluster that
+ * gets slower or faster. Besides completed latencies it takes censored ones - latencies only known to be longer than what was seen, like
+ * an attempt that timed out - and reads percentiles with the Kaplan-Meier estimate so those don't make the command look faster.
+ * 
+ * @author Sidney Simmons
+ */
+public class LatencyHistogram {
+
+    private static final long BASE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final double GROWTH = 1.1;
+    private static final int BUCKET_COUNT = 160;
+    private static final long DECAY_THRESHOLD = 256;
+
+    private long[] completed = new long[BUCKET_COUNT];
+    private long[] censored = new long[BUCKET_COUNT];
+    private long count = 0;
+    private long decayedCount = 0;
+
+    /**
+     * Record a latency.
+     * 
+     * @param nanos the latency in nanoseconds
+     */
+    public synchronized void record(long nanos) {
+        add(completed, nanos);
+    }
+
+    /**
+     * Record a latency that's only known to be longer than a given one - an attempt that timed out, or that was given up on once another
+     * attempt won.
+     * 
+     * @param nanos the time the attempt ran for in nanoseconds
+     */
+    public synchronized void recordCensored(long nanos) {
+        add(censored, nanos);
+    }
+
+    /**
+     * Read a percentile of the recorded latencies. Censored latencies count as still running up to their bucket and drop out after it.
+     * 
+     * @param percentile the percentile between 0 and 1
+     * @return the latency in nanoseconds - the upper bound of the bucket holding the percentile, or of the highest recorded bucket if too
+     *         many latencies are censored to tell
+     */
+    public synchronized long readPercentile(double percentile) {
+        long atRisk = decayedCount;
+        double survival = 1.0;
+        int highest = BUCKET_COUNT - 1;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            if (completed[i] > 0) {
+                survival *= 1.0 - (double) completed[i] / atRisk;
+                if (1.0 - survival >= percentile) {
+                    return upperBoundOf(i);
+                }
+            }
+            if (completed[i] > 0 || censored[i] > 0) {
+                highest = i;
+            }
+            atRisk -= completed[i] + censored[i];
+        }
+        return upperBoundOf(highest);
+    }
+
+    /**
+     * Return the number of latencies recorded so far, completed and censored, including the ones that faded out.
+     * 
+     * @return the number of recorded latencies
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * Add a latency to the given buckets and halve all counts once enough samples are in.
+     * 
+     * @param buckets the completed or censored buckets
+     * @param nanos the latency in nanoseconds
+     */
+    private void add(long[] buckets, long nanos) {
+        buckets[bucketOf(nanos)]++;
+        count++;
+        decayedCount++;
+        if (decayedCount >= DECAY_THRESHOLD) {
+            decayedCount = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                decayedCount += completed[i] /= 2;
+                decayedCount += censored[i] /= 2;
+            }
+        }
+    }
+
+    /**
+     * Find the bucket of a given latency.
+     * 
+     * @param nanos the latency in nanoseconds
+     * @return the bucket index
+     */
+    private static int bucketOf(long nanos) {
+        if (nanos <= BASE_NANOS) {
+            return 0;
+        }
+        int bucket = (int) Math.ceil(Math.log((double) nanos / BASE_NANOS) / Math.log(GROWTH));
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+
+    /**
+     * Compute the upper bound of a given bucket.
+     * 
+     * @param bucket the bucket index
+     * @return the upper bound in nanoseconds
+     */
+    private static long upperBoundOf(int bucket) {
+        return (long) (BASE_NANOS * Math.pow(GROWTH, bucket));
+    }
+
+}
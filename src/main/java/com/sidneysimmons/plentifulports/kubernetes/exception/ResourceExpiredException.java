@@ -0,0 +1,16 @@
+package com.sidneysimmons.plentifulports.kubernetes.exception;
+
+/**
+ * Exception for a watch whose resource version is too old to continue from. The resources have to be listed again.
+ * 
+ * @author Sidney Simmons
+ */
+public class ResourceExpiredException extends KubernetesException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ResourceExpiredException(String message) {
+        super(message);
+    }
+
+}
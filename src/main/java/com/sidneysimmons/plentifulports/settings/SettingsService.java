@@ -3,6 +3,8 @@ package com.sidneysimmons.plentifulports.settings;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.sidneysimmons.plentifulports.settings.domain.ForwardingConfiguration;
+import com.sidneysimmons.plentifulports.settings.domain.ForwardingEngine;
+import com.sidneysimmons.plentifulports.settings.domain.LoadBalancing;
 import com.sidneysimmons.plentifulports.settings.domain.PortConfiguration;
 import com.sidneysimmons.plentifulports.settings.domain.ServiceConfiguration;
 import com.sidneysimmons.plentifulports.settings.domain.Settings;
@@ -11,7 +13,9 @@ import com.sidneysimmons.plentifulports.settings.exception.SettingsException;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import javax.annotation.Resource;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections4.CollectionUtils;
@@ -82,11 +86,16 @@ public final class SettingsService {
             return new SettingsValidity(false, "Forwarding configuration is null.");
         }
 
+        if (forwardingConfiguration.getMonitorScrollback() != null && forwardingConfiguration.getMonitorScrollback() < 1) {
+            return new SettingsValidity(false, "Monitor scrollback must be at least 1 line.");
+        }
+
         List<ServiceConfiguration> services = forwardingConfiguration.getServices();
         if (CollectionUtils.isEmpty(services)) {
             return new SettingsValidity(false, "List of forwarding services is null or empty.");
         }
 
+        Set<Integer> localPorts = new HashSet<>();
         for (ServiceConfiguration service : services) {
             if (StringUtils.isBlank(service.getServiceName())) {
                 return new SettingsValidity(false, "Service name is null, empty, or blank.");
@@ -96,6 +105,19 @@ public final class SettingsService {
                 return new SettingsValidity(false, "Service namespace is null, empty, or blank.");
             }
 
+            if (service.getContext() != null && StringUtils.isBlank(service.getContext())) {
+                return new SettingsValidity(false, "Context of service [" + service.getServiceName() + "] is empty or blank.");
+            }
+
+            if (service.getLoadBalancing() != null && service.getLoadBalancing() != LoadBalancing.NONE
+                    && forwardingConfiguration.getEngine() != ForwardingEngine.NATIVE) {
+                return new SettingsValidity(false, "Load balancing of service [" + service.getServiceName() + "] needs the NATIVE engine.");
+            }
+
+            if (service.getPodCount() != null && service.getPodCount() < 1) {
+                return new SettingsValidity(false, "Pod count of service [" + service.getServiceName() + "] must be at least 1.");
+            }
+
             List<PortConfiguration> forwardingPorts = service.getPorts();
             if (CollectionUtils.isEmpty(forwardingPorts)) {
                 return new SettingsValidity(false, "List of forwarding ports is null or empty.");
@@ -103,7 +125,10 @@ public final class SettingsService {
 
             for (PortConfiguration forwardingPort : forwardingPorts) {
                 try {
-                    Integer.parseInt(forwardingPort.getLocal());
+                    if (!localPorts.add(Integer.parseInt(forwardingPort.getLocal()))) {
+                        return new SettingsValidity(false,
+                                "Local forwarding port [" + forwardingPort.getLocal() + "] is used by more than one service.");
+                    }
                 } catch (NumberFormatException e) {
                     return new SettingsValidity(false, "Local forwarding port [" + forwardingPort.getLocal() + "] isn't a valid integer.");
                 }
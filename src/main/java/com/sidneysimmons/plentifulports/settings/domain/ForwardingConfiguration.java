@@ -16,6 +16,13 @@ import lombok.NoArgsConstructor;
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class ForwardingConfiguration {
 
+    private ForwardingEngine engine = ForwardingEngine.KUBECTL;
+    private Boolean lazy = false;
+    private Integer idleTimeoutSeconds = 300;
+    private Boolean autoRestart = true;
+    private Integer maxConcurrentStarts = 8;
+    private Integer startsPerSecond = 5;
+    private Integer monitorScrollback = 100000;
     private List<ServiceConfiguration> services = new ArrayList<>();
 
 }
@@ -0,0 +1,21 @@
+package com.sidneysimmons.plentifulports.settings.domain;
+
+/**
+ * Engine used to forward the ports.
+ * 
+ * @author Sidney Simmons
+ */
+public enum ForwardingEngine {
+
+    /**
+     * Run a separate kubectl port-forward process for each service.
+     */
+    KUBECTL,
+
+    /**
+     * Forward in-process over the kubernetes port-forward websocket protocol. All services share a single selector thread and a single
+     * kubectl proxy process.
+     */
+    NATIVE
+
+}
@@ -0,0 +1,25 @@
+package com.sidneysimmons.plentifulports.settings.domain;
+
+/**
+ * How the connections to a service's local ports are spread over its pods.
+ * 
+ * @author Sidney Simmons
+ */
+public enum LoadBalancing {
+
+    /**
+     * Send every connection to a single pod. Another pod is only picked once that pod stops being ready.
+     */
+    NONE,
+
+    /**
+     * Hand the connections to the pods in turn.
+     */
+    ROUND_ROBIN,
+
+    /**
+     * Hand each connection to the pod with the fewest open connections.
+     */
+    LEAST_CONNECTIONS
+
+}
@@ -18,11 +18,15 @@ public class ServiceConfiguration {
 
     private String serviceName;
     private String serviceNamespace;
+    private String group;
+    private String context;
     private List<PortConfiguration> ports = new ArrayList<>();
+    private LoadBalancing loadBalancing = LoadBalancing.NONE;
+    private Integer podCount;
 
     @Override
     public String toString() {
-        return serviceName + " (" + serviceNamespace + ")";
+        return serviceName + " (" + (context != null ? context + "/" : "") + serviceNamespace + ")";
     }
 
 }
@@ -1,14 +1,20 @@
 package com.sidneysimmons.plentifulports.thread;
 
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Component;
 
 /**
- * Service class for managing a pool of generic threads.
+ * Service class for managing generic threads. Blocking work (kubectl processes, file and network I/O) runs on virtual threads so that
+ * hundreds of forwards don't each hold on to a platform thread and its stack.
  * 
  * @author Sidney Simmons
  */
@@ -17,21 +23,25 @@ import org.springframework.stereotype.Component;
 public class ThreadService {
 
     private ExecutorService instance;
+    private ScheduledExecutorService scheduler;
 
     @PostConstruct
     public void initialize() {
         log.info("Creating thread pool.");
-        instance = Executors.newCachedThreadPool();
+        instance = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("worker-", 0).factory());
+        scheduler = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("scheduler").daemon(true).factory());
     }
 
     @PreDestroy
     public void destroy() {
         log.info("Shutting down thread pool.");
+        scheduler.shutdownNow();
         instance.shutdownNow();
     }
 
     /**
-     * Execute a given runnable in a new thread.
+     * Execute a given runnable in a new virtual thread. Blocking is fine but avoid blocking while holding a monitor - that pins the
+     * carrier thread.
      * 
      * @param runnable the runnable to execute
      */
@@ -39,4 +49,50 @@ public class ThreadService {
         instance.execute(runnable);
     }
 
+    /**
+     * Execute a given runnable in a new virtual thread.
+     * 
+     * @param runnable the runnable to execute
+     * @return future completed once the runnable is done
+     */
+    public CompletableFuture<Void> runAsync(Runnable runnable) {
+        return CompletableFuture.runAsync(runnable, instance);
+    }
+
+    /**
+     * Execute a given supplier in a new virtual thread.
+     * 
+     * @param <T> the type of the result
+     * @param supplier the supplier to execute
+     * @return future for the result of the supplier
+     */
+    public <T> CompletableFuture<T> supplyAsync(Supplier<T> supplier) {
+        return CompletableFuture.supplyAsync(supplier, instance);
+    }
+
+    /**
+     * Execute a given runnable once after a delay. The runnable should be quick - hand any blocking work off to {@link #execute(Runnable)}.
+     * 
+     * @param runnable the runnable to execute
+     * @param delay the delay
+     * @param unit the unit of the delay
+     * @return the scheduled future
+     */
+    public ScheduledFuture<?> schedule(Runnable runnable, long delay, TimeUnit unit) {
+        return scheduler.schedule(runnable, delay, unit);
+    }
+
+    /**
+     * Execute a given runnable repeatedly at a fixed rate. The runnable should be quick - hand any blocking work off to
+     * {@link #execute(Runnable)}.
+     * 
+     * @param runnable the runnable to execute
+     * @param period the period between executions
+     * @param unit the unit of the period
+     * @return the scheduled future
+     */
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable runnable, long period, TimeUnit unit) {
+        return scheduler.scheduleAtFixedRate(runnable, period, period, unit);
+    }
+
 }
@@ -0,0 +1,120 @@
+package com.sidneysimmons.plentifulports.thread.domain;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free ring buffer with any number of producers and a single consumer. Each slot carries a sequence number telling whose
+ * turn it is - producers claim a slot by moving the tail forward and publish into it by bumping its sequence, so they never wait on each
+ * other or on the consumer. Once the ring is full new elements are dropped and counted instead of blocking the producer.
+ * 
+ * @param <T> the type of the elements
+ * @author Sidney Simmons
+ */
+public class MessageRing<T> {
+
+    private AtomicReferenceArray<T> elements;
+    private AtomicLongArray sequences;
+    private int mask;
+    private AtomicLong tail = new AtomicLong();
+    private AtomicLong dropped = new AtomicLong();
+    private long head = 0;
+
+    /**
+     * Constructor.
+     * 
+     * @param capacity the minimum capacity - rounded up to a power of two
+     */
+    public MessageRing(int capacity) {
+        int size = 2;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        elements = new AtomicReferenceArray<>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * Add an element. Safe to call from any thread.
+     * 
+     * @param element the element
+     * @return true if the element was added, false if the ring is full and it was dropped
+     */
+    public Boolean offer(T element) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements.set(index, element);
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // The consumer hasn't taken this slot's previous element yet
+                dropped.incrementAndGet();
+                return false;
+            } else {
+                // Another producer claimed the slot first
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Take the oldest element. Must only be called from the single consumer thread.
+     * 
+     * @return the element, null if the ring is empty or the next element is still being published
+     */
+    public T poll() {
+        int index = (int) (head & mask);
+        if (sequences.get(index) != head + 1) {
+            return null;
+        }
+        T element = elements.get(index);
+        elements.set(index, null);
+        sequences.set(index, head + mask + 1);
+        head++;
+        return element;
+    }
+
+    /**
+     * Look at the oldest element without taking it. Must only be called from the single consumer thread.
+     * 
+     * @return the element, null if the ring is empty or the next element is still being published
+     */
+    public T peek() {
+        int index = (int) (head & mask);
+        if (sequences.get(index) != head + 1) {
+            return null;
+        }
+        return elements.get(index);
+    }
+
+    /**
+     * Check if the ring is empty. An element that is still being published counts as not there yet. Must only be called from the single
+     * consumer thread.
+     * 
+     * @return true if there's nothing to take, false otherwise
+     */
+    public Boolean isEmpty() {
+        return sequences.get((int) (head & mask)) != head + 1;
+    }
+
+    /**
+     * Take the number of elements dropped since the last call.
+     * 
+     * @return the number of dropped elements
+     */
+    public long takeDropped() {
+        return dropped.getAndSet(0);
+    }
+
+}
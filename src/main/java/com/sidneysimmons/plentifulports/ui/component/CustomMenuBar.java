@@ -1,5 +1,7 @@
 package com.sidneysimmons.plentifulports.ui.component;
 
+import com.sidneysimmons.plentifulports.forwarding.ForwardingService;
+import com.sidneysimmons.plentifulports.thread.ThreadService;
 import com.sidneysimmons.plentifulports.ui.FrameManager;
 import com.sidneysimmons.plentifulports.ui.scene.DashboardScene;
 import com.sidneysimmons.plentifulports.ui.scene.SettingsScene;
@@ -8,6 +10,8 @@ import javax.annotation.Resource;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
+import javax.swing.event.MenuEvent;
+import javax.swing.event.MenuListener;
 import org.springframework.stereotype.Component;
 
 /**
@@ -21,6 +25,12 @@ public class CustomMenuBar extends JMenuBar {
     @Resource(name = "frameManager")
     private transient FrameManager frameManager;
 
+    @Resource(name = "forwardingService")
+    private transient ForwardingService forwardingService;
+
+    @Resource(name = "threadService")
+    private transient ThreadService threadService;
+
     private static final long serialVersionUID = 1L;
 
     @PostConstruct
@@ -61,9 +71,57 @@ public class CustomMenuBar extends JMenuBar {
             }
         });
 
+        JMenuItem startAllMenuItem = new JMenuItem("Start all services");
+        startAllMenuItem.addActionListener(event -> threadService.execute(forwardingService::startServices));
+
+        JMenuItem stopAllMenuItem = new JMenuItem("Stop all services");
+        stopAllMenuItem.addActionListener(event -> threadService.execute(forwardingService::stopServices));
+
         JMenu navigateMenu = new JMenu("Actions");
         navigateMenu.add(loadServicesMenuItem);
+        navigateMenu.addSeparator();
+        navigateMenu.add(startAllMenuItem);
+        navigateMenu.add(buildStartGroupMenu());
+        navigateMenu.add(stopAllMenuItem);
         return navigateMenu;
     }
 
+    /**
+     * Build the start group menu. The groups are filled in from the loaded services whenever the menu is opened.
+     * 
+     * @return the start group menu
+     */
+    private JMenu buildStartGroupMenu() {
+        JMenu startGroupMenu = new JMenu("Start group");
+        startGroupMenu.addMenuListener(new MenuListener() {
+
+            @Override
+            public void menuSelected(MenuEvent event) {
+                startGroupMenu.removeAll();
+                for (String group : forwardingService.readGroups()) {
+                    JMenuItem groupMenuItem = new JMenuItem(group);
+                    groupMenuItem.addActionListener(groupEvent -> threadService.execute(() -> forwardingService.startGroup(group)));
+                    startGroupMenu.add(groupMenuItem);
+                }
+                if (startGroupMenu.getItemCount() == 0) {
+                    JMenuItem noGroupsMenuItem = new JMenuItem("- no groups -");
+                    noGroupsMenuItem.setEnabled(false);
+                    startGroupMenu.add(noGroupsMenuItem);
+                }
+            }
+
+            @Override
+            public void menuDeselected(MenuEvent event) {
+                // Nothing to do here
+            }
+
+            @Override
+            public void menuCanceled(MenuEvent event) {
+                // Nothing to do here
+            }
+
+        });
+        return startGroupMenu;
+    }
+
 }
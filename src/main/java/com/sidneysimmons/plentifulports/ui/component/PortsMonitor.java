@@ -1,57 +1,275 @@
 package com.sidneysimmons.plentifulports.ui.component;
 
+import com.sidneysimmons.plentifulports.forwarding.ForwardingEventBus;
+import com.sidneysimmons.plentifulports.forwarding.domain.ForwardingEvent;
+import com.sidneysimmons.plentifulports.thread.domain.MessageRing;
+import com.sidneysimmons.plentifulports.ui.domain.MonitorMessage;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
 import javax.swing.JTextArea;
+import javax.swing.Timer;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import javax.swing.text.Position;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Component;
 
 /**
- * Custom text area for showing a ports "monitor". Sort of like a real-time log.
+ * Custom text area for showing a ports "monitor". Sort of like a real-time log. Messages can be added from any thread - they are queued
+ * in a lock-free ring and a Swing timer appends whatever piled up to the document every so often, so a chatty kubectl process can't flood
+ * the event dispatch thread. The monitor subscribes to the forwarding events and shows whatever message they carry. Summaries are kept to
+ * a single line each - a new summary replaces the previous one with the same key and moves to the bottom.
  * 
  * @author Sidney Simmons
  */
+@Slf4j
 @Component("portsMonitor")
 public class PortsMonitor extends JTextArea {
 
+    public static final int DEFAULT_MAXIMUM_LINE_COUNT = 100000;
+
     private static final long serialVersionUID = 1L;
+    private static final int RING_CAPACITY = 65536;
+    private static final int FLUSH_INTERVAL_MILLIS = 50;
+    private static final int MAX_FLUSH_COUNT = 4096;
+
+    @Resource(name = "forwardingEventBus")
+    private transient ForwardingEventBus forwardingEventBus;
 
-    private StringBuilder currentLines = new StringBuilder();
-    private Integer maximumLineCount = 100;
-    private Integer currentLineCount = 0;
+    private transient MessageRing<MonitorMessage> messages = new MessageRing<>(RING_CAPACITY);
+    private transient AtomicBoolean flushScheduled = new AtomicBoolean();
+    private volatile int maximumLineCount = DEFAULT_MAXIMUM_LINE_COUNT;
+    private Timer flushTimer;
     private DateTimeFormatter dateTimeFormatter = DateTimeFormatter.ofPattern("yyyy-MM-dd hh:mm:ss a");
+    private long formattedSecond = -1;
+    private String formattedTimestamp;
+    private Map<String, Position> summaryPositions = new HashMap<>();
+    private Map<String, String> summaryLines = new HashMap<>();
 
     /**
      * Constructor.
      */
     public PortsMonitor() {
         setFont(CustomFont.MONOSPACE);
+        flushTimer = new Timer(FLUSH_INTERVAL_MILLIS, event -> flush());
+        flushTimer.setRepeats(false);
+        // A coalescing timer drops its event while the previous one is still being handled, which would strand the scheduled flag
+        flushTimer.setCoalesce(false);
+    }
+
+    @PostConstruct
+    public void initialize() {
+        forwardingEventBus.subscribe("portsMonitor", this::handleEvents);
+    }
+
+    /**
+     * Add a message to the monitor. Safe to call from any thread - the message shows up with the next flush.
+     * 
+     * @param message the message
+     */
+    public void addMessage(String message) {
+        addMessage(System.currentTimeMillis(), message);
+    }
+
+    /**
+     * Add a message to the monitor with the time it happened at. Safe to call from any thread - the message shows up with the next flush.
+     * 
+     * @param timestampMillis the time of the message
+     * @param message the message
+     */
+    public void addMessage(long timestampMillis, String message) {
+        queue(new MonitorMessage(timestampMillis, message));
+    }
+
+    /**
+     * Set the summary with a given key. Safe to call from any thread - the previous summary with the same key is replaced with the next
+     * flush.
+     * 
+     * @param key the key of the summary
+     * @param summary the summary
+     */
+    public void setSummary(String key, String summary) {
+        queue(new MonitorMessage(System.currentTimeMillis(), summary, key));
+    }
+
+    /**
+     * Set the number of lines kept in the monitor. Older lines are dropped with the next flush.
+     * 
+     * @param maximumLineCount the number of lines
+     */
+    public void setMaximumLineCount(int maximumLineCount) {
+        this.maximumLineCount = Math.max(1, maximumLineCount);
+    }
+
+    /**
+     * Append the queued messages to the document and drop the lines beyond the scrollback. Runs on the event dispatch thread.
+     */
+    private void flush() {
+        // Clear the flag before draining so a message added meanwhile schedules another flush
+        flushScheduled.set(false);
+        int maximum = maximumLineCount;
+        ArrayDeque<MonitorMessage> batch = new ArrayDeque<>();
+        Map<String, MonitorMessage> summaries = new LinkedHashMap<>();
+        MonitorMessage message = null;
+        int drainedCount = 0;
+        while (drainedCount < MAX_FLUSH_COUNT && (message = messages.poll()) != null) {
+            drainedCount++;
+            if (message.getSummaryKey() != null) {
+                // Only the latest summary of each key matters
+                summaries.remove(message.getSummaryKey());
+                summaries.put(message.getSummaryKey(), message);
+                continue;
+            }
+            batch.addLast(message);
+            if (batch.size() > maximum) {
+                // Wouldn't survive the trimming anyway
+                batch.removeFirst();
+            }
+        }
+        if (drainedCount == MAX_FLUSH_COUNT && !flushScheduled.getAndSet(true)) {
+            // Producers are keeping up with the drain - leave the rest to the next flush instead of hogging the thread
+            flushTimer.start();
+        }
+        long dropped = messages.takeDropped();
+        if (batch.isEmpty() && summaries.isEmpty() && dropped == 0) {
+            return;
+        }
+
+        try {
+            // Take out the summaries being replaced
+            Document document = getDocument();
+            for (String key : summaries.keySet()) {
+                removeSummary(document, key);
+            }
+
+            // Format the batch into a single insert with the summaries last
+            StringBuilder text = new StringBuilder();
+            if (dropped > 0) {
+                appendLine(text, document, System.currentTimeMillis(), dropped + " messages were dropped since they came in too fast.");
+            }
+            for (MonitorMessage queued : batch) {
+                appendLine(text, document, queued.getTimestampMillis(), queued.getText());
+            }
+            for (MonitorMessage summary : summaries.values()) {
+                summaryLines.put(summary.getSummaryKey(), appendLine(text, document, summary.getTimestampMillis(), summary.getText()));
+            }
+
+            // Append the batch and trim the oldest lines - removing from the front moves the whole document, so it's only done once the
+            // scrollback overshoots by a tenth
+            document.insertString(document.getLength(), text.toString(), null);
+            Element root = document.getDefaultRootElement();
+            int summaryIndex = root.getElementCount() - summaries.size();
+            for (String key : summaries.keySet()) {
+                summaryPositions.put(key, document.createPosition(root.getElement(summaryIndex++).getStartOffset()));
+            }
+            int excessLineCount = root.getElementCount() - maximum;
+            if (excessLineCount > maximum / 10) {
+                document.remove(0, root.getElement(excessLineCount).getStartOffset());
+            }
+            setCaretPosition(root.getElement(root.getElementCount() - 1).getStartOffset());
+        } catch (BadLocationException e) {
+            log.warn("Can't update the ports monitor.", e);
+        }
     }
 
     /**
-     * Add a message to the monitor.
+     * Show the messages of a batch of forwarding events.
+     * 
+     * @param events the events
+     */
+    private void handleEvents(List<ForwardingEvent> events) {
+        for (ForwardingEvent event : events) {
+            if (event.getMessage() != null) {
+                addMessage(event.getTimestampMillis(), event.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Queue a message for the next flush.
      * 
      * @param message the message
      */
-    public synchronized void addMessage(String message) {
-        // Delete the oldest line if we're at the max
-        if (currentLineCount >= maximumLineCount) {
-            currentLines.delete(0, currentLines.indexOf("\n") + 1);
-        } else {
-            currentLineCount++;
+    private void queue(MonitorMessage message) {
+        messages.offer(message);
+        if (!flushScheduled.getAndSet(true)) {
+            flushTimer.start();
+        }
+    }
+
+    /**
+     * Remove the line of the summary with a given key. Does nothing if the line was already trimmed off the top.
+     * 
+     * @param document the document
+     * @param key the key of the summary
+     * @throws BadLocationException thrown if the document changed underneath us
+     */
+    private void removeSummary(Document document, String key) throws BadLocationException {
+        Position position = summaryPositions.remove(key);
+        String line = summaryLines.remove(key);
+        if (position == null) {
+            return;
         }
+        Element root = document.getDefaultRootElement();
+        Element element = root.getElement(root.getElementIndex(position.getOffset()));
+        int start = element.getStartOffset();
+        int end = Math.min(element.getEndOffset(), document.getLength());
+        String current = document.getText(start, end - start);
+        if (!current.equals(line) && !current.equals(line + "\n")) {
+            // Trimmed along with the lines around it - the position slid to another line
+            return;
+        }
+        if (end == document.getLength() && start > 0) {
+            // The last line has no line break of its own - take the one in front
+            start--;
+        }
+        document.remove(start, end - start);
+    }
 
-        // Append the message
-        if (currentLines.length() > 0) {
-            currentLines.append("\n");
+    /**
+     * Append a line to the text of a batch.
+     * 
+     * @param text the text of the batch
+     * @param document the document the batch is appended to
+     * @param timestampMillis the timestamp of the line
+     * @param message the message of the line
+     * @return the line
+     */
+    private String appendLine(StringBuilder text, Document document, long timestampMillis, String message) {
+        if (text.length() > 0 || document.getLength() > 0) {
+            text.append('\n');
         }
-        Integer beginningOfLatestLine = currentLines.length();
-        currentLines.append(ZonedDateTime.ofInstant(Instant.now(), ZoneId.systemDefault()).format(dateTimeFormatter) + " - " + message);
+        int start = text.length();
+        text.append(formatTimestamp(timestampMillis)).append(" - ").append(message);
+        return text.substring(start);
+    }
 
-        // Update the text area
-        setText(currentLines.toString());
-        setCaretPosition(beginningOfLatestLine);
+    /**
+     * Format a timestamp. Timestamps only show seconds so the formatted one is reused for messages of the same second.
+     * 
+     * @param timestampMillis the timestamp
+     * @return the formatted timestamp
+     */
+    private String formatTimestamp(long timestampMillis) {
+        long second = TimeUnit.MILLISECONDS.toSeconds(timestampMillis);
+        if (second != formattedSecond) {
+            formattedSecond = second;
+            formattedTimestamp = ZonedDateTime.ofInstant(Instant.ofEpochMilli(timestampMillis), ZoneId.systemDefault())
+                    .format(dateTimeFormatter);
+        }
+        return formattedTimestamp;
     }
 
 }
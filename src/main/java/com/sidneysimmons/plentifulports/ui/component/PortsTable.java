@@ -1,29 +1,41 @@
 package com.sidneysimmons.plentifulports.ui.component;
 
-import com.sidneysimmons.plentifulports.settings.domain.PortConfiguration;
+import com.sidneysimmons.plentifulports.forwarding.domain.ServiceStatus;
 import com.sidneysimmons.plentifulports.settings.domain.ServiceConfiguration;
-import com.sidneysimmons.plentifulports.ui.FrameManager;
+import com.sidneysimmons.plentifulports.ui.domain.PortsTableRow;
+import java.awt.BorderLayout;
 import java.awt.Color;
-import java.awt.GridBagConstraints;
-import java.awt.GridBagLayout;
-import java.awt.Insets;
-import java.awt.event.ItemListener;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.awt.Dimension;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Point;
+import java.awt.Rectangle;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import javax.annotation.Resource;
-import javax.swing.JCheckBox;
-import javax.swing.JComponent;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import javax.swing.BorderFactory;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.JTextField;
+import javax.swing.RowFilter;
 import javax.swing.SwingConstants;
-import javax.swing.border.EtchedBorder;
+import javax.swing.Timer;
+import javax.swing.UIManager;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.table.DefaultTableCellRenderer;
+import javax.swing.table.TableRowSorter;
+import org.apache.commons.lang3.StringUtils;
 import org.springframework.stereotype.Component;
 
 /**
- * Ports table singleton.
+ * Ports table singleton. The services are shown in a sortable table which only renders the visible rows, so hundreds of services load
+ * with a single model event. Typing in the filter field narrows the rows down as you type. The status columns are sampled at a fixed
+ * rate for the visible rows only and repainted in one go, so a busy tunnel never turns into a repaint per connection. Since rows out of
+ * view aren't sampled the status columns can't be sorted on.
  * 
  * @author Sidney Simmons
  */
@@ -31,147 +43,294 @@ import org.springframework.stereotype.Component;
 public class PortsTable extends JPanel {
 
     private static final long serialVersionUID = 1L;
+    private static final int VISIBLE_ROW_COUNT = 10;
+    private static final String EMPTY_TABLE_TEXT = "- no services -";
+    private static final int SAMPLE_INTERVAL_MILLIS = 250;
 
-    @Resource(name = "frameManager")
-    private FrameManager frameManager;
-
-    private JLabel emptyTableRow;
-    private Map<ServiceConfiguration, List<JComponent>> currentServices = new HashMap<>();
+    private PortsTableModel model = new PortsTableModel();
+    private TableRowSorter<PortsTableModel> sorter = new TableRowSorter<>(model);
+    private JTextField filterField;
+    private JTable table;
+    private Timer sampleTimer;
 
     /**
      * Constructor.
      */
     public PortsTable() {
-        super(new GridBagLayout());
+        super(new BorderLayout(0, 5));
+        setOpaque(false);
+        add(buildFilterBar(), BorderLayout.NORTH);
+        add(buildTable(), BorderLayout.CENTER);
+        sampleTimer = new Timer(SAMPLE_INTERVAL_MILLIS, event -> {
+            if (table.isShowing()) {
+                sampleVisibleRows();
+            }
+        });
+        sampleTimer.start();
+    }
 
-        emptyTableRow = new JLabel("- no services -");
-        emptyTableRow.setHorizontalAlignment(SwingConstants.CENTER);
+    /**
+     * Replace the services in the table.
+     * 
+     * @param serviceConfigurations the service configurations
+     * @param toggleHandler handler for when the user toggles a service on or off
+     * @param statusReader reader for the live status of a service, called on the event dispatch thread so it must not block
+     */
+    public void setServices(List<ServiceConfiguration> serviceConfigurations, BiConsumer<ServiceConfiguration, Boolean> toggleHandler,
+            Function<ServiceConfiguration, ServiceStatus> statusReader) {
+        model.setServices(serviceConfigurations, toggleHandler, statusReader);
+    }
 
-        setBackground(Color.WHITE);
-        setBorder(new EtchedBorder(EtchedBorder.LOWERED));
-        buildColumns();
-        showEmptyTableRow();
+    /**
+     * Clear the ports table.
+     */
+    public void clearTable() {
+        model.clear();
     }
 
     /**
-     * Add a given service to the table.
+     * Set the toggle for a given service. Only changes what's shown - the toggle handler is left alone.
      * 
      * @param serviceConfiguration the service configuration
-     * @param toggleHandler a toggle handler
+     * @param checked whether or not the toggle should be checked
      */
-    public void addServiceToTable(ServiceConfiguration serviceConfiguration, ItemListener toggleHandler) {
-        // Hide the empty table row if it's currently showing
-        if (currentServices.isEmpty()) {
-            hideEmptyTableRow();
-        }
+    public void setToggle(ServiceConfiguration serviceConfiguration, Boolean checked) {
+        model.setActive(serviceConfiguration, checked);
+    }
 
-        // Add the service to the table
-        JLabel serviceNameLabel = new JLabel(serviceConfiguration.getServiceName());
-        JLabel serviceNamespaceLabel = new JLabel(serviceConfiguration.getServiceNamespace());
-        JLabel servicePortsLabel = new JLabel(formatPorts(serviceConfiguration.getPorts()));
-        JCheckBox serviceActiveLabel = new JCheckBox();
-        serviceActiveLabel.addItemListener(toggleHandler);
-
-        List<JComponent> components = Arrays.asList(serviceNameLabel, serviceNamespaceLabel, servicePortsLabel, serviceActiveLabel);
-        currentServices.put(serviceConfiguration, components);
-
-        // Grid Y is the # of current services + 1 to account for the header row
-        int gridY = currentServices.size() + 1;
-        add(serviceNameLabel, ComponentHelper.gridBagConstraints(GridBagConstraints.NORTHWEST, GridBagConstraints.HORIZONTAL,
-                new Insets(5, 5, 5, 5), 0, gridY, 1, 1, 0, 0, 1.0, 0.0));
-        add(serviceNamespaceLabel, ComponentHelper.gridBagConstraints(GridBagConstraints.NORTHWEST, GridBagConstraints.HORIZONTAL,
-                new Insets(5, 5, 5, 5), 1, gridY, 1, 1, 0, 0, 1.0, 0.0));
-        add(servicePortsLabel, ComponentHelper.gridBagConstraints(GridBagConstraints.NORTHWEST, GridBagConstraints.HORIZONTAL,
-                new Insets(5, 5, 5, 5), 2, gridY, 1, 1, 0, 0, 1.0, 0.0));
-        add(serviceActiveLabel, ComponentHelper.gridBagConstraints(GridBagConstraints.NORTH, GridBagConstraints.NONE,
-                new Insets(5, 5, 5, 5), 3, gridY, 1, 1, 0, 0, 0.0, 0.0));
-
-        // Repaint
-        frameManager.repaintApplication();
+    /**
+     * Mark a given service as missing from the cluster, or clear the mark.
+     * 
+     * @param serviceConfiguration the service configuration
+     * @param missing whether or not the service is missing
+     */
+    public void setServiceMissing(ServiceConfiguration serviceConfiguration, Boolean missing) {
+        model.setMissing(serviceConfiguration, missing);
     }
 
     /**
-     * Clear the ports table.
+     * Build the filter bar.
+     * 
+     * @return the filter bar
      */
-    public void clearTable() {
-        for (Entry<ServiceConfiguration, List<JComponent>> entry : currentServices.entrySet()) {
-            for (JComponent component : entry.getValue()) {
-                remove(component);
+    private JPanel buildFilterBar() {
+        JPanel filterBar = new JPanel(new BorderLayout(5, 0));
+        filterBar.setOpaque(false);
+        JLabel filterLabel = new JLabel("Filter");
+        filterLabel.setFont(CustomFont.BOLD);
+        filterBar.add(filterLabel, BorderLayout.WEST);
+
+        filterField = new JTextField();
+        filterField.setToolTipText("Show only the services whose name, namespace or ports contain the text");
+        filterField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent event) {
+                applyFilter();
             }
-        }
-        currentServices.clear();
-        showEmptyTableRow();
 
-        // Repaint
-        frameManager.repaintApplication();
+            @Override
+            public void removeUpdate(DocumentEvent event) {
+                applyFilter();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent event) {
+                applyFilter();
+            }
+        });
+        filterBar.add(filterField, BorderLayout.CENTER);
+        return filterBar;
     }
 
     /**
-     * Set the toggle for a given service.
+     * Build the table inside of its scroll pane.
      * 
-     * @param serviceConfiguration the service configuration
-     * @param checked whether or not the toggle should be checked
+     * @return the scroll pane
      */
-    public void setToggle(ServiceConfiguration serviceConfiguration, Boolean checked) {
-        if (currentServices.containsKey(serviceConfiguration)) {
-            List<JComponent> components = currentServices.get(serviceConfiguration);
-            JCheckBox toggle = (JCheckBox) components.get(3);
-            toggle.setSelected(checked);
+    private JScrollPane buildTable() {
+        table = new JTable(model) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void paintComponent(Graphics graphics) {
+                super.paintComponent(graphics);
+                if (getRowCount() == 0) {
+                    String text = model.getRowCount() == 0 ? EMPTY_TABLE_TEXT : "- no matching services -";
+                    FontMetrics metrics = graphics.getFontMetrics();
+                    graphics.setColor(UIManager.getColor("Label.foreground"));
+                    graphics.drawString(text, (getWidth() - metrics.stringWidth(text)) / 2, metrics.getHeight() + 5);
+                }
+            }
+        };
+        table.setRowSorter(sorter);
+        table.setFillsViewportHeight(true);
+        table.setShowGrid(false);
+        table.setRowHeight(table.getRowHeight() + 6);
+        table.setPreferredScrollableViewportSize(new Dimension(760, VISIBLE_ROW_COUNT * table.getRowHeight()));
+        table.getTableHeader().setFont(CustomFont.BOLD);
+        table.getTableHeader().setReorderingAllowed(false);
+        table.getColumnModel().getColumn(PortsTableModel.SERVICE_COLUMN).setCellRenderer(new ServiceCellRenderer());
+        for (int column = PortsTableModel.STATE_COLUMN; column < PortsTableModel.ACTIVE_COLUMN; column++) {
+            table.getColumnModel().getColumn(column).setCellRenderer(new StatusCellRenderer(column));
+            table.getColumnModel().getColumn(column).setPreferredWidth(60);
+
+            // Sampling only repaints, it never tells the sorter - sorting on a live column would go stale right away
+            sorter.setSortable(column, false);
         }
+        table.getColumnModel().getColumn(PortsTableModel.ACTIVE_COLUMN).setMaxWidth(60);
+
+        JScrollPane scrollPane = new JScrollPane(table);
+        scrollPane.setBorder(BorderFactory.createEtchedBorder());
+        scrollPane.getViewport().setBackground(Color.WHITE);
+        return scrollPane;
     }
 
     /**
-     * Show the empty table row.
+     * Sample the status of the rows that are currently visible and repaint them. Rows scrolled or filtered out of view aren't sampled at
+     * all - their connection rate catches up once they're visible again.
      */
-    private void showEmptyTableRow() {
-        hideEmptyTableRow();
-        add(emptyTableRow, ComponentHelper.gridBagConstraints(GridBagConstraints.CENTER, GridBagConstraints.HORIZONTAL,
-                new Insets(10, 10, 10, 10), 0, 1, 4, 1, 0, 0, 1.0, 0.0));
+    private void sampleVisibleRows() {
+        Rectangle visibleRect = table.getVisibleRect();
+        int firstRow = table.rowAtPoint(visibleRect.getLocation());
+        if (firstRow < 0) {
+            return;
+        }
+        int lastRow = table.rowAtPoint(new Point(visibleRect.x, visibleRect.y + visibleRect.height - 1));
+        if (lastRow < 0) {
+            lastRow = table.getRowCount() - 1;
+        }
+        long nowNanos = System.nanoTime();
+        for (int row = firstRow; row <= lastRow; row++) {
+            model.sampleStatus(table.convertRowIndexToModel(row), nowNanos);
+        }
+        table.repaint(visibleRect);
     }
 
     /**
-     * Hide the empty table row.
+     * Show only the rows matching the filter text. Matching ignores case.
      */
-    private void hideEmptyTableRow() {
-        remove(emptyTableRow);
+    private void applyFilter() {
+        String filterText = filterField.getText().trim();
+        if (filterText.isEmpty()) {
+            sorter.setRowFilter(null);
+            return;
+        }
+        sorter.setRowFilter(new RowFilter<PortsTableModel, Integer>() {
+            @Override
+            public boolean include(Entry<? extends PortsTableModel, ? extends Integer> entry) {
+                PortsTableRow row = entry.getModel().getRow(entry.getIdentifier());
+                ServiceConfiguration serviceConfiguration = row.getServiceConfiguration();
+                return StringUtils.containsIgnoreCase(serviceConfiguration.getServiceName(), filterText)
+                        || StringUtils.containsIgnoreCase(serviceConfiguration.getServiceNamespace(), filterText)
+                        || StringUtils.containsIgnoreCase(row.getPorts(), filterText);
+            }
+        });
     }
 
     /**
-     * Build the columns.
+     * Renderer for the service column. Services missing from the cluster are shown in red.
      */
-    private void buildColumns() {
-        JLabel serviceNameColumn = ComponentHelper.underlinedLabel("Service", CustomFont.BOLD);
-        add(serviceNameColumn, ComponentHelper.gridBagConstraints(GridBagConstraints.NORTHWEST, GridBagConstraints.HORIZONTAL,
-                new Insets(5, 5, 5, 5), 0, 0, 1, 1, 0, 0, 1.0, 0.0));
-
-        JLabel serviceNamespaceColumn = ComponentHelper.underlinedLabel("Namespace", CustomFont.BOLD);
-        add(serviceNamespaceColumn, ComponentHelper.gridBagConstraints(GridBagConstraints.NORTHWEST, GridBagConstraints.HORIZONTAL,
-                new Insets(5, 5, 5, 5), 1, 0, 1, 1, 0, 0, 1.0, 0.0));
-
-        JLabel servicePortsColumn = ComponentHelper.underlinedLabel("Ports", CustomFont.BOLD);
-        add(servicePortsColumn, ComponentHelper.gridBagConstraints(GridBagConstraints.NORTHWEST, GridBagConstraints.HORIZONTAL,
-                new Insets(5, 5, 5, 5), 2, 0, 1, 1, 0, 0, 1.0, 0.0));
-
-        JLabel serviceActiveColumn = ComponentHelper.underlinedLabel("Active", CustomFont.BOLD);
-        add(serviceActiveColumn, ComponentHelper.gridBagConstraints(GridBagConstraints.NORTHWEST, GridBagConstraints.HORIZONTAL,
-                new Insets(5, 5, 5, 5), 3, 0, 1, 1, 0, 0, 0.0, 0.0));
+    private static class ServiceCellRenderer extends DefaultTableCellRenderer {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public java.awt.Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected, boolean hasFocus, int row,
+                int column) {
+            super.getTableCellRendererComponent(table, value, isSelected, hasFocus, row, column);
+            PortsTableRow tableRow = ((PortsTableModel) table.getModel()).getRow(table.convertRowIndexToModel(row));
+            if (tableRow.getMissing()) {
+                setForeground(Color.RED);
+                setToolTipText("Service not found in the current context");
+            } else {
+                setForeground(isSelected ? table.getSelectionForeground() : table.getForeground());
+                setToolTipText(null);
+            }
+            return this;
+        }
+
     }
 
     /**
-     * Format the given list of ports.
-     * 
-     * @param ports the ports
-     * @return a formatted string
+     * Renderer for the status columns. Values the forwarding can't tell are shown as a dash.
      */
-    private String formatPorts(List<PortConfiguration> ports) {
-        StringBuilder builder = new StringBuilder();
-        for (PortConfiguration port : ports) {
-            if (builder.length() > 0) {
-                builder.append(", ");
+    private static class StatusCellRenderer extends DefaultTableCellRenderer {
+
+        private static final long serialVersionUID = 1L;
+        private static final String[] BYTE_UNITS = { "B", "KB", "MB", "GB", "TB" };
+
+        private int column;
+
+        /**
+         * Constructor.
+         * 
+         * @param column the model index of the column
+         */
+        public StatusCellRenderer(int column) {
+            this.column = column;
+            setHorizontalAlignment(column == PortsTableModel.STATE_COLUMN ? SwingConstants.LEFT : SwingConstants.RIGHT);
+        }
+
+        @Override
+        public java.awt.Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected, boolean hasFocus, int row,
+                int column) {
+            super.getTableCellRendererComponent(table, value, isSelected, hasFocus, row, column);
+            if (!isSelected) {
+                setForeground("FAILED".equals(value) ? Color.RED : table.getForeground());
             }
-            builder.append(port.getLocal() + ":" + port.getRemote());
+            return this;
         }
-        return builder.toString();
+
+        @Override
+        protected void setValue(Object value) {
+            if (value == null) {
+                setText("-");
+            } else if (column == PortsTableModel.UPTIME_COLUMN) {
+                setText(formatUptime((Long) value));
+            } else if (column == PortsTableModel.TIME_TO_READY_COLUMN) {
+                setText(value + " ms");
+            } else if (column == PortsTableModel.BYTES_IN_COLUMN || column == PortsTableModel.BYTES_OUT_COLUMN) {
+                setText(formatBytes((Long) value));
+            } else {
+                setText(value.toString());
+            }
+        }
+
+        /**
+         * Format an uptime down to the seconds.
+         * 
+         * @param millis the uptime in milliseconds
+         * @return the formatted uptime
+         */
+        private static String formatUptime(long millis) {
+            long seconds = TimeUnit.MILLISECONDS.toSeconds(millis);
+            if (seconds < 60) {
+                return seconds + "s";
+            } else if (seconds < 3600) {
+                return String.format("%dm %02ds", seconds / 60, seconds % 60);
+            }
+            return String.format("%dh %02dm", seconds / 3600, (seconds % 3600) / 60);
+        }
+
+        /**
+         * Format a number of bytes with the largest unit that keeps it at or above one.
+         * 
+         * @param bytes the number of bytes
+         * @return the formatted number of bytes
+         */
+        private static String formatBytes(long bytes) {
+            if (bytes < 1024) {
+                return bytes + " B";
+            }
+            double value = bytes;
+            int unit = 0;
+            while (value >= 1024 && unit < BYTE_UNITS.length - 1) {
+                value /= 1024;
+                unit++;
+            }
+            return String.format("%.1f %s", value, BYTE_UNITS[unit]);
+        }
+
     }
 
 }
@@ -0,0 +1,200 @@
+package com.sidneysimmons.plentifulports.ui.component;
+
+import com.sidneysimmons.plentifulports.forwarding.domain.ServiceStatus;
+import com.sidneysimmons.plentifulports.settings.domain.ServiceConfiguration;
+import com.sidneysimmons.plentifulports.ui.domain.PortsTableRow;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * Table model behind the ports table. Only meant to be used from the event dispatch thread. Rows are looked up by service so updating a
+ * single service doesn't scan the table. The status columns only change when rows are sampled - sampling doesn't fire model events, the
+ * table repaints the sampled rows itself.
+ * 
+ * @author Sidney Simmons
+ */
+public class PortsTableModel extends AbstractTableModel {
+
+    public static final int SERVICE_COLUMN = 0;
+    public static final int NAMESPACE_COLUMN = 1;
+    public static final int PORTS_COLUMN = 2;
+    public static final int STATE_COLUMN = 3;
+    public static final int UPTIME_COLUMN = 4;
+    public static final int RESTARTS_COLUMN = 5;
+    public static final int CONNECTION_RATE_COLUMN = 6;
+    public static final int BYTES_IN_COLUMN = 7;
+    public static final int BYTES_OUT_COLUMN = 8;
+    public static final int TIME_TO_READY_COLUMN = 9;
+    public static final int ACTIVE_COLUMN = 10;
+
+    private static final long serialVersionUID = 1L;
+    private static final String[] COLUMN_NAMES = { "Service", "Namespace", "Ports", "State", "Uptime", "Restarts", "Conn/s", "In", "Out",
+            "Ready in", "Active" };
+    private static final Class<?>[] COLUMN_CLASSES = { String.class, String.class, String.class, String.class, Long.class,
+            Integer.class, Long.class, Long.class, Long.class, Long.class, Boolean.class };
+
+    private List<PortsTableRow> rows = new ArrayList<>();
+    private Map<ServiceConfiguration, Integer> rowIndexes = new HashMap<>();
+    private transient BiConsumer<ServiceConfiguration, Boolean> toggleHandler;
+    private transient Function<ServiceConfiguration, ServiceStatus> statusReader;
+
+    /**
+     * Replace all rows with the given services. Fires a single event no matter how many services there are.
+     * 
+     * @param serviceConfigurations the service configurations
+     * @param toggleHandler handler for when the user toggles a service
+     * @param statusReader reader for the live status of a service
+     */
+    public void setServices(List<ServiceConfiguration> serviceConfigurations, BiConsumer<ServiceConfiguration, Boolean> toggleHandler,
+            Function<ServiceConfiguration, ServiceStatus> statusReader) {
+        List<PortsTableRow> newRows = new ArrayList<>(serviceConfigurations.size());
+        Map<ServiceConfiguration, Integer> newRowIndexes = new HashMap<>();
+        for (ServiceConfiguration serviceConfiguration : serviceConfigurations) {
+            newRowIndexes.put(serviceConfiguration, newRows.size());
+            newRows.add(new PortsTableRow(serviceConfiguration));
+        }
+        this.rows = newRows;
+        this.rowIndexes = newRowIndexes;
+        this.toggleHandler = toggleHandler;
+        this.statusReader = statusReader;
+        fireTableDataChanged();
+    }
+
+    /**
+     * Remove all rows.
+     */
+    public void clear() {
+        rows = new ArrayList<>();
+        rowIndexes = new HashMap<>();
+        toggleHandler = null;
+        statusReader = null;
+        fireTableDataChanged();
+    }
+
+    /**
+     * Set whether a given service is shown as active. Doesn't call the toggle handler.
+     * 
+     * @param serviceConfiguration the service configuration
+     * @param active whether or not the service is active
+     */
+    public void setActive(ServiceConfiguration serviceConfiguration, Boolean active) {
+        Integer rowIndex = rowIndexes.get(serviceConfiguration);
+        if (rowIndex != null && !rows.get(rowIndex).getActive().equals(active)) {
+            rows.get(rowIndex).setActive(active);
+            fireTableCellUpdated(rowIndex, ACTIVE_COLUMN);
+        }
+    }
+
+    /**
+     * Set whether a given service is shown as missing from the cluster.
+     * 
+     * @param serviceConfiguration the service configuration
+     * @param missing whether or not the service is missing
+     */
+    public void setMissing(ServiceConfiguration serviceConfiguration, Boolean missing) {
+        Integer rowIndex = rowIndexes.get(serviceConfiguration);
+        if (rowIndex != null && !rows.get(rowIndex).getMissing().equals(missing)) {
+            rows.get(rowIndex).setMissing(missing);
+            fireTableCellUpdated(rowIndex, SERVICE_COLUMN);
+        }
+    }
+
+    /**
+     * Sample the live status of the row at a given index.
+     * 
+     * @param rowIndex the index of the row in the model
+     * @param nowNanos the time of the sample in {@link System#nanoTime()} units
+     */
+    public void sampleStatus(int rowIndex, long nowNanos) {
+        if (statusReader != null) {
+            PortsTableRow row = rows.get(rowIndex);
+            row.sample(statusReader.apply(row.getServiceConfiguration()), nowNanos);
+        }
+    }
+
+    /**
+     * Return the row at a given index.
+     * 
+     * @param rowIndex the index of the row in the model
+     * @return the row
+     */
+    public PortsTableRow getRow(int rowIndex) {
+        return rows.get(rowIndex);
+    }
+
+    @Override
+    public int getRowCount() {
+        return rows.size();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMN_NAMES.length;
+    }
+
+    @Override
+    public String getColumnName(int columnIndex) {
+        return COLUMN_NAMES[columnIndex];
+    }
+
+    @Override
+    public Class<?> getColumnClass(int columnIndex) {
+        return COLUMN_CLASSES[columnIndex];
+    }
+
+    @Override
+    public boolean isCellEditable(int rowIndex, int columnIndex) {
+        return columnIndex == ACTIVE_COLUMN;
+    }
+
+    @Override
+    public Object getValueAt(int rowIndex, int columnIndex) {
+        PortsTableRow row = rows.get(rowIndex);
+        switch (columnIndex) {
+            case SERVICE_COLUMN:
+                return row.getServiceConfiguration().getServiceName();
+            case NAMESPACE_COLUMN:
+                return row.getServiceConfiguration().getServiceNamespace();
+            case PORTS_COLUMN:
+                return row.getPorts();
+            case STATE_COLUMN:
+                return row.getState().name();
+            case UPTIME_COLUMN:
+                return row.getUptimeMillis();
+            case RESTARTS_COLUMN:
+                return row.getRestartCount();
+            case CONNECTION_RATE_COLUMN:
+                return row.getConnectionRate();
+            case BYTES_IN_COLUMN:
+                return row.getBytesIn();
+            case BYTES_OUT_COLUMN:
+                return row.getBytesOut();
+            case TIME_TO_READY_COLUMN:
+                return row.getTimeToReadyMillis();
+            case ACTIVE_COLUMN:
+                return row.getActive();
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public void setValueAt(Object value, int rowIndex, int columnIndex) {
+        if (columnIndex != ACTIVE_COLUMN) {
+            return;
+        }
+        PortsTableRow row = rows.get(rowIndex);
+        Boolean active = (Boolean) value;
+        row.setActive(active);
+        fireTableCellUpdated(rowIndex, ACTIVE_COLUMN);
+        if (toggleHandler != null) {
+            toggleHandler.accept(row.getServiceConfiguration(), active);
+        }
+    }
+
+}
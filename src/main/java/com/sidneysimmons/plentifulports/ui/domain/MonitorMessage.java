@@ -0,0 +1,31 @@
+package com.sidneysimmons.plentifulports.ui.domain;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Message waiting to be shown in the ports monitor. A message with a summary key replaces the previous summary with the same key instead
+ * of adding another line.
+ * 
+ * @author Sidney Simmons
+ */
+@Data
+@NoArgsConstructor
+public class MonitorMessage {
+
+    private long timestampMillis;
+    private String text;
+    private String summaryKey;
+
+    public MonitorMessage(long timestampMillis, String text) {
+        this.timestampMillis = timestampMillis;
+        this.text = text;
+    }
+
+    public MonitorMessage(long timestampMillis, String text, String summaryKey) {
+        this.timestampMillis = timestampMillis;
+        this.text = text;
+        this.summaryKey = summaryKey;
+    }
+
+}
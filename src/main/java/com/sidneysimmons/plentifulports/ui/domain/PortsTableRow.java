@@ -0,0 +1,89 @@
+package com.sidneysimmons.plentifulports.ui.domain;
+
+import com.sidneysimmons.plentifulports.forwarding.domain.ForwardingState;
+import com.sidneysimmons.plentifulports.forwarding.domain.ServiceStatus;
+import com.sidneysimmons.plentifulports.settings.domain.PortConfiguration;
+import com.sidneysimmons.plentifulports.settings.domain.ServiceConfiguration;
+import java.util.concurrent.TimeUnit;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Row of the ports table. The formatted ports are kept so rendering and filtering don't format them over and over. The status columns
+ * are sampled into the row a few times a second - the connection rate is worked out over windows of at least a second so it doesn't jump
+ * around between samples.
+ * 
+ * @author Sidney Simmons
+ */
+@Data
+@NoArgsConstructor
+public class PortsTableRow {
+
+    private ServiceConfiguration serviceConfiguration;
+    private String ports;
+    private Boolean active = false;
+    private Boolean missing = false;
+    private ForwardingState state = ForwardingState.STOPPED;
+    private Long uptimeMillis;
+    private Integer restartCount = 0;
+    private Long connectionRate;
+    private Long bytesIn;
+    private Long bytesOut;
+    private Long timeToReadyMillis;
+    private long rateConnectionTotal = -1;
+    private long rateSampledNanos;
+
+    /**
+     * Constructor.
+     * 
+     * @param serviceConfiguration the service configuration
+     */
+    public PortsTableRow(ServiceConfiguration serviceConfiguration) {
+        this.serviceConfiguration = serviceConfiguration;
+        this.ports = formatPorts(serviceConfiguration);
+    }
+
+    /**
+     * Take over a freshly sampled status.
+     * 
+     * @param status the status
+     * @param nowNanos the time of the sample in {@link System#nanoTime()} units
+     */
+    public void sample(ServiceStatus status, long nowNanos) {
+        state = status.getState();
+        uptimeMillis = status.getUptimeMillis();
+        restartCount = status.getRestartCount();
+        bytesIn = status.getBytesIn();
+        bytesOut = status.getBytesOut();
+        timeToReadyMillis = status.getTimeToReadyMillis();
+
+        // The first sample only sets the baseline of the rate
+        if (rateConnectionTotal < 0) {
+            rateConnectionTotal = status.getConnectionTotal();
+            rateSampledNanos = nowNanos;
+        } else if (nowNanos - rateSampledNanos >= TimeUnit.SECONDS.toNanos(1)) {
+            double elapsedSeconds = (nowNanos - rateSampledNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+            connectionRate = Math.round((status.getConnectionTotal() - rateConnectionTotal) / elapsedSeconds);
+            rateConnectionTotal = status.getConnectionTotal();
+            rateSampledNanos = nowNanos;
+        }
+    }
+
+    /**
+     * Format the ports of a given service.
+     * 
+     * @param serviceConfiguration the service configuration
+     * @return a formatted string
+     */
+    private static String formatPorts(ServiceConfiguration serviceConfiguration) {
+        StringBuilder builder = new StringBuilder();
+        for (PortConfiguration port : serviceConfiguration.getPorts()) {
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(port.getLocal() + ":" + port.getRemote());
+        }
+        return builder.toString();
+    }
+
+}
@@ -1,11 +1,10 @@
 package com.sidneysimmons.plentifulports.ui.scene;
 
 import com.sidneysimmons.plentifulports.forwarding.ForwardingService;
-import com.sidneysimmons.plentifulports.kubernetes.KubernetesGateway;
-import com.sidneysimmons.plentifulports.kubernetes.domain.KubernetesContext;
+import com.sidneysimmons.plentifulports.kubernetes.CachingKubernetesGateway;
 import com.sidneysimmons.plentifulports.kubernetes.exception.KubernetesException;
 import com.sidneysimmons.plentifulports.settings.SettingsService;
-import com.sidneysimmons.plentifulports.settings.domain.ServiceConfiguration;
+import com.sidneysimmons.plentifulports.settings.domain.ForwardingConfiguration;
 import com.sidneysimmons.plentifulports.settings.exception.SettingsException;
 import com.sidneysimmons.plentifulports.thread.ThreadService;
 import com.sidneysimmons.plentifulports.ui.FrameManager;
@@ -16,7 +15,6 @@ import com.sidneysimmons.plentifulports.ui.component.PortsTable;
 import java.awt.Dimension;
 import java.awt.GridBagConstraints;
 import java.awt.Insets;
-import java.util.List;
 import javax.annotation.Resource;
 import javax.swing.Box;
 import javax.swing.BoxLayout;
@@ -44,8 +42,8 @@ public class DashboardScene extends GenericScene {
     @Resource(name = "threadService")
     private ThreadService threadService;
 
-    @Resource(name = "kubernetesGateway")
-    private KubernetesGateway kubernetesGateway;
+    @Resource(name = "cachingKubernetesGateway")
+    private CachingKubernetesGateway cachingKubernetesGateway;
 
     @Resource(name = "portsTable")
     private PortsTable portsTable;
@@ -73,14 +71,17 @@ public class DashboardScene extends GenericScene {
 
     @Override
     public void onShow() {
-        if (settingsService.settingsAreValid()) {
-            if (!forwardingService.areServicesLoaded()) {
-                loadServices();
+        // Settings and kubectl are read off the event dispatch thread
+        threadService.execute(() -> {
+            if (settingsService.settingsAreValid()) {
+                if (!forwardingService.areServicesLoaded()) {
+                    loadServices();
+                }
+                updateCurrentContext();
+            } else {
+                SwingUtilities.invokeLater(() -> frameManager.activateScene(SettingsScene.class));
             }
-            threadService.execute(this::updateCurrentContext);
-        } else {
-            SwingUtilities.invokeLater(() -> frameManager.activateScene(SettingsScene.class));
-        }
+        });
     }
 
     @Override
@@ -89,31 +90,33 @@ public class DashboardScene extends GenericScene {
     }
 
     /**
-     * Load services.
+     * Load services. The settings are read and any running forwarding is stopped on a worker thread.
      */
     public void loadServices() {
-        try {
-            List<ServiceConfiguration> serviceConfigurations =
-                    settingsService.readSettingsObject().getForwardingConfiguration().getServices();
-            forwardingService.loadServices(serviceConfigurations);
-        } catch (SettingsException e) {
-            log.error("Can't read the settings.", e);
-            frameManager.showErrorMessage("Can't read the settings.", e, null);
-        }
+        threadService.execute(() -> {
+            try {
+                ForwardingConfiguration forwardingConfiguration = settingsService.readSettingsObject().getForwardingConfiguration();
+                forwardingService.loadServices(forwardingConfiguration);
+            } catch (SettingsException e) {
+                log.error("Can't read the settings.", e);
+                frameManager.showErrorMessage("Can't read the settings.", e, null);
+            }
+        });
     }
 
     /**
-     * Update the current context;
+     * Update the current context. Nothing waits on the result - the UI is updated once it's there.
      */
     private void updateCurrentContext() {
         SwingUtilities.invokeLater(() -> progressIndicator.setVisible(true));
-        threadService.execute(() -> {
-            try {
-                KubernetesContext currentContext = kubernetesGateway.readCurrentContext();
+        cachingKubernetesGateway.readCurrentContextAsync().whenComplete((currentContext, e) -> {
+            if (e != null) {
+                Exception cause = e.getCause() instanceof KubernetesException ? (KubernetesException) e.getCause()
+                        : new KubernetesException(e);
+                log.error("Can't update the current context.", cause);
+                frameManager.showErrorMessage("Can't update the current context.", cause, null);
+            } else {
                 SwingUtilities.invokeLater(() -> currentContextLabel.setText(currentContext.getName()));
-            } catch (KubernetesException e) {
-                log.error("Can't update the current context.", e);
-                frameManager.showErrorMessage("Can't update the current context.", e, null);
             }
             SwingUtilities.invokeLater(() -> progressIndicator.setVisible(false));
         });
@@ -0,0 +1,374 @@
+package com.sidneysimmons.plentifulports.forwarding;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.sidneysimmons.plentifulports.forwarding.domain.ConnectionCounter;
+import com.sidneysimmons.plentifulports.forwarding.domain.Forwarder;
+import com.sidneysimmons.plentifulports.forwarding.domain.ForwardingSlot;
+import com.sidneysimmons.plentifulports.forwarding.domain.ForwardingState;
+import com.sidneysimmons.plentifulports.forwarding.domain.PortConflict;
+import com.sidneysimmons.plentifulports.settings.domain.ForwardingConfiguration;
+import com.sidneysimmons.plentifulports.settings.domain.ForwardingEngine;
+import com.sidneysimmons.plentifulports.settings.domain.PortConfiguration;
+import com.sidneysimmons.plentifulports.settings.domain.ServiceConfiguration;
+import com.sidneysimmons.plentifulports.thread.ThreadService;
+import com.sidneysimmons.plentifulports.ui.component.PortsMonitor;
+import com.sidneysimmons.plentifulports.ui.component.PortsTable;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Stress test for the slot state machine of the {@link ForwardingService}. The forwarding of hundreds of services is toggled on and off
+ * from many threads at once while the forwarders report their own state changes, then the slots and forwarders are checked for leaks and
+ * illegal states. The throughput and latency of the toggles are printed so changes to the state machine can be compared.
+ * 
+ * @author Sidney Simmons
+ */
+public class ForwardingServiceTest {
+
+    private static final int SERVICE_COUNT = 400;
+    private static final int THREAD_COUNT = 16;
+    private static final int TOGGLES_PER_THREAD = 5000;
+    private static final long SETTLE_TIMEOUT_MILLIS = 30000;
+
+    private CountingThreadService threadService;
+    private ForwardingService forwardingService;
+    private List<ServiceConfiguration> services = new ArrayList<>();
+    private Queue<FakeForwarder> forwarders = new ConcurrentLinkedQueue<>();
+
+    @Before
+    public void setUp() throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        threadService = new CountingThreadService();
+        threadService.initialize();
+
+        // The preflight is the only part that touches the network - it's left out so only the state machine is measured
+        PortPreflight portPreflight = new PortPreflight() {
+            @Override
+            public List<PortConflict> findConflicts(Collection<ServiceConfiguration> services) {
+                return Collections.emptyList();
+            }
+        };
+        forwardingService = new ForwardingService();
+        forwardingService.setCollaborators(threadService, portPreflight, new PortsTable(), new PortsMonitor());
+        forwardingService.setForwarderFactory(serviceConfiguration -> new FakeForwarder());
+
+        // The in-process engine doesn't probe readiness, so the only tasks are the forwarders themselves
+        ForwardingConfiguration forwardingConfiguration = new ForwardingConfiguration();
+        forwardingConfiguration.setEngine(ForwardingEngine.NATIVE);
+        for (Integer localPort : findFreePorts(SERVICE_COUNT)) {
+            PortConfiguration port = new PortConfiguration();
+            port.setLocal(String.valueOf(localPort));
+            port.setRemote("80");
+            ServiceConfiguration serviceConfiguration = new ServiceConfiguration();
+            serviceConfiguration.setServiceName("service-" + services.size());
+            serviceConfiguration.setServiceNamespace("default");
+            serviceConfiguration.getPorts().add(port);
+            services.add(serviceConfiguration);
+        }
+        forwardingConfiguration.setServices(services);
+        forwardingService.loadSlots(forwardingConfiguration);
+    }
+
+    @After
+    public void tearDown() {
+        threadService.destroy();
+    }
+
+    @Test
+    public void concurrentTogglesDontLeakForwarders() throws Exception {
+        CyclicBarrier barrier = new CyclicBarrier(THREAD_COUNT);
+        Queue<Throwable> failures = new ConcurrentLinkedQueue<>();
+        long[][] latencies = new long[THREAD_COUNT][TOGGLES_PER_THREAD];
+        AtomicLong changes = new AtomicLong();
+        AtomicLong elapsedNanos = new AtomicLong();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            long[] threadLatencies = latencies[i];
+            Thread thread = new Thread(() -> {
+                try {
+                    barrier.await();
+                    long started = System.nanoTime();
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    long threadChanges = 0;
+                    for (int j = 0; j < TOGGLES_PER_THREAD; j++) {
+                        ServiceConfiguration serviceConfiguration = services.get(random.nextInt(services.size()));
+                        long toggled = System.nanoTime();
+                        Boolean changed = random.nextBoolean()
+                                ? forwardingService.enableForwarding(serviceConfiguration)
+                                : forwardingService.disableForwarding(serviceConfiguration);
+                        threadLatencies[j] = System.nanoTime() - toggled;
+                        threadChanges += changed ? 1 : 0;
+                        checkSlot(serviceConfiguration);
+                    }
+                    changes.addAndGet(threadChanges);
+                    elapsedNanos.accumulateAndGet(System.nanoTime() - started, Math::max);
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (!failures.isEmpty()) {
+            throw new AssertionError("Toggling failed.", failures.peek());
+        }
+        assertFalse("No forwarder was built.", forwarders.isEmpty());
+        report(latencies, changes.get(), elapsedNanos.get());
+
+        // Once things settled every live forwarder sits in a ready slot and every ready slot has a live forwarder
+        awaitQuiet();
+        for (FakeForwarder forwarder : forwarders) {
+            if (forwarder.isParked()) {
+                ForwardingSlot slot = findSlot(forwarder);
+                assertNotNull("Live forwarder isn't in any slot.", slot);
+                assertEquals(ForwardingState.READY, slot.getState());
+            } else {
+                assertFalse("Finished forwarder is still alive.", forwarder.isAlive());
+            }
+        }
+        for (ServiceConfiguration serviceConfiguration : services) {
+            ForwardingSlot slot = forwardingService.readSlot(serviceConfiguration);
+            if (slot.getState() != ForwardingState.STOPPED) {
+                assertEquals(ForwardingState.READY, slot.getState());
+                assertTrue("Ready slot holds a dead forwarder.", ((FakeForwarder) slot.getForwarder()).isParked());
+            }
+        }
+
+        // Turning everything off leaves nothing running
+        for (ServiceConfiguration serviceConfiguration : services) {
+            forwardingService.disableForwarding(serviceConfiguration);
+        }
+        awaitQuiet();
+        assertEquals(0, threadService.pendingCount.get());
+        for (ServiceConfiguration serviceConfiguration : services) {
+            assertEquals(ForwardingState.STOPPED, forwardingService.readState(serviceConfiguration));
+        }
+        for (FakeForwarder forwarder : forwarders) {
+            assertTrue("Forwarder was never killed.", forwarder.killed);
+            assertFalse("Forwarder is still alive.", forwarder.isAlive());
+        }
+    }
+
+    /**
+     * Print the throughput and latency of the toggles.
+     * 
+     * @param latencies the latency of every toggle of every thread in nanoseconds
+     * @param changes the number of toggles that changed a slot - the rest found nothing to do
+     * @param elapsedNanos the time the slowest thread took for all of its toggles
+     */
+    private static void report(long[][] latencies, long changes, long elapsedNanos) {
+        long[] all = new long[THREAD_COUNT * TOGGLES_PER_THREAD];
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            System.arraycopy(latencies[i], 0, all, i * TOGGLES_PER_THREAD, TOGGLES_PER_THREAD);
+        }
+        Arrays.sort(all);
+        double elapsedSeconds = elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1);
+        System.out.println(String.format("%d toggles of %d services from %d threads in %.0f ms (%.0f/s, %d changed a slot)"
+                + " - latency p50 %.1f us, p99 %.1f us, max %.1f us",
+                all.length, SERVICE_COUNT, THREAD_COUNT, elapsedSeconds * 1000, all.length / elapsedSeconds, changes,
+                all[all.length / 2] / 1000.0, all[(int) (all.length * 0.99)] / 1000.0, all[all.length - 1] / 1000.0));
+    }
+
+    /**
+     * Find local ports nobody listens on, so the services look like real ones to whoever checks their ports.
+     * 
+     * @param count the number of ports
+     * @return the ports
+     * @throws Exception thrown if the ports can't be found
+     */
+    private static Set<Integer> findFreePorts(int count) throws Exception {
+        Set<Integer> ports = new LinkedHashSet<>();
+        while (ports.size() < count) {
+            try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+                ports.add(socket.getLocalPort());
+            }
+        }
+        return ports;
+    }
+
+    /**
+     * Check that a slot is in a consistent state - only stopped and failed slots are allowed to be without a forwarder.
+     * 
+     * @param serviceConfiguration the service
+     */
+    private void checkSlot(ServiceConfiguration serviceConfiguration) {
+        ForwardingSlot slot = forwardingService.readSlot(serviceConfiguration);
+        if (slot.getState() == ForwardingState.STOPPED || slot.getState() == ForwardingState.FAILED) {
+            return;
+        }
+        if (slot.getForwarder() == null) {
+            fail("Slot of " + serviceConfiguration + " is " + slot.getState() + " without a forwarder.");
+        }
+    }
+
+    /**
+     * Wait until every task handed to the thread service is either done or a forwarder waiting to be killed.
+     * 
+     * @throws Exception thrown if things don't quiet down in time
+     */
+    private void awaitQuiet() throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SETTLE_TIMEOUT_MILLIS);
+        while (threadService.pendingCount.get() != countParked()) {
+            if (System.nanoTime() > deadline) {
+                fail(threadService.pendingCount.get() + " tasks are still busy, " + countParked() + " forwarders are parked.");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Count the forwarders that are running and waiting to be killed.
+     * 
+     * @return the number of parked forwarders
+     */
+    private int countParked() {
+        int count = 0;
+        for (FakeForwarder forwarder : forwarders) {
+            if (forwarder.isParked()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Find the slot holding a given forwarder.
+     * 
+     * @param forwarder the forwarder
+     * @return the slot, null if no slot holds it
+     */
+    private ForwardingSlot findSlot(Forwarder forwarder) {
+        for (ServiceConfiguration serviceConfiguration : services) {
+            ForwardingSlot slot = forwardingService.readSlot(serviceConfiguration);
+            if (slot.getForwarder() == forwarder) {
+                return slot;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Thread service that keeps count of the tasks that haven't finished yet.
+     */
+    private static class CountingThreadService extends ThreadService {
+
+        private AtomicInteger pendingCount = new AtomicInteger();
+
+        @Override
+        public void execute(Runnable runnable) {
+            pendingCount.incrementAndGet();
+            super.execute(() -> {
+                try {
+                    runnable.run();
+                } finally {
+                    pendingCount.decrementAndGet();
+                }
+            });
+        }
+
+    }
+
+    /**
+     * Forwarder without a process. It reports itself ready right after starting and stopped once it's killed, like a kubectl forward
+     * that starts instantly. Only forwarders that are actually run are tracked - losing a race for the slot just drops the new one.
+     */
+    private class FakeForwarder implements Forwarder {
+
+        private volatile boolean alive = false;
+        private volatile boolean parked = false;
+        private volatile boolean killed = false;
+        private CountDownLatch killLatch = new CountDownLatch(1);
+        private Consumer<ForwardingState> stateConsumer;
+
+        @Override
+        public void run() {
+            forwarders.add(this);
+
+            // Reported outside the monitor - the report logs, and blocking while holding a monitor pins the virtual thread
+            boolean killedEarly = false;
+            synchronized (this) {
+                killedEarly = killed;
+                alive = !killed;
+            }
+            if (killedEarly) {
+                stateConsumer.accept(ForwardingState.STOPPED);
+                return;
+            }
+            try {
+                if (ThreadLocalRandom.current().nextBoolean()) {
+                    Thread.yield();
+                }
+                stateConsumer.accept(ForwardingState.READY);
+                parked = true;
+                try {
+                    killLatch.await();
+                } finally {
+                    parked = false;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            alive = false;
+            stateConsumer.accept(ForwardingState.STOPPED);
+        }
+
+        @Override
+        public synchronized void kill() {
+            killed = true;
+            killLatch.countDown();
+        }
+
+        @Override
+        public Boolean isAlive() {
+            return alive;
+        }
+
+        @Override
+        public void setStateConsumer(Consumer<ForwardingState> stateConsumer) {
+            this.stateConsumer = stateConsumer;
+        }
+
+        @Override
+        public void setConnectionCounter(ConnectionCounter connectionCounter) {
+            // Nothing connects to a fake forwarder
+        }
+
+        /**
+         * Check if the forwarder is running and waiting to be killed. A killed forwarder is on its way out and no longer counts.
+         * 
+         * @return true if it's parked, false otherwise
+         */
+        private Boolean isParked() {
+            return parked && !killed;
+        }
+
+    }
+
+}
@@ -0,0 +1,82 @@
+package com.sidneysimmons.plentifulports.forwarding.domain;
+
+import static org.junit.Assert.assertEquals;
+
+import com.sidneysimmons.plentifulports.settings.domain.ServiceConfiguration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import org.junit.Test;
+
+/**
+ * Tests for the delivery order of an {@link EventSubscription}.
+ * 
+ * @author Sidney Simmons
+ */
+public class EventSubscriptionTest {
+
+    private ServiceConfiguration serviceConfiguration = new ServiceConfiguration();
+    private Queue<Runnable> drains = new ArrayDeque<>();
+    private List<ForwardingEvent> delivered = new ArrayList<>();
+    private long sequence = 0;
+
+    @Test
+    public void deliversInPublishOrder() {
+        EventSubscription subscription = new EventSubscription("test", delivered::addAll, drains::add, 16, 4);
+        List<ForwardingEvent> published = new ArrayList<>();
+        published.add(publish(subscription, ForwardingEventType.STARTED));
+        published.add(publish(subscription, ForwardingEventType.OUTPUT));
+        published.add(publish(subscription, ForwardingEventType.OUTPUT));
+        published.add(publish(subscription, ForwardingEventType.READY));
+        published.add(publish(subscription, ForwardingEventType.OUTPUT));
+        published.add(publish(subscription, ForwardingEventType.EXITED));
+        published.add(publish(subscription, ForwardingEventType.FAILED));
+        published.add(publish(subscription, ForwardingEventType.OUTPUT));
+        runDrains();
+
+        assertEquals(published, delivered);
+    }
+
+    @Test
+    public void keepsLifecycleEventsInPlaceWhenBulkEventsAreDropped() {
+        EventSubscription subscription = new EventSubscription("test", delivered::addAll, drains::add, 2, 16);
+        List<ForwardingEvent> expected = new ArrayList<>();
+        expected.add(publish(subscription, ForwardingEventType.STARTED));
+        expected.add(publish(subscription, ForwardingEventType.OUTPUT));
+        expected.add(publish(subscription, ForwardingEventType.OUTPUT));
+
+        // The ring is full - these are dropped while the lifecycle events still get through
+        publish(subscription, ForwardingEventType.OUTPUT);
+        expected.add(publish(subscription, ForwardingEventType.EXITED));
+        publish(subscription, ForwardingEventType.OUTPUT);
+        runDrains();
+
+        assertEquals(expected, delivered);
+    }
+
+    /**
+     * Publish an event to a subscription, numbered the way the bus numbers them.
+     * 
+     * @param subscription the subscription
+     * @param type the type of the event
+     * @return the event
+     */
+    private ForwardingEvent publish(EventSubscription subscription, ForwardingEventType type) {
+        ForwardingEvent event = new ForwardingEvent(type, serviceConfiguration, type + " " + (sequence + 1));
+        event.setSequence(++sequence);
+        subscription.offer(event);
+        return event;
+    }
+
+    /**
+     * Run the drains the subscription scheduled.
+     */
+    private void runDrains() {
+        Runnable drain = null;
+        while ((drain = drains.poll()) != null) {
+            drain.run();
+        }
+    }
+
+}
@@ -0,0 +1,430 @@
+package com.sidneysimmons.plentifulports.forwarding.domain;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.sidneysimmons.plentifulports.forwarding.NativeForwardingEngine;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the websocket framing of the {@link ForwardingTunnel}. A fake API server speaks v4.channel.k8s.io on the other end - it
+ * checks every frame the tunnel sends and echoes the data back split over a fragmented message, or sends a canned response and hangs up.
+ * 
+ * @author Sidney Simmons
+ */
+public class ForwardingTunnelTest {
+
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final String UPGRADE_PATH = "/api/v1/namespaces/default/pods/pod-0/portforward?ports=80";
+    private static final byte[] PING_PAYLOAD = { 1, 2, 3 };
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private NativeForwardingEngine engine;
+    private FakeApiServer server;
+    private ForwardingListener listener;
+    private int localPort;
+    private BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+
+    @Before
+    public void setUp() throws Exception {
+        engine = new NativeForwardingEngine();
+        engine.initialize();
+        server = new FakeApiServer();
+        try (ServerSocket probe = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            localPort = probe.getLocalPort();
+        }
+        InetSocketAddress serverAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort());
+        listener = engine.openListener(localPort,
+                (portListener, clientChannel) -> new ForwardingTunnel(portListener, clientChannel, serverAddress, UPGRADE_PATH),
+                messages::add);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        engine.closeListener(listener);
+        engine.destroy();
+        server.close();
+    }
+
+    @Test
+    public void tunnelsDataBothWays() throws Exception {
+        byte[] sent = new byte[300000];
+        new Random(42).nextBytes(sent);
+        byte[] received = exchange(sent);
+
+        assertArrayEquals(sent, received);
+        assertEquals("GET " + UPGRADE_PATH + " HTTP/1.1", server.requestLines.peek());
+        assertTrue(server.headers.contains("sec-websocket-protocol: v4.channel.k8s.io"));
+        assertTrue(server.failures.toString(), server.failures.isEmpty());
+        assertTrue("Ping wasn't answered.", server.pongs.size() >= 1);
+        for (byte[] pong : server.pongs) {
+            assertArrayEquals(PING_PAYLOAD, pong);
+        }
+    }
+
+    @Test
+    public void tunnelsEveryConnectionOverItsOwnWebsocket() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            byte[] sent = ("connection " + i).getBytes(StandardCharsets.US_ASCII);
+            assertArrayEquals(sent, exchange(sent));
+        }
+        assertEquals(3, server.requestLines.size());
+        assertTrue(server.failures.toString(), server.failures.isEmpty());
+    }
+
+    @Test
+    public void keepsRelayingAfterClientStopsSending() throws Exception {
+        byte[] sent = new byte[100000];
+        new Random(11).nextBytes(sent);
+        try (Socket client = new Socket(InetAddress.getLoopbackAddress(), localPort)) {
+            client.setSoTimeout((int) TIMEOUT_MILLIS);
+            client.getOutputStream().write(sent);
+            client.shutdownOutput();
+            byte[] received = new byte[sent.length];
+            new DataInputStream(client.getInputStream()).readFully(received);
+
+            assertArrayEquals(sent, received);
+        }
+        assertTrue(server.failures.toString(), server.failures.isEmpty());
+    }
+
+    @Test
+    public void relaysWholeResponseWhenUpstreamEndsWithoutCloseFrame() throws Exception {
+        server.response = new byte[4 * 1024 * 1024];
+        new Random(7).nextBytes(server.response);
+        try (Socket client = new Socket(InetAddress.getLoopbackAddress(), localPort)) {
+            client.setSoTimeout((int) TIMEOUT_MILLIS);
+
+            // Let the server finish and hang up while the tunnel's buffers are still full
+            Thread.sleep(500);
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            InputStream in = client.getInputStream();
+            byte[] chunk = new byte[8192];
+            int read = 0;
+            while ((read = in.read(chunk)) >= 0) {
+                received.write(chunk, 0, read);
+            }
+            assertEquals(server.response.length, received.size());
+            assertArrayEquals(server.response, received.toByteArray());
+        }
+    }
+
+    @Test
+    public void reportsErrorChannel() throws Exception {
+        server.errorMessage = "error forwarding port 80 to pod pod-0: connection refused";
+        try (Socket client = new Socket(InetAddress.getLoopbackAddress(), localPort)) {
+            assertEquals(server.errorMessage, messages.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+            client.setSoTimeout((int) TIMEOUT_MILLIS);
+            assertEquals(-1, client.getInputStream().read());
+        }
+    }
+
+    @Test
+    public void rejectsInvalidHandshake() throws Exception {
+        server.acceptKey = false;
+        try (Socket client = new Socket(InetAddress.getLoopbackAddress(), localPort)) {
+            assertEquals("Invalid websocket handshake for " + UPGRADE_PATH + ".", messages.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+            client.setSoTimeout((int) TIMEOUT_MILLIS);
+            assertEquals(-1, client.getInputStream().read());
+        }
+    }
+
+    /**
+     * Send data through a new local connection and read back whatever the server echoes.
+     * 
+     * @param sent the data to send
+     * @return the data that came back
+     * @throws Exception thrown if the exchange fails
+     */
+    private byte[] exchange(byte[] sent) throws Exception {
+        try (Socket client = new Socket(InetAddress.getLoopbackAddress(), localPort)) {
+            client.setSoTimeout((int) TIMEOUT_MILLIS);
+            OutputStream out = client.getOutputStream();
+            Queue<IOException> writeFailures = new ConcurrentLinkedQueue<>();
+            Thread writer = new Thread(() -> {
+                try {
+                    out.write(sent);
+                    out.flush();
+                } catch (IOException e) {
+                    writeFailures.add(e);
+                }
+            });
+            writer.start();
+            byte[] received = new byte[sent.length];
+            int count = 0;
+            InputStream in = client.getInputStream();
+            while (count < received.length) {
+                int read = in.read(received, count, received.length - count);
+                if (read < 0) {
+                    fail("Tunnel closed after " + count + " of " + received.length + " bytes.");
+                }
+                count += read;
+            }
+            writer.join(TIMEOUT_MILLIS);
+            if (!writeFailures.isEmpty()) {
+                throw writeFailures.peek();
+            }
+            return received;
+        }
+    }
+
+    /**
+     * Fake kubernetes API server for the port-forward websocket. Every connection gets its own thread.
+     */
+    private static class FakeApiServer {
+
+        private ServerSocket serverSocket;
+        private volatile boolean acceptKey = true;
+        private volatile String errorMessage;
+        private volatile byte[] response;
+        private Queue<String> requestLines = new ConcurrentLinkedQueue<>();
+        private List<String> headers = new ArrayList<>();
+        private Queue<byte[]> pongs = new ConcurrentLinkedQueue<>();
+        private Queue<String> failures = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Constructor. Starts accepting connections right away.
+         * 
+         * @throws IOException thrown if the server can't be bound
+         */
+        FakeApiServer() throws IOException {
+            serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            Thread acceptor = new Thread(() -> {
+                try {
+                    while (true) {
+                        Socket socket = serverSocket.accept();
+                        Thread connection = new Thread(() -> serve(socket));
+                        connection.setDaemon(true);
+                        connection.start();
+                    }
+                } catch (IOException e) {
+                    // Closed
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        /**
+         * Return the port of the server.
+         * 
+         * @return the port
+         */
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        /**
+         * Stop accepting connections.
+         * 
+         * @throws IOException thrown if the server can't be closed
+         */
+        void close() throws IOException {
+            serverSocket.close();
+        }
+
+        /**
+         * Serve a single websocket until the tunnel closes it.
+         * 
+         * @param socket the socket
+         */
+        private void serve(Socket socket) {
+            try (Socket closing = socket) {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                OutputStream out = socket.getOutputStream();
+                String key = readHandshake(in);
+                String accept = acceptKey ? computeAccept(key) : computeAccept("wrong");
+                out.write(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                        + "Sec-WebSocket-Accept: " + accept + "\r\nSec-WebSocket-Protocol: v4.channel.k8s.io\r\n\r\n")
+                        .getBytes(StandardCharsets.US_ASCII));
+
+                // Every channel starts with the forwarded port - the data channel's is split over two frames on purpose
+                out.write(new byte[] { 0x02, 2, 0, 80 });
+                out.write(new byte[] { (byte) 0x80, 1, 0 });
+                out.write(new byte[] { (byte) 0x82, 3, 1, 80, 0 });
+                if (errorMessage != null) {
+                    writeMessage(out, 1, errorMessage.getBytes(StandardCharsets.US_ASCII));
+                    out.write(new byte[] { (byte) 0x88, 2, 0x03, (byte) 0xE8 });
+                    return;
+                }
+                if (response != null) {
+                    // Hang up right after the response - a plain TCP end without a close frame
+                    writeMessage(out, 0, response);
+                    return;
+                }
+                out.write(new byte[] { (byte) 0x89, (byte) PING_PAYLOAD.length, PING_PAYLOAD[0], PING_PAYLOAD[1], PING_PAYLOAD[2] });
+                echo(in, out);
+            } catch (IOException e) {
+                // The tunnel went away
+            }
+        }
+
+        /**
+         * Read the handshake request.
+         * 
+         * @param in the input
+         * @return the websocket key of the request
+         * @throws IOException thrown if the request can't be read
+         */
+        private String readHandshake(DataInputStream in) throws IOException {
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            while (!request.toString(StandardCharsets.US_ASCII.name()).endsWith("\r\n\r\n")) {
+                int b = in.read();
+                if (b < 0) {
+                    throw new IOException("Handshake ended early.");
+                }
+                request.write(b);
+            }
+            String[] lines = request.toString(StandardCharsets.US_ASCII.name()).split("\r\n");
+            requestLines.add(lines[0]);
+            String key = null;
+            synchronized (headers) {
+                for (int i = 1; i < lines.length; i++) {
+                    headers.add(lines[i].toLowerCase());
+                    if (lines[i].toLowerCase().startsWith("sec-websocket-key:")) {
+                        key = lines[i].substring(lines[i].indexOf(':') + 1).trim();
+                    }
+                }
+            }
+            return key;
+        }
+
+        /**
+         * Echo every data frame back as a fragmented message until the tunnel closes the websocket.
+         * 
+         * @param in the input
+         * @param out the output
+         * @throws IOException thrown if the socket fails
+         */
+        private void echo(DataInputStream in, OutputStream out) throws IOException {
+            while (true) {
+                int first = in.read();
+                if (first < 0) {
+                    return;
+                }
+                int second = in.readUnsignedByte();
+                if ((second & 0x80) == 0) {
+                    failures.add("Unmasked frame.");
+                }
+                long length = second & 0x7F;
+                if (length == 126) {
+                    length = in.readUnsignedShort();
+                } else if (length == 127) {
+                    length = in.readLong();
+                }
+                byte[] mask = new byte[4];
+                in.readFully(mask);
+                byte[] payload = new byte[(int) length];
+                in.readFully(payload);
+                for (int i = 0; i < payload.length; i++) {
+                    payload[i] ^= mask[i & 3];
+                }
+
+                int opcode = first & 0x0F;
+                if (opcode == 0x8) {
+                    return;
+                } else if (opcode == 0xA) {
+                    pongs.add(payload);
+                    continue;
+                } else if (opcode != 0x2 || (first & 0x80) == 0) {
+                    failures.add("Unexpected frame " + Integer.toHexString(first) + ".");
+                    continue;
+                }
+                if (payload.length == 0 || payload[0] != 0) {
+                    failures.add("Data frame isn't on the data channel.");
+                    continue;
+                }
+                byte[] data = new byte[payload.length - 1];
+                System.arraycopy(payload, 1, data, 0, data.length);
+                writeMessage(out, 0, data);
+            }
+        }
+
+        /**
+         * Write a message on a given channel as a binary frame followed by a continuation frame.
+         * 
+         * @param out the output
+         * @param channel the channel
+         * @param data the data
+         * @throws IOException thrown if the socket fails
+         */
+        private static void writeMessage(OutputStream out, int channel, byte[] data) throws IOException {
+            int half = data.length / 2;
+            byte[] head = new byte[half + 1];
+            head[0] = (byte) channel;
+            System.arraycopy(data, 0, head, 1, half);
+            byte[] tail = new byte[data.length - half];
+            System.arraycopy(data, half, tail, 0, tail.length);
+            writeFrame(out, 0x02, head);
+            writeFrame(out, 0x80, tail);
+        }
+
+        /**
+         * Write an unmasked frame.
+         * 
+         * @param out the output
+         * @param first the first header byte
+         * @param payload the payload
+         * @throws IOException thrown if the socket fails
+         */
+        private static void writeFrame(OutputStream out, int first, byte[] payload) throws IOException {
+            ByteArrayOutputStream frame = new ByteArrayOutputStream();
+            frame.write(first);
+            if (payload.length < 126) {
+                frame.write(payload.length);
+            } else if (payload.length < 65536) {
+                frame.write(126);
+                frame.write(payload.length >> 8);
+                frame.write(payload.length & 0xFF);
+            } else {
+                frame.write(127);
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    frame.write((int) ((long) payload.length >> shift) & 0xFF);
+                }
+            }
+            frame.write(payload);
+            out.write(frame.toByteArray());
+        }
+
+        /**
+         * Compute the accept value for a given websocket key.
+         * 
+         * @param key the key
+         * @return the accept value
+         */
+        private static String computeAccept(String key) {
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-1");
+                return Base64.getEncoder().encodeToString(digest.digest((key + WEBSOCKET_GUID).getBytes(StandardCharsets.US_ASCII)));
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+    }
+
+}
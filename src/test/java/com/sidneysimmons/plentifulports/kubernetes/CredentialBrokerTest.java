@@ -0,0 +1,250 @@
+package com.sidneysimmons.plentifulports.kubernetes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sidneysimmons.plentifulports.kubernetes.domain.Kubeconfig;
+import com.sidneysimmons.plentifulports.thread.ThreadService;
+import java.io.File;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link CredentialBroker}. The exec plugin is a shell script that counts its runs and prints whatever credential the test
+ * scripted for it.
+ * 
+ * @author Sidney Simmons
+ */
+public class CredentialBrokerTest {
+
+    private static final String CONTEXT = "test-context";
+
+    private ObjectMapper objectMapper = new ObjectMapper();
+    private String originalUserHome;
+    private Path directory;
+    private Path runsFile;
+    private Path credentialFile;
+    private ThreadService threadService;
+    private Kubeconfig kubeconfig;
+    private CredentialBroker credentialBroker;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("credential-broker");
+        originalUserHome = System.getProperty("user.home");
+        System.setProperty("user.home", directory.toString());
+        runsFile = directory.resolve("runs");
+        credentialFile = directory.resolve("credential.json");
+
+        // The plugin prints the scripted credential, or fails if there is none
+        Path plugin = directory.resolve("plugin.sh");
+        Files.write(plugin, ("#!/bin/sh\n"
+                + "echo run >> '" + runsFile + "'\n"
+                + "sleep \"${PLUGIN_DELAY:-0}\"\n"
+                + "[ -f '" + credentialFile + "' ] || { echo 'no credential' >&2; exit 1; }\n"
+                + "cat '" + credentialFile + "'\n").getBytes(StandardCharsets.UTF_8));
+        plugin.toFile().setExecutable(true);
+
+        threadService = new ThreadService();
+        threadService.initialize();
+        kubeconfig = buildKubeconfig(plugin, "0");
+        credentialBroker = new CredentialBroker();
+        setField(credentialBroker, "threadService", threadService);
+        setField(credentialBroker, "kubeconfigReader", new KubeconfigReader() {
+            @Override
+            public Kubeconfig readKubeconfig() {
+                return kubeconfig;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        credentialBroker.destroy();
+        threadService.destroy();
+        System.setProperty("user.home", originalUserHome);
+        FileUtils.deleteDirectory(directory.toFile());
+    }
+
+    @Test
+    public void cachesCredentialUntilItExpires() throws Exception {
+        scriptCredential("token-1", Instant.now().plusSeconds(3600));
+        Path first = credentialBroker.resolveKubeconfig(CONTEXT);
+        Path second = credentialBroker.resolveKubeconfig(null);
+
+        assertNotNull(first);
+        assertEquals(first, second);
+        assertEquals(1, countRuns());
+        String written = new String(Files.readAllBytes(first), StandardCharsets.UTF_8);
+        assertTrue(written.contains("token-1"));
+        assertTrue(written.contains("current-context: " + CONTEXT) || written.contains("current-context: \"" + CONTEXT + "\""));
+    }
+
+    @Test
+    public void runsPluginAgainOnceCredentialIsAboutToExpire() throws Exception {
+        // Within the expiration margin, so it's never good enough to hand out twice
+        scriptCredential("token-1", Instant.now().plusSeconds(30));
+        credentialBroker.resolveKubeconfig(CONTEXT);
+        scriptCredential("token-2", Instant.now().plusSeconds(3600));
+        Path kubeconfigFile = credentialBroker.resolveKubeconfig(CONTEXT);
+
+        assertEquals(2, countRuns());
+        assertTrue(new String(Files.readAllBytes(kubeconfigFile), StandardCharsets.UTF_8).contains("token-2"));
+    }
+
+    @Test
+    public void writesKubeconfigOnlyReadableByUser() throws Exception {
+        if (!FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            return;
+        }
+        scriptCredential("token-1", Instant.now().plusSeconds(3600));
+        Path kubeconfigFile = credentialBroker.resolveKubeconfig(CONTEXT);
+
+        assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(kubeconfigFile)));
+    }
+
+    @Test
+    public void runsPluginOnceForConcurrentCallers() throws Exception {
+        scriptCredential("token-1", Instant.now().plusSeconds(3600));
+        kubeconfig = buildKubeconfig(directory.resolve("plugin.sh"), "0.5");
+        CountDownLatch start = new CountDownLatch(1);
+        List<CompletableFuture<Path>> resolves = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            resolves.add(threadService.supplyAsync(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return credentialBroker.resolveKubeconfig(CONTEXT);
+            }));
+        }
+        start.countDown();
+        Set<Path> kubeconfigFiles = new HashSet<>();
+        for (CompletableFuture<Path> resolve : resolves) {
+            kubeconfigFiles.add(resolve.join());
+        }
+
+        assertEquals(1, countRuns());
+        assertEquals(1, kubeconfigFiles.size());
+        assertNotNull(kubeconfigFiles.iterator().next());
+    }
+
+    @Test
+    public void cachesFailureForAWhile() throws Exception {
+        assertNull(credentialBroker.resolveKubeconfig(CONTEXT));
+        scriptCredential("token-1", Instant.now().plusSeconds(3600));
+        assertNull(credentialBroker.resolveKubeconfig(CONTEXT));
+        assertEquals(1, countRuns());
+    }
+
+    @Test
+    public void retriesFailureOnceKubeconfigChanges() throws Exception {
+        assertNull(credentialBroker.resolveKubeconfig(CONTEXT));
+        scriptCredential("token-1", Instant.now().plusSeconds(3600));
+        kubeconfig = buildKubeconfig(directory.resolve("plugin.sh"), "0");
+        assertNotNull(credentialBroker.resolveKubeconfig(CONTEXT));
+        assertEquals(2, countRuns());
+    }
+
+    @Test
+    public void leavesContextsWithoutPluginAlone() throws Exception {
+        Kubeconfig plain = buildKubeconfig(directory.resolve("plugin.sh"), "0");
+        ((ObjectNode) plain.getUsers().get("user")).remove("exec");
+        kubeconfig = plain;
+
+        assertNull(credentialBroker.resolveKubeconfig(CONTEXT));
+        assertEquals(0, countRuns());
+    }
+
+    /**
+     * Build a kubeconfig with a single context whose user authenticates through the plugin.
+     * 
+     * @param plugin the plugin script
+     * @param delaySeconds how long the plugin takes
+     * @return the kubeconfig
+     */
+    private Kubeconfig buildKubeconfig(Path plugin, String delaySeconds) {
+        Kubeconfig built = new Kubeconfig();
+        built.setCurrentContext(CONTEXT);
+        built.getContextNames().add(CONTEXT);
+        ObjectNode context = objectMapper.createObjectNode();
+        context.put("cluster", "cluster");
+        context.put("user", "user");
+        built.getContexts().put(CONTEXT, context);
+        ObjectNode cluster = objectMapper.createObjectNode();
+        cluster.put("server", "https://127.0.0.1:6443");
+        built.getClusters().put("cluster", cluster);
+        ObjectNode user = objectMapper.createObjectNode();
+        ObjectNode exec = user.putObject("exec");
+        exec.put("apiVersion", "client.authentication.k8s.io/v1beta1");
+        exec.put("command", plugin.toString());
+        ObjectNode delay = exec.putArray("env").addObject();
+        delay.put("name", "PLUGIN_DELAY");
+        delay.put("value", delaySeconds);
+        built.getUsers().put("user", user);
+        return built;
+    }
+
+    /**
+     * Script the credential the plugin prints on its next runs.
+     * 
+     * @param token the token
+     * @param expiration the expiration of the token
+     * @throws Exception thrown if the credential can't be written
+     */
+    private void scriptCredential(String token, Instant expiration) throws Exception {
+        ObjectNode credential = objectMapper.createObjectNode();
+        credential.put("apiVersion", "client.authentication.k8s.io/v1beta1");
+        credential.put("kind", "ExecCredential");
+        ObjectNode status = credential.putObject("status");
+        status.put("token", token);
+        status.put("expirationTimestamp", expiration.toString());
+        objectMapper.writeValue(credentialFile.toFile(), credential);
+    }
+
+    /**
+     * Count how often the plugin ran.
+     * 
+     * @return the number of runs
+     * @throws Exception thrown if the runs can't be read
+     */
+    private int countRuns() throws Exception {
+        File runs = runsFile.toFile();
+        return runs.exists() ? Files.readAllLines(runsFile).size() : 0;
+    }
+
+    /**
+     * Set a private field the way the application context would inject it.
+     * 
+     * @param target the object
+     * @param name the name of the field
+     * @param value the value
+     * @throws Exception thrown if the field can't be set
+     */
+    private static void setField(Object target, String name, Object value) throws Exception {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+
+}